@@ -65,6 +65,26 @@ public class Notes {
     // Intent 额外数据的键名，用于传递通话日期
     public static final String INTENT_EXTRA_CALL_DATE = "net.micode.notes.call_date";
 
+    // 内容提供者 call 方法名，用于将 WAL 日志写回数据库文件
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+    // 内容提供者 call 方法名，用于获取变化通知的合并计数
+    public static final String METHOD_NOTIFY_STATS = "notify_stats";
+    // 变化通知计数的键名：收到的请求数、实际发送数、被合并或丢弃的数量
+    public static final String NOTIFY_STATS_REQUESTED = "requested";
+    public static final String NOTIFY_STATS_DELIVERED = "delivered";
+    public static final String NOTIFY_STATS_SUPPRESSED = "suppressed";
+
+    // 内容提供者 call 方法名，用于整理数据库：更新统计信息、回收空闲页并检查完整性
+    public static final String METHOD_MAINTENANCE = "maintenance";
+    // 数据库整理结果的键名：整理前后的文件大小（字节）、耗时（毫秒）、完整性检查结果
+    public static final String MAINTENANCE_SIZE_BEFORE = "size_before";
+    public static final String MAINTENANCE_SIZE_AFTER = "size_after";
+    public static final String MAINTENANCE_ELAPSED = "elapsed";
+    public static final String MAINTENANCE_INTEGRITY = "integrity";
+
+    // 查询 URI 的参数名，用于限制笔记列表每次返回的行数
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
     // 无效小部件类型的常量，值为 -1
     public static final int TYPE_WIDGET_INVALIDE = -1;
     // 2x 大小小部件类型的常量，值为 0
@@ -72,6 +92,26 @@ public class Notes {
     // 4x 大小小部件类型的常量，值为 1
     public static final int TYPE_WIDGET_4X = 1;
 
+    /**
+     * ExportColumns 接口定义了 {@link #CONTENT_EXPORT_URI} 查询结果中各列的下标
+     */
+    public interface ExportColumns {
+        // 笔记的 ID
+        public static final int NOTE_ID = 0;
+        // 笔记所在文件夹的 ID
+        public static final int PARENT_ID = 1;
+        // 笔记的修改时间
+        public static final int MODIFIED_DATE = 2;
+        // 数据的 MIME 类型，笔记没有数据时为 null
+        public static final int MIME_TYPE = 3;
+        // 数据的内容
+        public static final int CONTENT = 4;
+        // 数据的扩展字段 1，通话记录中为通话时间
+        public static final int DATA1 = 5;
+        // 数据的扩展字段 3，通话记录中为电话号码
+        public static final int DATA3 = 6;
+    }
+
     /**
      * DataConstants 类用于定义数据相关的常量，
      * 包含笔记和通话记录的 MIME 类型。
@@ -95,6 +135,20 @@ public class Notes {
      */
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
 
+    /**
+     * 用于导出笔记的 Uri，一次返回所有需要导出的笔记及其数据，
+     * 按所在文件夹、笔记 ID、数据 ID 排序，根文件夹中的笔记排在最后。
+     * 结果的列见 {@link ExportColumns}
+     */
+    public static final Uri CONTENT_EXPORT_URI = Uri.parse("content://" + AUTHORITY + "/export");
+
+    /**
+     * 同步日志的 Uri，记录同步过程中已经完成的操作，
+     * 同步中断后下次同步从这里恢复，列见 {@link SyncJournalColumns}
+     */
+    public static final Uri CONTENT_SYNC_JOURNAL_URI = Uri.parse("content://" + AUTHORITY
+            + "/sync_journal");
+
     /**
      * NoteColumns 接口定义了笔记表的列名常量，
      * 包含笔记和文件夹的各种属性列名。
@@ -201,6 +255,18 @@ public class Notes {
          * <P> 类型 : INTEGER (long) </P>
          */
         public static final String VERSION = "version";
+
+        /**
+         * 上次同步时笔记内容的指纹，0 表示未知
+         * <P> 类型 : INTEGER (long) </P>
+         */
+        public static final String CONTENT_HASH = "content_hash";
+
+        /**
+         * 上次同步时笔记的文本，作为合并冲突修改的基准，内容指纹为 0 时无效
+         * <P> 类型 : TEXT </P>
+         */
+        public static final String SYNC_BASE = "sync_base";
     }
 
     /**
@@ -275,6 +341,57 @@ public class Notes {
         public static final String DATA5 = "data5";
     }
 
+    /**
+     * SyncJournalColumns 接口定义了同步日志表的列名常量
+     */
+    public interface SyncJournalColumns {
+        /**
+         * 行的唯一 ID
+         * <P> 类型: INTEGER (long) </P>
+         */
+        public static final String ID = "_id";
+
+        /**
+         * 操作对应的本地笔记或文件夹的 ID
+         * <P> 类型: INTEGER (long) </P>
+         */
+        public static final String NOTE_ID = "note_id";
+
+        /**
+         * 操作对应的 Google Task ID
+         * <P> 类型: TEXT </P>
+         */
+        public static final String GTASK_ID = "gtask_id";
+
+        /**
+         * 同步操作的类型，取值见 Node 中的 SYNC_ACTION_* 常量
+         * <P> 类型: INTEGER </P>
+         */
+        public static final String ACTION = "action";
+
+        /**
+         * 操作的状态，{@link #STATE_PENDING} 或 {@link #STATE_DONE}
+         * <P> 类型: INTEGER </P>
+         */
+        public static final String STATE = "state";
+
+        /**
+         * 操作完成后笔记应有的同步 ID
+         * <P> 类型: INTEGER (long) </P>
+         */
+        public static final String SYNC_ID = "sync_id";
+
+        /**
+         * 操作已经发出，还没有确认服务器完成
+         */
+        public static final int STATE_PENDING = 0;
+
+        /**
+         * 操作已经完成
+         */
+        public static final int STATE_DONE = 1;
+    }
+
     /**
      * TextNote 类是一个静态常量类，实现了 DataColumns 接口，
      * 定义了文本笔记相关的常量，包括模式、内容类型和 Uri。
@@ -18,25 +18,34 @@ package net.micode.notes.data;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.SyncJournalColumns;
+
+import java.io.File;
 
 
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
     // 数据库名称
-    private static final String DB_NAME = "note.db";
+    static final String DB_NAME = "note.db";
     // 数据库版本号
-    private static final int DB_VERSION = 4;
+    private static final int DB_VERSION = 11;
 
     // 数据库表名定义
     public interface TABLE {
         public static final String NOTE = "note";  // 笔记表
         public static final String DATA = "data";  // 数据表
+        public static final String NOTE_FTS = "note_fts";  // 全文检索虚拟表
+        public static final String SYNC_JOURNAL = "sync_journal";  // 同步日志表
     }
 
     // 日志标签
@@ -45,6 +54,26 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     // 单例实例
     private static NotesDatabaseHelper mInstance;
 
+    // 笔记摘要最多保留的字符数，列表和搜索只需要前几行，完整内容只在打开笔记时读取
+    private static final int NOTE_SNIPPET_MAX_LENGTH = 256;
+
+    // 默认的同步级别，WAL 模式下 NORMAL 只在检查点时落盘
+    private static final String DEFAULT_SYNCHRONOUS = "NORMAL";
+    // 默认的页缓存大小（KB）
+    private static final int DEFAULT_CACHE_SIZE_KB = 2048;
+    // 默认的内存映射大小（字节）
+    private static final long DEFAULT_MMAP_SIZE = 4 * 1024 * 1024;
+    // WAL 文件达到多少页时自动做一次检查点
+    private static final int DEFAULT_WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    // 当前使用的数据库调优参数，在下次打开数据库时生效。
+    // 只作用于主连接：WAL 模式下连接池另外打开的只读连接不经过 onConfigure，
+    // 仍使用 SQLite 默认的缓存大小（约 2MB）并且不做内存映射
+    private String mSynchronous = DEFAULT_SYNCHRONOUS;
+    private int mCacheSizeKb = DEFAULT_CACHE_SIZE_KB;
+    private long mMmapSize = DEFAULT_MMAP_SIZE;
+    private int mWalAutoCheckpointPages = DEFAULT_WAL_AUTOCHECKPOINT_PAGES;
+
     // 创建笔记表的SQL语句
     private static final String CREATE_NOTE_TABLE_SQL =
         "CREATE TABLE " + TABLE.NOTE + "(" +
@@ -64,7 +93,9 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             NoteColumns.LOCAL_MODIFIED + " INTEGER NOT NULL DEFAULT 0," +  // 本地修改标记
             NoteColumns.ORIGIN_PARENT_ID + " INTEGER NOT NULL DEFAULT 0," +  // 原始父文件夹ID
             NoteColumns.GTASK_ID + " TEXT NOT NULL DEFAULT ''," +  // Google Task ID
-            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0" +  // 版本号
+            NoteColumns.VERSION + " INTEGER NOT NULL DEFAULT 0," +  // 版本号
+            NoteColumns.CONTENT_HASH + " INTEGER NOT NULL DEFAULT 0," +  // 上次同步时的内容指纹
+            NoteColumns.SYNC_BASE + " TEXT NOT NULL DEFAULT ''" +  // 上次同步时的文本
         ")";
 
     // 创建数据表的SQL语句
@@ -87,6 +118,116 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "CREATE INDEX IF NOT EXISTS note_id_index ON " +
         TABLE.DATA + "(" + DataColumns.NOTE_ID + ");";
 
+    // 笔记列表按文件夹过滤并按类型、修改时间排序
+    private static final String CREATE_NOTE_PARENT_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_parent_id_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + " DESC," +
+        NoteColumns.MODIFIED_DATE + " DESC);";
+
+    // 开机时按提醒时间查找需要重新设置闹钟的笔记，
+    // 同步时按类型遍历笔记和文件夹也使用这个索引的类型前缀
+    private static final String CREATE_NOTE_ALERTED_DATE_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_alert_date_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.TYPE + "," + NoteColumns.ALERTED_DATE + ");";
+
+    // 同步时按 Google Task ID 查找笔记
+    private static final String CREATE_NOTE_GTASK_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_gtask_id_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.GTASK_ID + ");";
+
+    // 创建同步日志表的SQL语句
+    private static final String CREATE_SYNC_JOURNAL_TABLE_SQL =
+        "CREATE TABLE IF NOT EXISTS " + TABLE.SYNC_JOURNAL + "(" +
+            SyncJournalColumns.ID + " INTEGER PRIMARY KEY," +  // 主键ID
+            SyncJournalColumns.NOTE_ID + " INTEGER NOT NULL," +  // 本地笔记ID
+            SyncJournalColumns.GTASK_ID + " TEXT NOT NULL DEFAULT ''," +  // Google Task ID
+            SyncJournalColumns.ACTION + " INTEGER NOT NULL," +  // 同步操作类型
+            SyncJournalColumns.STATE + " INTEGER NOT NULL DEFAULT 0," +  // 操作状态
+            SyncJournalColumns.SYNC_ID + " INTEGER NOT NULL DEFAULT 0" +  // 完成后的同步ID
+        ")";
+
+    // 创建全文检索表的SQL语句，docid 与笔记（或文件夹）的 _id 一致
+    private static final String CREATE_NOTE_FTS_TABLE_SQL =
+        "CREATE VIRTUAL TABLE IF NOT EXISTS " + TABLE.NOTE_FTS +
+        " USING fts4(" + DataColumns.CONTENT + ")";
+
+    /**
+     * Index the text of a note when data with type {@link DataConstants#NOTE} is inserted
+     */
+    private static final String DATA_INSERT_FTS_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER fts_insert_on_data_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.NOTE_FTS +
+        "   WHERE docid=new." + DataColumns.NOTE_ID + ";" +
+        "  INSERT INTO " + TABLE.NOTE_FTS + "(docid," + DataColumns.CONTENT + ")" +
+        "   VALUES(new." + DataColumns.NOTE_ID + ",new." + DataColumns.CONTENT + ");" +
+        " END";
+
+    /**
+     * Re-index the text of a note when data with type {@link DataConstants#NOTE} has changed
+     */
+    private static final String DATA_UPDATE_FTS_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER fts_update_on_data_update " +
+        " AFTER UPDATE OF " + DataColumns.CONTENT + " ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.NOTE_FTS +
+        "   WHERE docid=new." + DataColumns.NOTE_ID + ";" +
+        "  INSERT INTO " + TABLE.NOTE_FTS + "(docid," + DataColumns.CONTENT + ")" +
+        "   VALUES(new." + DataColumns.NOTE_ID + ",new." + DataColumns.CONTENT + ");" +
+        " END";
+
+    /**
+     * Drop the text of a note from index when data with type {@link DataConstants#NOTE} has deleted
+     */
+    private static final String DATA_DELETE_FTS_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER fts_delete_on_data_delete " +
+        " AFTER DELETE ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.NOTE_FTS +
+        "   WHERE docid=old." + DataColumns.NOTE_ID + ";" +
+        " END";
+
+    /**
+     * Index folder's name when insert new folder
+     */
+    private static final String FOLDER_INSERT_FTS_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER fts_insert_on_folder_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.NOTE_FTS + "(docid," + DataColumns.CONTENT + ")" +
+        "   VALUES(new." + NoteColumns.ID + ",new." + NoteColumns.SNIPPET + ");" +
+        " END";
+
+    /**
+     * Re-index folder's name when the folder is renamed
+     */
+    private static final String FOLDER_UPDATE_FTS_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER fts_update_on_folder_update " +
+        " AFTER UPDATE OF " + NoteColumns.SNIPPET + " ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.NOTE_FTS +
+        "   WHERE docid=new." + NoteColumns.ID + ";" +
+        "  INSERT INTO " + TABLE.NOTE_FTS + "(docid," + DataColumns.CONTENT + ")" +
+        "   VALUES(new." + NoteColumns.ID + ",new." + NoteColumns.SNIPPET + ");" +
+        " END";
+
+    /**
+     * Drop note or folder from index when it has been deleted
+     */
+    private static final String NOTE_DELETE_FTS_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER fts_delete_on_note_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.NOTE_FTS +
+        "   WHERE docid=old." + NoteColumns.ID + ";" +
+        " END";
+
     /**
      * Increase folder's note count when move note to the folder
      */
@@ -138,7 +279,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " END";
 
     /**
-     * Update note's content when insert data with type {@link DataConstants#NOTE}
+     * Update note's snippet with the head of the content when insert data with type
+     * {@link DataConstants#NOTE}
      */
     private static final String DATA_UPDATE_NOTE_CONTENT_ON_INSERT_TRIGGER =
         "CREATE TRIGGER update_note_content_on_insert " +
@@ -146,20 +288,23 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " WHEN new." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
         " BEGIN" +
         "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+        "   SET " + NoteColumns.SNIPPET + "=SUBSTR(new." + DataColumns.CONTENT +
+        ",1," + NOTE_SNIPPET_MAX_LENGTH + ")" +
         "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
         " END";
 
     /**
-     * Update note's content when data with {@link DataConstants#NOTE} type has changed
+     * Update note's snippet with the head of the content when data with
+     * {@link DataConstants#NOTE} type has changed
      */
     private static final String DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER =
         "CREATE TRIGGER update_note_content_on_update " +
-        " AFTER UPDATE ON " + TABLE.DATA +
+        " AFTER UPDATE OF " + DataColumns.CONTENT + " ON " + TABLE.DATA +
         " WHEN old." + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
         " BEGIN" +
         "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.SNIPPET + "=new." + DataColumns.CONTENT +
+        "   SET " + NoteColumns.SNIPPET + "=SUBSTR(new." + DataColumns.CONTENT +
+        ",1," + NOTE_SNIPPET_MAX_LENGTH + ")" +
         "  WHERE " + NoteColumns.ID + "=new." + DataColumns.NOTE_ID + ";" +
         " END";
 
@@ -218,10 +363,17 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     public void createNoteTable(SQLiteDatabase db) {
         db.execSQL(CREATE_NOTE_TABLE_SQL);
         reCreateNoteTableTriggers(db);
+        createNoteTableIndexes(db);
         createSystemFolder(db);
         Log.d(TAG, "note table has been created");
     }
 
+    private void createNoteTableIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_PARENT_ID_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_ALERTED_DATE_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_GTASK_ID_INDEX_SQL);
+    }
+
     private void reCreateNoteTableTriggers(SQLiteDatabase db) {
         db.execSQL("DROP TRIGGER IF EXISTS increase_folder_count_on_update");
         db.execSQL("DROP TRIGGER IF EXISTS decrease_folder_count_on_update");
@@ -285,6 +437,177 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
     }
 
+    public void createSyncJournalTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_SYNC_JOURNAL_TABLE_SQL);
+        Log.d(TAG, "sync journal table has been created");
+    }
+
+    public void createNoteSearchTable(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_FTS_TABLE_SQL);
+        reCreateNoteSearchTriggers(db);
+        Log.d(TAG, "note search table has been created");
+    }
+
+    private void reCreateNoteSearchTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS fts_insert_on_data_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS fts_update_on_data_update");
+        db.execSQL("DROP TRIGGER IF EXISTS fts_delete_on_data_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS fts_insert_on_folder_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS fts_update_on_folder_update");
+        db.execSQL("DROP TRIGGER IF EXISTS fts_delete_on_note_delete");
+
+        db.execSQL(DATA_INSERT_FTS_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_UPDATE_FTS_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_DELETE_FTS_ON_DELETE_TRIGGER);
+        db.execSQL(FOLDER_INSERT_FTS_ON_INSERT_TRIGGER);
+        db.execSQL(FOLDER_UPDATE_FTS_ON_UPDATE_TRIGGER);
+        db.execSQL(NOTE_DELETE_FTS_ON_DELETE_TRIGGER);
+    }
+
+    // 将已有的笔记正文和文件夹名称写入全文检索表
+    private void rebuildNoteSearchIndex(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + TABLE.NOTE_FTS);
+        db.execSQL("INSERT INTO " + TABLE.NOTE_FTS + "(docid," + DataColumns.CONTENT + ")" +
+                " SELECT " + DataColumns.NOTE_ID + "," + DataColumns.CONTENT +
+                " FROM " + TABLE.DATA +
+                " WHERE " + DataColumns.MIME_TYPE + "='" + DataConstants.NOTE + "'" +
+                " GROUP BY " + DataColumns.NOTE_ID);
+        db.execSQL("INSERT INTO " + TABLE.NOTE_FTS + "(docid," + DataColumns.CONTENT + ")" +
+                " SELECT " + NoteColumns.ID + "," + NoteColumns.SNIPPET +
+                " FROM " + TABLE.NOTE +
+                " WHERE " + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER);
+    }
+
+    /**
+     * Set the pragmas applied when the database is opened. Takes effect on the next open.
+     * cache_size and mmap_size only reach the primary connection, see configureDatabase.
+     */
+    public synchronized void setTuning(String synchronous, int cacheSizeKb, long mmapSize,
+            int walAutoCheckpointPages) {
+        mSynchronous = synchronous;
+        mCacheSizeKb = cacheSizeKb;
+        mMmapSize = mmapSize;
+        mWalAutoCheckpointPages = walAutoCheckpointPages;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        configureDatabase(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // onConfigure is only called since jelly bean
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            configureDatabase(db);
+        }
+    }
+
+    /*
+     * Runs on the primary connection only. Android has no hook for the extra read-only
+     * connections the pool opens in WAL mode: they get journal mode, synchronous and
+     * autocheckpoint from the framework and keep SQLite's default cache_size and mmap_size.
+     * That is fine here: all writes and checkpoints go through the primary connection, and
+     * list queries read a few pages through note_parent_id_index, which the default cache
+     * holds anyway.
+     */
+    private synchronized void configureDatabase(SQLiteDatabase db) {
+        if (db.isReadOnly()) {
+            return;
+        }
+        // new databases give free pages back on maintenance, this has to happen
+        // before WAL mode writes the header; existing ones are switched by runMaintenance()
+        db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+        // the sync service writes while the list reads, let them run concurrently
+        db.enableWriteAheadLogging();
+        db.execSQL("PRAGMA synchronous=" + mSynchronous);
+        // negative value means size in KB instead of pages
+        db.execSQL("PRAGMA cache_size=-" + mCacheSizeKb);
+        executePragma(db, "PRAGMA wal_autocheckpoint=" + mWalAutoCheckpointPages);
+        executePragma(db, "PRAGMA mmap_size=" + mMmapSize);
+    }
+
+    // 执行会返回结果行的 PRAGMA 语句
+    private void executePragma(SQLiteDatabase db, String pragma) {
+        Cursor c = null;
+        try {
+            c = db.rawQuery(pragma, null);
+            c.moveToFirst();
+        } catch (Exception e) {
+            // old sqlite may not know this pragma
+            Log.w(TAG, "execute " + pragma + " failed: " + e.toString());
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    // 执行 PRAGMA 查询并返回第一行第一列的值，失败时返回 null
+    private String queryPragma(SQLiteDatabase db, String pragma) {
+        Cursor c = null;
+        try {
+            c = db.rawQuery(pragma, null);
+            return c.moveToFirst() ? c.getString(0) : null;
+        } catch (Exception e) {
+            Log.w(TAG, "query " + pragma + " failed: " + e.toString());
+            return null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    // 数据库文件和 WAL 日志的总大小
+    private long getDatabaseSize(String path) {
+        return new File(path).length() + new File(path + "-wal").length();
+    }
+
+    /**
+     * Refresh the planner statistics, give free pages back to the file system and
+     * check the database. A database without incremental auto vacuum is switched
+     * with a full VACUUM the first time. Must not be called inside a transaction.
+     */
+    public Bundle runMaintenance() {
+        SQLiteDatabase db = getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+        long sizeBefore = getDatabaseSize(db.getPath());
+
+        // 2 means INCREMENTAL
+        if (!"2".equals(queryPragma(db, "PRAGMA auto_vacuum"))) {
+            db.execSQL("PRAGMA auto_vacuum=INCREMENTAL");
+            db.execSQL("VACUUM");
+        } else {
+            executePragma(db, "PRAGMA incremental_vacuum");
+        }
+        db.execSQL("ANALYZE");
+        // shrink the log as well, old sqlite only knows PASSIVE and fails here
+        executePragma(db, "PRAGMA wal_checkpoint(TRUNCATE)");
+        String integrity = queryPragma(db, "PRAGMA integrity_check(1)");
+
+        Bundle result = new Bundle();
+        result.putLong(Notes.MAINTENANCE_SIZE_BEFORE, sizeBefore);
+        result.putLong(Notes.MAINTENANCE_SIZE_AFTER, getDatabaseSize(db.getPath()));
+        result.putLong(Notes.MAINTENANCE_ELAPSED, SystemClock.elapsedRealtime() - start);
+        result.putString(Notes.MAINTENANCE_INTEGRITY, integrity);
+        if (!"ok".equals(integrity)) {
+            Log.e(TAG, "integrity check failed: " + integrity);
+        }
+        return result;
+    }
+
+    /**
+     * Copy the write-ahead log back into the database file without blocking readers
+     * or writers. Called after bulk writes such as a sync run so the log stays small.
+     */
+    public void checkpoint() {
+        // it is a no-op when the database is not in WAL mode
+        executePragma(getWritableDatabase(), "PRAGMA wal_checkpoint(PASSIVE)");
+    }
+
     static synchronized NotesDatabaseHelper getInstance(Context context) {
         if (mInstance == null) {
             mInstance = new NotesDatabaseHelper(context);
@@ -296,6 +619,8 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
     public void onCreate(SQLiteDatabase db) {
         createNoteTable(db);
         createDataTable(db);
+        createNoteSearchTable(db);
+        createSyncJournalTable(db);
     }
 
     @Override
@@ -320,6 +645,41 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++;
         }
 
+        if (oldVersion == 4) {
+            upgradeToV5(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 5) {
+            upgradeToV6(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 6) {
+            upgradeToV7(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 7) {
+            upgradeToV8(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 8) {
+            upgradeToV9(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 9) {
+            upgradeToV10(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 10) {
+            upgradeToV11(db);
+            oldVersion++;
+        }
+
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db);
             reCreateDataTableTriggers(db);
@@ -357,4 +717,50 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.VERSION
                 + " INTEGER NOT NULL DEFAULT 0");
     }
+
+    private void upgradeToV5(SQLiteDatabase db) {
+        // add a full-text index for search and fill it with existing notes
+        createNoteSearchTable(db);
+        rebuildNoteSearchIndex(db);
+    }
+
+    private void upgradeToV6(SQLiteDatabase db) {
+        // add indexes for the list, alarm and sync queries
+        createNoteTableIndexes(db);
+        db.execSQL("ANALYZE " + TABLE.NOTE);
+    }
+
+    private void upgradeToV7(SQLiteDatabase db) {
+        // keep only the head of the note content as snippet
+        reCreateDataTableTriggers(db);
+        db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.SNIPPET + "=SUBSTR("
+                + NoteColumns.SNIPPET + ",1," + NOTE_SNIPPET_MAX_LENGTH + ") WHERE "
+                + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE + " AND LENGTH("
+                + NoteColumns.SNIPPET + ")>" + NOTE_SNIPPET_MAX_LENGTH);
+    }
+
+    private void upgradeToV8(SQLiteDatabase db) {
+        // add a journal so an interrupted sync can resume
+        createSyncJournalTable(db);
+    }
+
+    private void upgradeToV9(SQLiteDatabase db) {
+        // add a content fingerprint so sync can skip unchanged notes
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.CONTENT_HASH
+                + " INTEGER NOT NULL DEFAULT 0");
+    }
+
+    private void upgradeToV10(SQLiteDatabase db) {
+        // keep the last synced text as the base of three-way merges; existing fingerprints
+        // have no base, clear them so both are written together on the next sync
+        db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.SYNC_BASE
+                + " TEXT NOT NULL DEFAULT ''");
+        db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.CONTENT_HASH + "=0");
+    }
+
+    private void upgradeToV11(SQLiteDatabase db) {
+        // the (type, parent_id) index duplicates the type prefix of the alert date index
+        // and cannot serve type<>? lookups, drop it to save a write per note change
+        db.execSQL("DROP INDEX IF EXISTS note_type_index");
+    }
 }
@@ -21,20 +21,31 @@ package net.micode.notes.data;
 import android.app.SearchManager;
 // 导入内容提供者基类
 import android.content.ContentProvider;
+// 导入批量操作及其结果类
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 // 导入用于操作内容 URI 的工具类
 import android.content.ContentUris;
 // 导入用于存储键值对的内容值类
 import android.content.ContentValues;
+// 导入上下文类
+import android.content.Context;
 // 导入意图类
 import android.content.Intent;
+// 导入批量操作失败异常类
+import android.content.OperationApplicationException;
 // 导入 URI 匹配器类
 import android.content.UriMatcher;
 // 导入数据库游标类
 import android.database.Cursor;
 // 导入 SQLite 数据库类
 import android.database.sqlite.SQLiteDatabase;
+// 导入预编译语句类
+import android.database.sqlite.SQLiteStatement;
 // 导入 URI 类
 import android.net.Uri;
+// 导入 Bundle 类
+import android.os.Bundle;
 // 导入文本工具类
 import android.text.TextUtils;
 // 导入日志工具类
@@ -49,6 +60,11 @@ import net.micode.notes.data.Notes.NoteColumns;
 // 导入笔记数据库帮助类中的表定义
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
 
+// 导入集合类
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
 /**
  * 自定义的内容提供者类，用于管理笔记数据的访问和操作
  */
@@ -59,6 +75,16 @@ public class NotesProvider extends ContentProvider {
     private NotesDatabaseHelper mHelper;
     // 日志标签
     private static final String TAG = "NotesProvider";
+    // 批量操作期间被推迟的变化通知，不在批量操作中时为 null
+    private final ThreadLocal<HashSet<Uri>> mPendingNotifyUris = new ThreadLocal<HashSet<Uri>>();
+    // 变化通知的合并窗口（毫秒）
+    private static final long NOTIFY_DELAY_MILLIS = 100;
+    // 变化通知合并器
+    private NotifyCoalescer mNotifyCoalescer;
+    // 预编译语句缓存，键为 SQL 文本，只在 mStatementDb 上有效
+    private final HashMap<String, SQLiteStatement> mStatementCache = new HashMap<String, SQLiteStatement>();
+    // 缓存中的语句所属的数据库实例
+    private SQLiteDatabase mStatementDb;
 
     // 定义不同 URI 匹配的常量
     private static final int URI_NOTE            = 1;
@@ -67,6 +93,8 @@ public class NotesProvider extends ContentProvider {
     private static final int URI_DATA_ITEM       = 4;
     private static final int URI_SEARCH          = 5;
     private static final int URI_SEARCH_SUGGEST  = 6;
+    private static final int URI_EXPORT          = 7;
+    private static final int URI_SYNC_JOURNAL    = 8;
 
     // 静态代码块，初始化 URI 匹配器
     static {
@@ -81,14 +109,18 @@ public class NotesProvider extends ContentProvider {
         mMatcher.addURI(Notes.AUTHORITY, "search", URI_SEARCH);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY, URI_SEARCH_SUGGEST);
         mMatcher.addURI(Notes.AUTHORITY, SearchManager.SUGGEST_URI_PATH_QUERY + "/*", URI_SEARCH_SUGGEST);
+        // 添加导出 URI 匹配规则
+        mMatcher.addURI(Notes.AUTHORITY, "export", URI_EXPORT);
+        // 同步日志只在同步服务内部使用，不发送变化通知
+        mMatcher.addURI(Notes.AUTHORITY, "sync_journal", URI_SYNC_JOURNAL);
     }
 
     /**
      * 笔记搜索投影字符串，用于定义搜索结果的列
      * x'0A' 表示 SQLite 中的 '\n' 字符，会去除搜索结果中的换行符和空格以显示更多信息
      */
-    private static final String NOTES_SEARCH_PROJECTION = NoteColumns.ID + ","
-        + NoteColumns.ID + " AS " + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
+    private static final String NOTES_SEARCH_PROJECTION = TABLE.NOTE + "." + NoteColumns.ID + ","
+        + TABLE.NOTE + "." + NoteColumns.ID + " AS " + SearchManager.SUGGEST_COLUMN_INTENT_EXTRA_DATA + ","
         + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_1 + ","
         + "TRIM(REPLACE(" + NoteColumns.SNIPPET + ", x'0A','')) AS " + SearchManager.SUGGEST_COLUMN_TEXT_2 + ","
         + R.drawable.search_result + " AS " + SearchManager.SUGGEST_COLUMN_ICON_1 + ","
@@ -96,24 +128,83 @@ public class NotesProvider extends ContentProvider {
         + "'" + Notes.TextNote.CONTENT_TYPE + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA;
 
     /**
-     * 笔记摘要搜索查询语句，用于从数据库中搜索符合条件的笔记
+     * 笔记内容搜索查询语句，用于从数据库中搜索符合条件的笔记
+     * 仅在全文检索无法切分的关键词（如中文）时使用；摘要只保留内容开头，因此直接匹配正文
      */
-    private static String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+    private static String NOTES_CONTENT_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
         + " FROM " + TABLE.NOTE
-        + " WHERE " + NoteColumns.SNIPPET + " LIKE ?"
+        + " WHERE " + NoteColumns.ID + " IN (SELECT " + DataColumns.NOTE_ID
+        + " FROM " + TABLE.DATA + " WHERE " + DataColumns.MIME_TYPE + "='"
+        + Notes.DataConstants.NOTE + "' AND " + DataColumns.CONTENT + " LIKE ?)"
         + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
         + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
 
+    /**
+     * 全文检索查询语句，正文命中的笔记按命中次数排在前面，
+     * 其次是所在文件夹名称命中的笔记，同等情况下按修改时间倒序
+     * LIMIT -1 阻止子查询被展开，否则无法使用 OFFSETS；
+     * 过滤条件前的一元 + 让 SQLite 按命中结果的 _id/parent_id 查找，而不是按类型扫描
+     */
+    private static String NOTES_FTS_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+        + " FROM " + TABLE.NOTE + " JOIN"
+        + " (SELECT docid AS hit_id, LENGTH(OFFSETS(" + TABLE.NOTE_FTS + ")) AS hit_rank"
+        + "  FROM " + TABLE.NOTE_FTS + " WHERE " + TABLE.NOTE_FTS + " MATCH ? LIMIT -1) AS hit"
+        + " ON (" + TABLE.NOTE + "." + NoteColumns.ID + "=hit.hit_id"
+        + " OR " + NoteColumns.PARENT_ID + "=hit.hit_id)"
+        + " WHERE +" + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
+        + " AND +" + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+        + " GROUP BY " + TABLE.NOTE + "." + NoteColumns.ID
+        + " ORDER BY MAX(CASE WHEN " + TABLE.NOTE + "." + NoteColumns.ID + "=hit.hit_id"
+        + " THEN hit.hit_rank ELSE 0 END) DESC, " + NoteColumns.MODIFIED_DATE + " DESC";
+
+    /**
+     * 导出查询语句，一次取出所有需要导出的笔记及其数据，列的顺序见 {@link Notes.ExportColumns}
+     * 只包含根文件夹、通话记录文件夹和不在回收站中的文件夹里的笔记，根文件夹中的笔记排在最后
+     */
+    private static final String NOTES_EXPORT_QUERY = "SELECT "
+        + TABLE.NOTE + "." + NoteColumns.ID + "," + TABLE.NOTE + "." + NoteColumns.PARENT_ID + ","
+        + TABLE.NOTE + "." + NoteColumns.MODIFIED_DATE + "," + DataColumns.MIME_TYPE + ","
+        + DataColumns.CONTENT + "," + DataColumns.DATA1 + "," + DataColumns.DATA3
+        + " FROM " + TABLE.NOTE + " LEFT JOIN " + TABLE.DATA
+        + " ON " + TABLE.DATA + "." + DataColumns.NOTE_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID
+        + " WHERE " + TABLE.NOTE + "." + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE
+        + " AND (" + TABLE.NOTE + "." + NoteColumns.PARENT_ID + "=" + Notes.ID_ROOT_FOLDER
+        + " OR " + TABLE.NOTE + "." + NoteColumns.PARENT_ID + " IN (SELECT " + NoteColumns.ID
+        + " FROM " + TABLE.NOTE + " WHERE (" + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER
+        + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER + ") OR "
+        + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + "))"
+        + " ORDER BY " + TABLE.NOTE + "." + NoteColumns.PARENT_ID + "=" + Notes.ID_ROOT_FOLDER + ","
+        + TABLE.NOTE + "." + NoteColumns.PARENT_ID + "," + TABLE.NOTE + "." + NoteColumns.ID + ","
+        + TABLE.DATA + "." + DataColumns.ID;
+
+    /**
+     * 按 ID 增加单条笔记版本号的语句，编辑保存时每次都会执行
+     */
+    private static final String INCREASE_NOTE_VERSION_BY_ID_SQL = "UPDATE " + TABLE.NOTE
+        + " SET " + NoteColumns.VERSION + "=" + NoteColumns.VERSION + "+1"
+        + " WHERE " + NoteColumns.ID + "=?";
+
     /**
      * 内容提供者创建时调用，初始化数据库帮助类实例
      * @return 初始化成功返回 true
      */
     @Override
     public boolean onCreate() {
-        mHelper = NotesDatabaseHelper.getInstance(getContext());
+        mHelper = createDatabaseHelper(getContext());
+        mNotifyCoalescer = new NotifyCoalescer(getContext().getContentResolver(),
+                NOTIFY_DELAY_MILLIS);
         return true;
     }
 
+    /**
+     * 取得内容提供者使用的数据库帮助类，插桩测试中替换为使用独立数据库文件的实例
+     * @param context 内容提供者的上下文
+     * @return 数据库帮助类实例
+     */
+    NotesDatabaseHelper createDatabaseHelper(Context context) {
+        return NotesDatabaseHelper.getInstance(context);
+    }
+
     /**
      * 根据 URI 查询数据库中的数据
      * @param uri 查询的 URI
@@ -133,13 +224,15 @@ public class NotesProvider extends ContentProvider {
         // 根据 URI 匹配结果执行不同的查询操作
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
+                // 列表分页加载时通过 URI 参数限制返回的行数
                 c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null,
-                        sortOrder);
+                        sortOrder, uri.getQueryParameter(Notes.QUERY_PARAMETER_LIMIT));
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.NOTE, projection, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                c = db.query(TABLE.NOTE, projection, NoteColumns.ID + "=?"
+                        + parseSelection(selection), prependArg(id, selectionArgs), null, null,
+                        sortOrder);
                 break;
             case URI_DATA:
                 c = db.query(TABLE.DATA, projection, selection, selectionArgs, null, null,
@@ -147,9 +240,21 @@ public class NotesProvider extends ContentProvider {
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.DATA, projection, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                c = db.query(TABLE.DATA, projection, DataColumns.ID + "=?"
+                        + parseSelection(selection), prependArg(id, selectionArgs), null, null,
+                        sortOrder);
+                break;
+            case URI_EXPORT:
+                if (sortOrder != null || projection != null || selection != null) {
+                    throw new IllegalArgumentException(
+                            "do not specify sortOrder, selection, selectionArgs, or projection"
+                            + " with this query");
+                }
+                c = db.rawQuery(NOTES_EXPORT_QUERY, null);
                 break;
+            case URI_SYNC_JOURNAL:
+                return db.query(TABLE.SYNC_JOURNAL, projection, selection, selectionArgs, null,
+                        null, sortOrder);
             case URI_SEARCH:
             case URI_SEARCH_SUGGEST:
                 if (sortOrder != null || projection != null) {
@@ -171,9 +276,14 @@ public class NotesProvider extends ContentProvider {
                 }
 
                 try {
-                    searchString = String.format("%%%s%%", searchString);
-                    c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
-                            new String[] { searchString });
+                    String matchString = buildMatchExpression(searchString);
+                    if (matchString != null) {
+                        c = db.rawQuery(NOTES_FTS_SEARCH_QUERY, new String[] { matchString });
+                    } else {
+                        searchString = String.format("%%%s%%", searchString);
+                        c = db.rawQuery(NOTES_CONTENT_SEARCH_QUERY,
+                                new String[] { searchString });
+                    }
                 } catch (IllegalStateException ex) {
                     Log.e(TAG, "got exception: " + ex.toString());
                 }
@@ -212,19 +322,20 @@ public class NotesProvider extends ContentProvider {
                 }
                 insertedId = dataId = db.insert(TABLE.DATA, null, values);
                 break;
+            case URI_SYNC_JOURNAL:
+                insertedId = db.insert(TABLE.SYNC_JOURNAL, null, values);
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         // 通知笔记 URI 数据变化
         if (noteId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
         }
 
         // 通知数据 URI 数据变化
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
         }
 
         return ContentUris.withAppendedId(uri, insertedId);
@@ -259,8 +370,8 @@ public class NotesProvider extends ContentProvider {
                 if (noteId <= 0) {
                     break;
                 }
-                count = db.delete(TABLE.NOTE,
-                        NoteColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
+                count = db.delete(TABLE.NOTE, NoteColumns.ID + "=?" + parseSelection(selection),
+                        prependArg(id, selectionArgs));
                 break;
             case URI_DATA:
                 count = db.delete(TABLE.DATA, selection, selectionArgs);
@@ -268,20 +379,22 @@ public class NotesProvider extends ContentProvider {
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                count = db.delete(TABLE.DATA,
-                        DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
+                count = db.delete(TABLE.DATA, DataColumns.ID + "=?" + parseSelection(selection),
+                        prependArg(id, selectionArgs));
                 deleteData = true;
                 break;
+            case URI_SYNC_JOURNAL:
+                return db.delete(TABLE.SYNC_JOURNAL, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
         if (count > 0) {
             if (deleteData) {
                 // 通知笔记 URI 数据变化
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyChange(Notes.CONTENT_NOTE_URI);
             }
             // 通知当前 URI 数据变化
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;
     }
@@ -310,8 +423,8 @@ public class NotesProvider extends ContentProvider {
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
                 increaseNoteVersion(Long.valueOf(id), selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=?"
+                        + parseSelection(selection), prependArg(id, selectionArgs));
                 break;
             case URI_DATA:
                 count = db.update(TABLE.DATA, values, selection, selectionArgs);
@@ -319,10 +432,12 @@ public class NotesProvider extends ContentProvider {
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                count = db.update(TABLE.DATA, values, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                count = db.update(TABLE.DATA, values, DataColumns.ID + "=?"
+                        + parseSelection(selection), prependArg(id, selectionArgs));
                 updateData = true;
                 break;
+            case URI_SYNC_JOURNAL:
+                return db.update(TABLE.SYNC_JOURNAL, values, selection, selectionArgs);
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -330,14 +445,116 @@ public class NotesProvider extends ContentProvider {
         if (count > 0) {
             if (updateData) {
                 // 通知笔记 URI 数据变化
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyChange(Notes.CONTENT_NOTE_URI);
             }
             // 通知当前 URI 数据变化
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
+        }
+        return count;
+    }
+
+    /**
+     * 在同一个事务中执行一批操作，所有操作只提交一次，
+     * 变化通知在事务结束后按 URI 合并发送
+     * @param operations 要执行的操作列表
+     * @return 每个操作的执行结果
+     * @throws OperationApplicationException 任一操作失败时抛出，整批操作回滚
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        boolean successful = false;
+        beginDeferredNotify();
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            endDeferredNotify(successful);
+        }
+    }
+
+    /**
+     * 在同一个事务中插入多行数据
+     * @param uri 插入数据的 URI
+     * @param values 要插入的数据
+     * @return 插入的数据行数
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        boolean successful = false;
+        int count = 0;
+        beginDeferredNotify();
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                if (ContentUris.parseId(insert(uri, value)) > 0) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            endDeferredNotify(successful);
         }
         return count;
     }
 
+    /**
+     * 开始推迟当前线程的变化通知
+     */
+    private void beginDeferredNotify() {
+        if (mPendingNotifyUris.get() != null) {
+            throw new IllegalStateException("nested batch operations are not supported");
+        }
+        mPendingNotifyUris.set(new HashSet<Uri>());
+    }
+
+    /**
+     * 结束推迟，事务提交成功时把合并后的变化通知交给合并器发送
+     * @param successful 事务是否提交成功
+     */
+    private void endDeferredNotify(boolean successful) {
+        HashSet<Uri> uris = mPendingNotifyUris.get();
+        mPendingNotifyUris.set(null);
+        if (successful && uris != null) {
+            mNotifyCoalescer.notifyChanges(uris);
+        }
+    }
+
+    /**
+     * 发送变化通知；单条记录的 URI 合并为所属集合的 URI，
+     * 批量操作期间只记录下来，事务提交后再交给合并器在时间窗口结束时统一发送
+     * @param uri 发生变化的 URI
+     */
+    private void notifyChange(Uri uri) {
+        switch (mMatcher.match(uri)) {
+            case URI_NOTE:
+            case URI_NOTE_ITEM:
+                uri = Notes.CONTENT_NOTE_URI;
+                break;
+            case URI_DATA:
+            case URI_DATA_ITEM:
+                uri = Notes.CONTENT_DATA_URI;
+                break;
+            default:
+                break;
+        }
+        HashSet<Uri> uris = mPendingNotifyUris.get();
+        if (uris == null) {
+            mNotifyCoalescer.notifyChange(uri);
+        } else {
+            mNotifyCoalescer.recordDeferred();
+            uris.add(uri);
+        }
+    }
+
     /**
      * 解析查询条件，添加额外的 AND 条件
      * @param selection 原始查询条件
@@ -347,6 +564,75 @@ public class NotesProvider extends ContentProvider {
         return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
     }
 
+    /**
+     * 把 URI 中的 ID 作为第一个绑定参数放在查询条件参数之前，
+     * 这样同一类单行操作的 SQL 文本保持不变，可以复用连接中已编译的语句
+     * @param id URI 中的 ID
+     * @param selectionArgs 原始查询条件参数
+     * @return 合并后的参数
+     */
+    private static String[] prependArg(String id, String[] selectionArgs) {
+        if (selectionArgs == null || selectionArgs.length == 0) {
+            return new String[] { id };
+        }
+        String[] args = new String[selectionArgs.length + 1];
+        args[0] = id;
+        System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        return args;
+    }
+
+    /**
+     * 获取缓存的预编译语句，数据库实例变化时丢弃旧的缓存
+     * 语句在绑定参数和执行期间需要由调用方对其加锁
+     * @param db 数据库实例
+     * @param sql SQL 文本
+     * @return 预编译语句
+     */
+    private synchronized SQLiteStatement getStatement(SQLiteDatabase db, String sql) {
+        if (db != mStatementDb) {
+            for (SQLiteStatement statement : mStatementCache.values()) {
+                statement.close();
+            }
+            mStatementCache.clear();
+            mStatementDb = db;
+        }
+        SQLiteStatement statement = mStatementCache.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            mStatementCache.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * 将用户输入转换为全文检索的 MATCH 表达式，每个关键词都按前缀匹配
+     * @param searchString 用户输入的关键词
+     * @return MATCH 表达式；若关键词包含分词器无法切分的字符（如中文）则返回 null
+     */
+    private String buildMatchExpression(String searchString) {
+        StringBuilder match = new StringBuilder();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= searchString.length(); i++) {
+            char ch = i < searchString.length() ? searchString.charAt(i) : ' ';
+            if (ch < 0x80 && Character.isLetterOrDigit(ch)) {
+                term.append(ch);
+            } else if (ch < 0x80) {
+                // 空白和标点都作为关键词分隔符，同时去掉 FTS 语法字符
+                if (term.length() > 0) {
+                    if (match.length() > 0) {
+                        match.append(' ');
+                    }
+                    match.append(term).append('*');
+                    term.setLength(0);
+                }
+            } else {
+                // 默认分词器不会切分非 ASCII 文本，退回到 LIKE 匹配
+                return null;
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
     /**
      * 增加笔记的版本号
      * @param id 笔记的 ID
@@ -354,6 +640,17 @@ public class NotesProvider extends ContentProvider {
      * @param selectionArgs 更新条件参数
      */
     private void increaseNoteVersion(long id, String selection, String[] selectionArgs) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        if (id > 0 && TextUtils.isEmpty(selection)) {
+            // 编辑保存时的常见情况，直接复用预编译语句
+            SQLiteStatement statement = getStatement(db, INCREASE_NOTE_VERSION_BY_ID_SQL);
+            synchronized (statement) {
+                statement.bindLong(1, id);
+                statement.execute();
+            }
+            return;
+        }
+
         StringBuilder sql = new StringBuilder(120);
         sql.append("UPDATE ");
         sql.append(TABLE.NOTE);
@@ -365,17 +662,42 @@ public class NotesProvider extends ContentProvider {
             sql.append(" WHERE ");
         }
         if (id > 0) {
-            sql.append(NoteColumns.ID + "=" + String.valueOf(id));
+            sql.append(NoteColumns.ID + "=?");
+            selectionArgs = prependArg(String.valueOf(id), selectionArgs);
         }
         if (!TextUtils.isEmpty(selection)) {
-            String selectString = id > 0 ? parseSelection(selection) : selection;
-            for (String args : selectionArgs) {
-                selectString = selectString.replaceFirst("\\?", args);
-            }
-            sql.append(selectString);
+            // 条件参数通过绑定传入，而不是拼接进 SQL 文本
+            sql.append(id > 0 ? parseSelection(selection) : selection);
         }
 
-        mHelper.getWritableDatabase().execSQL(sql.toString());
+        db.execSQL(sql.toString(), selectionArgs != null ? selectionArgs : new Object[0]);
+    }
+
+    /**
+     * 执行不对应具体 URI 的维护操作
+     * @param method 方法名，如 {@link Notes#METHOD_CHECKPOINT}
+     * @param arg 方法参数
+     * @param extras 额外参数
+     * @return 执行结果，{@link Notes#METHOD_NOTIFY_STATS} 返回通知计数，
+     *         {@link Notes#METHOD_MAINTENANCE} 返回整理结果，其他方法返回 null
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (Notes.METHOD_CHECKPOINT.equals(method)) {
+            mHelper.checkpoint();
+            return null;
+        }
+        if (Notes.METHOD_MAINTENANCE.equals(method)) {
+            return mHelper.runMaintenance();
+        }
+        if (Notes.METHOD_NOTIFY_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putLong(Notes.NOTIFY_STATS_REQUESTED, mNotifyCoalescer.getRequestedCount());
+            stats.putLong(Notes.NOTIFY_STATS_DELIVERED, mNotifyCoalescer.getDeliveredCount());
+            stats.putLong(Notes.NOTIFY_STATS_SUPPRESSED, mNotifyCoalescer.getSuppressedCount());
+            return stats;
+        }
+        throw new IllegalArgumentException("Unknown method " + method);
     }
 
     /**
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// 声明包名
+package net.micode.notes.data;
+
+// 导入内容解析器类
+import android.content.ContentResolver;
+// 导入 URI 类
+import android.net.Uri;
+// 导入消息处理类
+import android.os.Handler;
+import android.os.Looper;
+
+// 导入集合类
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * 内容变化通知合并器。
+ * 同一时间窗口内对同一 URI 的多次变化只发送一次通知，
+ * 同步等大量写入时可以避免列表和小部件被反复重新查询。
+ */
+class NotifyCoalescer {
+    // 内容解析器，用于发送通知
+    private final ContentResolver mResolver;
+    // 在主线程上延迟发送通知
+    private final Handler mHandler;
+    // 合并窗口的长度（毫秒）
+    private final long mDelayMillis;
+    // 等待发送的 URI
+    private final HashSet<Uri> mPendingUris = new HashSet<Uri>();
+    // 是否已经安排了一次发送
+    private boolean mFlushScheduled;
+    // 收到的通知请求数
+    private long mRequestedCount;
+    // 实际发送的通知数
+    private long mDeliveredCount;
+
+    // 发送等待中的通知
+    private final Runnable mFlushRunnable = new Runnable() {
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * 构造函数
+     * @param resolver 内容解析器
+     * @param delayMillis 合并窗口的长度（毫秒）
+     */
+    NotifyCoalescer(ContentResolver resolver, long delayMillis) {
+        mResolver = resolver;
+        mDelayMillis = delayMillis;
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * 请求发送一次变化通知，在窗口结束时与其他请求一起发送
+     * @param uri 发生变化的 URI
+     */
+    synchronized void notifyChange(Uri uri) {
+        mRequestedCount++;
+        mPendingUris.add(uri);
+        scheduleFlush();
+    }
+
+    /**
+     * 记录一次被推迟到事务结束的通知请求，事务回滚时这些请求不会被发送
+     */
+    synchronized void recordDeferred() {
+        mRequestedCount++;
+    }
+
+    /**
+     * 发送事务提交后合并好的通知，对应的请求已由 {@link #recordDeferred()} 计数
+     * @param uris 发生变化的 URI
+     */
+    synchronized void notifyChanges(Collection<Uri> uris) {
+        if (uris.isEmpty()) {
+            return;
+        }
+        mPendingUris.addAll(uris);
+        scheduleFlush();
+    }
+
+    /**
+     * 立即发送所有等待中的通知
+     */
+    void flush() {
+        Uri[] uris;
+        synchronized (this) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+            uris = mPendingUris.toArray(new Uri[mPendingUris.size()]);
+            mPendingUris.clear();
+            mDeliveredCount += uris.length;
+        }
+        // 不持有锁发送通知，避免观察者回调时阻塞写入线程
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * @return 收到的通知请求数
+     */
+    synchronized long getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    /**
+     * @return 实际发送的通知数
+     */
+    synchronized long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    /**
+     * @return 被合并或因事务回滚而没有发送的通知数，不包括仍在等待中的通知
+     */
+    synchronized long getSuppressedCount() {
+        return mRequestedCount - mDeliveredCount - mPendingUris.size();
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, mDelayMillis);
+        }
+    }
+}
@@ -22,6 +22,8 @@ import android.database.Cursor;
 // 导入 Android 日志工具类，用于记录日志信息
 import android.util.Log;
 
+// 导入笔记列定义类
+import net.micode.notes.data.Notes.NoteColumns;
 // 导入自定义的 GTask 字符串工具类，包含相关常量和字符串处理方法
 import net.micode.notes.tool.GTaskStringUtils;
 
@@ -62,6 +64,45 @@ public class MetaData extends Task {
         setName(GTaskStringUtils.META_NOTE_NAME);
     }
 
+    /**
+     * 用新的元数据信息替换旧的内容。
+     * 笔记每次保存都会改变修改时间，只有修改时间不同时保留旧的内容，不需要发送更新；
+     * 其他字段变化时修改时间随之更新，下载到其他设备时保持原来的修改时间
+     *
+     * @param gid 关联的 GID
+     * @param metaInfo 包含元数据信息的 JSON 对象
+     * @return 内容被替换时返回 true
+     */
+    public boolean updateMeta(String gid, JSONObject metaInfo) {
+        String oldNotes = getNotes();
+        if (oldNotes != null) {
+            try {
+                metaInfo.put(GTaskStringUtils.META_HEAD_GTASK_ID, gid);
+                String oldMeta = stripVolatileFields(new JSONObject(oldNotes.trim()));
+                String newMeta = stripVolatileFields(new JSONObject(metaInfo.toString()));
+                if (oldMeta.equals(newMeta)) {
+                    return false;
+                }
+            } catch (JSONException e) {
+                Log.w(TAG, "failed to compare meta, replace it");
+            }
+        }
+        setMeta(gid, metaInfo);
+        return true;
+    }
+
+    /**
+     * 去掉比较时忽略的字段：笔记的修改时间和旧版本写入的内容指纹
+     */
+    private static String stripVolatileFields(JSONObject meta) throws JSONException {
+        meta.remove(GTaskStringUtils.META_HEAD_CONTENT_HASH);
+        JSONObject note = meta.optJSONObject(GTaskStringUtils.META_HEAD_NOTE);
+        if (note != null) {
+            note.remove(NoteColumns.MODIFIED_DATE);
+        }
+        return meta.toString();
+    }
+
     /**
      * 获取关联的 GID。
      * 
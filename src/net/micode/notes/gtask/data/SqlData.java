@@ -18,12 +18,10 @@
 package net.micode.notes.gtask.data;
 
 // 导入 Android 系统相关类，用于处理内容解析、URI 操作、数据库游标等
-import android.content.ContentResolver;
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.util.Log;
 
 // 导入自定义的笔记数据相关类
@@ -32,8 +30,6 @@ import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
-// 导入自定义的异常类
-import net.micode.notes.gtask.exception.ActionFailureException;
 
 // 导入 JSON 处理相关类
 import org.json.JSONException;
@@ -62,8 +58,6 @@ public class SqlData {
     public static final int DATA_CONTENT_DATA_1_COLUMN = 3;
     public static final int DATA_CONTENT_DATA_3_COLUMN = 4;
 
-    // 内容解析器，用于与 ContentProvider 进行交互，实现对数据库的操作
-    private ContentResolver mContentResolver;
     // 标识数据是否为新创建的
     private boolean mIsCreate;
     // 数据的 ID
@@ -81,12 +75,8 @@ public class SqlData {
 
     /**
      * 构造函数，用于创建一个新的 SqlData 对象。
-     *
-     * @param context 上下文对象，用于获取 ContentResolver
      */
-    public SqlData(Context context) {
-        // 获取上下文的 ContentResolver
-        mContentResolver = context.getContentResolver();
+    public SqlData() {
         // 标记数据为新创建
         mIsCreate = true;
         // 初始化数据 ID 为无效 ID
@@ -106,12 +96,9 @@ public class SqlData {
     /**
      * 构造函数，用于从数据库游标中加载数据创建 SqlData 对象。
      *
-     * @param context 上下文对象，用于获取 ContentResolver
-     * @param c       数据库游标，包含要加载的数据
+     * @param c 数据库游标，包含要加载的数据
      */
-    public SqlData(Context context, Cursor c) {
-        // 获取上下文的 ContentResolver
-        mContentResolver = context.getContentResolver();
+    public SqlData(Cursor c) {
         // 标记数据不是新创建的
         mIsCreate = false;
         // 从游标中加载数据
@@ -221,60 +208,141 @@ public class SqlData {
     }
 
     /**
-     * 将数据提交到数据库，根据数据是否为新创建执行插入或更新操作。
+     * 获取保存在远程元数据中的数据内容，省略与默认值相同的字段。
+     * 文本数据的内容就是任务名称，不再重复保存；MIME 类型总是写入，旧版本读取时需要
      *
-     * @param noteId         笔记的 ID
+     * @return 包含数据内容的 JSON 对象，如果数据是新创建的则返回 null
+     * @throws JSONException 如果创建 JSON 对象时发生错误
+     */
+    public JSONObject getMetaContent() throws JSONException {
+        if (mIsCreate) {
+            Log.e(TAG, "it seems that we haven't created this in database yet");
+            return null;
+        }
+        JSONObject js = new JSONObject();
+        js.put(DataColumns.ID, mDataId);
+        js.put(DataColumns.MIME_TYPE, mDataMimeType);
+        if (!DataConstants.NOTE.equals(mDataMimeType) && mDataContent.length() > 0) {
+            js.put(DataColumns.CONTENT, mDataContent);
+        }
+        if (mDataContentData1 != 0) {
+            js.put(DataColumns.DATA1, mDataContentData1);
+        }
+        if (mDataContentData3.length() > 0) {
+            js.put(DataColumns.DATA3, mDataContentData3);
+        }
+        return js;
+    }
+
+    /**
+     * 将数据的插入或更新操作加入批量写入，操作在批量写入时才执行。
+     *
+     * @param batch          批量写入
+     * @param noteId         笔记的 ID，笔记的 ID 由插入操作生成时不使用
+     * @param noteIndex      笔记的插入操作在批量中的位置，笔记的 ID 已经确定时为 -1
      * @param validateVersion 是否验证版本
      * @param version        版本号
+     * @return 需要取得生成 ID 的插入操作在批量中的位置，数据已经存在或 ID 已经确定时返回 -1
      */
-    public void commit(long noteId, boolean validateVersion, long version) {
+    public int commit(SqlWriteBatch batch, long noteId, int noteIndex, boolean validateVersion,
+            long version) {
+        int index = -1;
         // 如果数据是新创建的
         if (mIsCreate) {
             // 如果数据 ID 为无效 ID 且差异数据中包含 ID 字段，则移除该字段
             if (mDataId == INVALID_ID && mDiffDataValues.containsKey(DataColumns.ID)) {
                 mDiffDataValues.remove(DataColumns.ID);
             }
-            // 将笔记 ID 添加到差异数据中
-            mDiffDataValues.put(DataColumns.NOTE_ID, noteId);
-            // 执行插入操作，将差异数据插入到数据库中
-            Uri uri = mContentResolver.insert(Notes.CONTENT_DATA_URI, mDiffDataValues);
-            try {
-                // 从插入操作返回的 URI 中获取新插入数据的 ID
-                mDataId = Long.valueOf(uri.getPathSegments().get(1));
-            } catch (NumberFormatException e) {
-                // 如果获取 ID 时发生错误，记录错误日志并抛出异常
-                Log.e(TAG, "Get note id error :" + e.toString());
-                throw new ActionFailureException("create note failed");
+            ContentProviderOperation.Builder builder = ContentProviderOperation
+                    .newInsert(Notes.CONTENT_DATA_URI).withValues(mDiffDataValues);
+            if (noteIndex >= 0) {
+                // 笔记和数据在同一批中插入，笔记 ID 取自笔记插入操作的结果
+                builder.withValueBackReference(DataColumns.NOTE_ID, noteIndex);
+            } else {
+                builder.withValue(DataColumns.NOTE_ID, noteId);
+            }
+            index = batch.add(builder.build());
+            if (mDataId != INVALID_ID) {
+                // 数据的 ID 来自远程元数据，插入后不需要取回
+                index = -1;
             }
         } else {
             // 如果数据不是新创建的，且差异数据不为空
             if (mDiffDataValues.size() > 0) {
-                // 用于记录更新操作的结果
-                int result = 0;
-                // 如果不验证版本
-                if (!validateVersion) {
-                    // 执行更新操作，不进行版本验证
-                    result = mContentResolver.update(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mDataId), mDiffDataValues, null, null);
-                } else {
-                    // 如果验证版本，执行带版本验证的更新操作
-                    result = mContentResolver.update(ContentUris.withAppendedId(
-                            Notes.CONTENT_DATA_URI, mDataId), mDiffDataValues,
-                            " ? in (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
-                                    + " WHERE " + NoteColumns.VERSION + "=?)", new String[] {
+                ContentProviderOperation.Builder builder = ContentProviderOperation
+                        .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, mDataId))
+                        .withValues(mDiffDataValues);
+                // 如果验证版本，只在笔记的版本没有变化时更新
+                if (validateVersion) {
+                    builder.withSelection(" ? in (SELECT " + NoteColumns.ID + " FROM "
+                            + TABLE.NOTE + " WHERE " + NoteColumns.VERSION + "=?)",
+                            new String[] {
                                     String.valueOf(noteId), String.valueOf(version)
                             });
                 }
-                // 如果更新操作未生效，记录警告日志
-                if (result == 0) {
-                    Log.w(TAG, "there is no update. maybe user updates note when syncing");
-                }
+                batch.add(builder.build());
             }
         }
         // 清空差异数据
         mDiffDataValues.clear();
         // 标记数据不再是新创建的
         mIsCreate = false;
+        return index;
+    }
+
+    /**
+     * 设置批量写入后新插入数据的 ID。
+     *
+     * @param id 插入操作返回的 ID
+     */
+    void setInsertedId(long id) {
+        mDataId = id;
+    }
+
+    /**
+     * @return 是否为文本数据
+     */
+    boolean isTextData() {
+        return DataConstants.NOTE.equals(mDataMimeType);
+    }
+
+    /**
+     * @return 数据的内容
+     */
+    String getContentText() {
+        return mDataContent;
+    }
+
+    /**
+     * 修改数据的内容，随下一次提交写入。
+     *
+     * @param content 新的内容
+     */
+    void setContentText(String content) {
+        if (mIsCreate || !mDataContent.equals(content)) {
+            mDiffDataValues.put(DataColumns.CONTENT, content);
+        }
+        mDataContent = content;
+    }
+
+    /**
+     * @return 数据的 DATA1 字段值
+     */
+    long getData1() {
+        return mDataContentData1;
+    }
+
+    /**
+     * 把数据内容加入笔记的内容指纹，不包括数据 ID。
+     *
+     * @param hash 之前的指纹
+     * @return 加入数据内容后的指纹
+     */
+    long hashContent(long hash) {
+        hash = SqlNote.hash(hash, mDataMimeType);
+        hash = SqlNote.hash(hash, mDataContent);
+        hash = SqlNote.hash(hash, mDataContentData1);
+        return SqlNote.hash(hash, mDataContentData3);
     }
 
     /**
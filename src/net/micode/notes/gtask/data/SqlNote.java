@@ -19,16 +19,19 @@ package net.micode.notes.gtask.data;
 
 // 导入 AppWidgetManager 类，用于管理应用小部件
 import android.appwidget.AppWidgetManager;
+// 导入 ContentProviderOperation 和 ContentProviderResult 类，用于批量写入
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 // 导入 ContentResolver 类，用于与内容提供者进行交互
 import android.content.ContentResolver;
+// 导入 ContentUris 类，用于从 URI 中取得插入行的 ID
+import android.content.ContentUris;
 // 导入 ContentValues 类，用于存储键值对，通常用于数据库操作
 import android.content.ContentValues;
 // 导入 Context 类，提供对应用程序环境的访问
 import android.content.Context;
 // 导入 Cursor 类，用于遍历数据库查询结果
 import android.database.Cursor;
-// 导入 Uri 类，用于表示统一资源标识符
-import android.net.Uri;
 // 导入 Log 类，用于记录日志信息
 import android.util.Log;
 
@@ -69,7 +72,7 @@ public class SqlNote {
             NoteColumns.NOTES_COUNT, NoteColumns.PARENT_ID, NoteColumns.SNIPPET, NoteColumns.TYPE,
             NoteColumns.WIDGET_ID, NoteColumns.WIDGET_TYPE, NoteColumns.SYNC_ID,
             NoteColumns.LOCAL_MODIFIED, NoteColumns.ORIGIN_PARENT_ID, NoteColumns.GTASK_ID,
-            NoteColumns.VERSION
+            NoteColumns.VERSION, NoteColumns.CONTENT_HASH
     };
     // 投影列数组中 ID 列的索引
     public static final int ID_COLUMN = 0;
@@ -105,6 +108,12 @@ public class SqlNote {
     public static final int GTASK_ID_COLUMN = 15;
     // 投影列数组中版本列的索引
     public static final int VERSION_COLUMN = 16;
+    // 投影列数组中内容指纹列的索引
+    public static final int CONTENT_HASH_COLUMN = 17;
+
+    // 64 位 FNV-1a 哈希的初始值和乘数，用于计算内容指纹
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
 
     // 应用程序上下文
     private Context mContext;
@@ -138,6 +147,8 @@ public class SqlNote {
     private long mOriginParent;
     // 笔记的版本
     private long mVersion;
+    // 上次同步时的内容指纹
+    private long mContentHash;
     // 存储笔记差异值的 ContentValues 对象
     private ContentValues mDiffNoteValues;
     // 存储笔记相关数据的列表
@@ -245,6 +256,7 @@ public class SqlNote {
         mWidgetId = c.getInt(WIDGET_ID_COLUMN);
         mWidgetType = c.getInt(WIDGET_TYPE_COLUMN);
         mVersion = c.getLong(VERSION_COLUMN);
+        mContentHash = c.getLong(CONTENT_HASH_COLUMN);
     }
 
     /**
@@ -264,7 +276,7 @@ public class SqlNote {
                     return;
                 }
                 while (c.moveToNext()) {
-                    SqlData data = new SqlData(mContext, c);
+                    SqlData data = new SqlData(c);
                     mDataList.add(data);
                 }
             } else {
@@ -352,12 +364,14 @@ public class SqlNote {
                 }
                 mParentId = parentId;
 
-                String snippet = note.has(NoteColumns.SNIPPET) ? note
-                        .getString(NoteColumns.SNIPPET) : "";
-                if (mIsCreate || !mSnippet.equals(snippet)) {
-                    mDiffNoteValues.put(NoteColumns.SNIPPET, snippet);
+                // 笔记的摘要由数据内容生成，元数据中没有摘要时保持不变
+                if (note.has(NoteColumns.SNIPPET)) {
+                    String snippet = note.getString(NoteColumns.SNIPPET);
+                    if (mIsCreate || !mSnippet.equals(snippet)) {
+                        mDiffNoteValues.put(NoteColumns.SNIPPET, snippet);
+                    }
+                    mSnippet = snippet;
                 }
-                mSnippet = snippet;
 
                 int type = note.has(NoteColumns.TYPE) ? note.getInt(NoteColumns.TYPE)
                         : Notes.TYPE_NOTE;
@@ -400,7 +414,7 @@ public class SqlNote {
                     }
 
                     if (sqlData == null) {
-                        sqlData = new SqlData(mContext);
+                        sqlData = new SqlData();
                         mDataList.add(sqlData);
                     }
 
@@ -468,6 +482,60 @@ public class SqlNote {
         return null;
     }
 
+    /**
+     * 获取保存在远程元数据中的笔记内容。
+     * 结构与 {@link #getContent()} 相同，旧版本也能读取，但只写入 {@link #setContent(JSONObject)}
+     * 不能从别处得到的字段：省略与默认值相同的字段、由数据内容生成的摘要、
+     * 由所在任务列表决定的父 ID，以及与任务名称相同的文本内容；另外加入内容指纹
+     *
+     * @return 元数据内容，笔记未创建或不是笔记类型时返回 null
+     */
+    public JSONObject getMetaContent() {
+        if (mIsCreate || mType != Notes.TYPE_NOTE) {
+            return null;
+        }
+        try {
+            JSONObject js = new JSONObject();
+            JSONObject note = new JSONObject();
+            note.put(NoteColumns.ID, mId);
+            note.put(NoteColumns.TYPE, mType);
+            // 默认背景颜色取决于设备的设置，总是写入
+            note.put(NoteColumns.BG_COLOR_ID, mBgColorId);
+            note.put(NoteColumns.CREATED_DATE, mCreatedDate);
+            note.put(NoteColumns.MODIFIED_DATE, mModifiedDate);
+            if (mAlertDate != 0) {
+                note.put(NoteColumns.ALERTED_DATE, mAlertDate);
+            }
+            if (mHasAttachment != 0) {
+                note.put(NoteColumns.HAS_ATTACHMENT, mHasAttachment);
+            }
+            if (mWidgetId != AppWidgetManager.INVALID_APPWIDGET_ID) {
+                note.put(NoteColumns.WIDGET_ID, mWidgetId);
+            }
+            if (mWidgetType != Notes.TYPE_WIDGET_INVALIDE) {
+                note.put(NoteColumns.WIDGET_TYPE, mWidgetType);
+            }
+            if (mOriginParent != 0) {
+                note.put(NoteColumns.ORIGIN_PARENT_ID, mOriginParent);
+            }
+            js.put(GTaskStringUtils.META_HEAD_NOTE, note);
+
+            JSONArray dataArray = new JSONArray();
+            for (SqlData sqlData : mDataList) {
+                JSONObject data = sqlData.getMetaContent();
+                if (data != null) {
+                    dataArray.put(data);
+                }
+            }
+            js.put(GTaskStringUtils.META_HEAD_DATA, dataArray);
+            return js;
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+        }
+        return null;
+    }
+
     /**
      * 设置笔记的父 ID。
      *
@@ -499,6 +567,135 @@ public class SqlNote {
         return mId;
     }
 
+    /**
+     * 获取笔记所有数据行的 ID，新插入的数据行在提交后才有 ID。
+     *
+     * @return 数据行的 ID
+     */
+    public ArrayList<Long> getDataIds() {
+        ArrayList<Long> ids = new ArrayList<Long>(mDataList.size());
+        for (SqlData sqlData : mDataList) {
+            ids.add(sqlData.getId());
+        }
+        return ids;
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * 笔记内容是否与上次同步时相同。
+     * 指纹只包括会同步到远程的内容，不包括修改时间、版本等每次保存都会变化的字段
+     *
+     * @return 有上次同步的指纹且与当前内容一致时返回 true
+     */
+    public boolean isContentUnchanged() {
+        return mContentHash != 0 && mContentHash == computeContentHash();
+    }
+
+    /**
+     * 本地笔记与远程节点一致时调用，把当前内容的指纹和作为合并基准的文本加入修改，
+     * 随下一次提交写入。指纹没有变化时文本也没有变化，不再重复写入
+     */
+    public void recordSyncedContent() {
+        long hash = computeContentHash();
+        if (mIsCreate || hash != mContentHash) {
+            mDiffNoteValues.put(NoteColumns.CONTENT_HASH, hash);
+            String text = getNoteText();
+            mDiffNoteValues.put(NoteColumns.SYNC_BASE, text != null ? text : "");
+            mContentHash = hash;
+        }
+    }
+
+    /**
+     * 获取笔记的文本，即文本数据的内容
+     *
+     * @return 笔记的文本，不是笔记类型或没有文本数据时返回 null
+     */
+    public String getNoteText() {
+        SqlData textData = getTextData();
+        return textData != null ? textData.getContentText() : null;
+    }
+
+    /**
+     * 修改笔记的文本，随下一次提交写入
+     *
+     * @param text 新的文本
+     */
+    public void setNoteText(String text) {
+        SqlData textData = getTextData();
+        if (textData == null) {
+            throw new ActionFailureException("note has no text data");
+        }
+        textData.setContentText(text);
+    }
+
+    /**
+     * 获取笔记文本的模式：普通文本或清单
+     *
+     * @return 文本数据的模式，没有文本数据时返回 0
+     */
+    public long getNoteTextMode() {
+        SqlData textData = getTextData();
+        return textData != null ? textData.getData1() : 0;
+    }
+
+    private SqlData getTextData() {
+        if (mType != Notes.TYPE_NOTE) {
+            return null;
+        }
+        for (SqlData sqlData : mDataList) {
+            if (sqlData.isTextData()) {
+                return sqlData;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 计算笔记内容的指纹。笔记的摘要由数据内容生成，只有文件夹的摘要（即名称）计入指纹
+     */
+    private long computeContentHash() {
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, mType);
+        hash = hash(hash, mParentId);
+        hash = hash(hash, mAlertDate);
+        hash = hash(hash, mBgColorId);
+        hash = hash(hash, mHasAttachment);
+        hash = hash(hash, mWidgetId);
+        hash = hash(hash, mWidgetType);
+        if (mType == Notes.TYPE_NOTE) {
+            for (SqlData sqlData : mDataList) {
+                hash = sqlData.hashContent(hash);
+            }
+        } else {
+            hash = hash(hash, mSnippet);
+        }
+        // 0 表示没有指纹
+        return hash == 0 ? 1 : hash;
+    }
+
+    static long hash(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    static long hash(long hash, String value) {
+        if (value == null) {
+            return hash(hash, -1L);
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        // 加入长度，区分相邻字段的边界
+        return hash(hash, value.length());
+    }
+
     public long getParentId() {
         return mParentId;
     }
@@ -511,27 +708,68 @@ public class SqlNote {
         return mType == Notes.TYPE_NOTE;
     }
 
+    /**
+     * 立即提交笔记和数据的修改
+     *
+     * @param validateVersion 是否只在笔记的版本没有变化时更新
+     */
     public void commit(boolean validateVersion) {
+        SqlWriteBatch batch = new SqlWriteBatch(mContentResolver);
+        commit(validateVersion, batch);
+        batch.flush();
+    }
+
+    /**
+     * 把笔记和数据的修改加入批量写入。
+     * 需要由内容提供者生成 ID 的插入连同之前积累的修改立即写入，以便取得生成的 ID；
+     * 更新和已经确定 ID 的插入留在批量中，和其他笔记的修改一起在一个事务中写入。
+     * 提交后不再从数据库重新加载，内存中的内容已经和写入的修改一致
+     *
+     * @param validateVersion 是否只在笔记的版本没有变化时更新
+     * @param batch 批量写入
+     */
+    public void commit(boolean validateVersion, SqlWriteBatch batch) {
+        commit(validateVersion, batch, true);
+    }
+
+    /**
+     * 把笔记和数据的修改加入批量写入
+     *
+     * @param validateVersion 是否只在笔记的版本没有变化时更新
+     * @param batch 批量写入
+     * @param itemDone 这条笔记的修改是否已经全部加入；为 false 时之后还会再次提交这条笔记，
+     *            不计入批量的笔记数
+     */
+    public void commit(boolean validateVersion, SqlWriteBatch batch, boolean itemDone) {
         if (mIsCreate) {
             if (mId == INVALID_ID && mDiffNoteValues.containsKey(NoteColumns.ID)) {
                 mDiffNoteValues.remove(NoteColumns.ID);
             }
 
-            Uri uri = mContentResolver.insert(Notes.CONTENT_NOTE_URI, mDiffNoteValues);
-            try {
-                mId = Long.valueOf(uri.getPathSegments().get(1));
-            } catch (NumberFormatException e) {
-                Log.e(TAG, "Get note id error :" + e.toString());
-                throw new ActionFailureException("create note failed");
-            }
-            if (mId == 0) {
-                throw new IllegalStateException("Create thread id failed");
-            }
-
-            if (mType == Notes.TYPE_NOTE) {
-                for (SqlData sqlData : mDataList) {
-                    sqlData.commit(mId, false, -1);
+            int noteIndex = batch.add(ContentProviderOperation
+                    .newInsert(Notes.CONTENT_NOTE_URI).withValues(mDiffNoteValues).build());
+            // 笔记的 ID 来自远程元数据并且在本地没有被使用时，数据直接引用这个 ID
+            boolean idAssigned = mId != INVALID_ID;
+            int[] dataIndexes = addDataOperations(batch, idAssigned ? -1 : noteIndex, false);
+            if (idAssigned && dataIndexes.length == 0) {
+                // 所有 ID 都已经确定，不需要立即写入
+                if (itemDone) {
+                    batch.itemDone();
                 }
+            } else {
+                ContentProviderResult[] results = batch.flush();
+                if (!idAssigned) {
+                    try {
+                        mId = ContentUris.parseId(results[noteIndex].uri);
+                    } catch (NumberFormatException e) {
+                        Log.e(TAG, "Get note id error :" + e.toString());
+                        throw new ActionFailureException("create note failed");
+                    }
+                    if (mId == 0) {
+                        throw new IllegalStateException("Create thread id failed");
+                    }
+                }
+                setInsertedDataIds(dataIndexes, results);
             }
         } else {
             if (mId <= 0 && mId != Notes.ID_ROOT_FOLDER && mId != Notes.ID_CALL_RECORD_FOLDER) {
@@ -539,38 +777,66 @@ public class SqlNote {
                 throw new IllegalStateException("Try to update note with invalid id");
             }
             if (mDiffNoteValues.size() > 0) {
+                // 更新时内容提供者会把版本加一，与数据库中的版本保持一致
                 mVersion ++;
-                int result = 0;
                 if (!validateVersion) {
-                    result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
-                            + NoteColumns.ID + "=?)", new String[] {
-                        String.valueOf(mId)
-                    });
+                    batch.add(ContentProviderOperation.newUpdate(Notes.CONTENT_NOTE_URI)
+                            .withValues(mDiffNoteValues)
+                            .withSelection("(" + NoteColumns.ID + "=?)", new String[] {
+                                String.valueOf(mId)
+                            }).build());
                 } else {
-                    result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
-                            + NoteColumns.ID + "=?) AND (" + NoteColumns.VERSION + "<=?)",
-                            new String[] {
+                    batch.add(ContentProviderOperation.newUpdate(Notes.CONTENT_NOTE_URI)
+                            .withValues(mDiffNoteValues)
+                            .withSelection("(" + NoteColumns.ID + "=?) AND ("
+                                    + NoteColumns.VERSION + "<=?)", new String[] {
                                     String.valueOf(mId), String.valueOf(mVersion)
-                            });
-                }
-                if (result == 0) {
-                    Log.w(TAG, "there is no update. maybe user updates note when syncing");
+                            }).build());
                 }
             }
 
-            if (mType == Notes.TYPE_NOTE) {
-                for (SqlData sqlData : mDataList) {
-                    sqlData.commit(mId, validateVersion, mVersion);
-                }
+            int[] dataIndexes = addDataOperations(batch, -1, validateVersion);
+            if (dataIndexes.length > 0) {
+                setInsertedDataIds(dataIndexes, batch.flush());
+            } else if (itemDone) {
+                batch.itemDone();
             }
         }
 
-        // refresh local info
-        loadFromCursor(mId);
-        if (mType == Notes.TYPE_NOTE)
-            loadDataContent();
-
         mDiffNoteValues.clear();
         mIsCreate = false;
     }
+
+    /**
+     * 把所有数据的修改加入批量写入
+     *
+     * @return 需要取得生成 ID 的插入操作在批量中的位置，没有这样的插入时返回空数组
+     */
+    private int[] addDataOperations(SqlWriteBatch batch, int noteIndex,
+            boolean validateVersion) {
+        if (mType != Notes.TYPE_NOTE) {
+            return new int[0];
+        }
+        int[] indexes = new int[mDataList.size()];
+        int count = 0;
+        for (int i = 0; i < mDataList.size(); i++) {
+            int index = mDataList.get(i).commit(batch, mId, noteIndex, validateVersion, mVersion);
+            indexes[i] = index;
+            if (index >= 0) {
+                count++;
+            }
+        }
+        return count > 0 ? indexes : new int[0];
+    }
+
+    /**
+     * 从批量写入的结果中取得新插入数据的 ID
+     */
+    private void setInsertedDataIds(int[] dataIndexes, ContentProviderResult[] results) {
+        for (int i = 0; i < dataIndexes.length; i++) {
+            if (dataIndexes[i] >= 0) {
+                mDataList.get(i).setInsertedId(ContentUris.parseId(results[dataIndexes[i]].uri));
+            }
+        }
+    }
 }
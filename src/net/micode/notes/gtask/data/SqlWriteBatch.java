@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.gtask.exception.ActionFailureException;
+
+import java.util.ArrayList;
+
+/**
+ * 同步期间的批量本地写入。
+ * 笔记和数据的修改先积累为操作列表，积累到指定数量的笔记后在一个事务中写入，
+ * 避免每条笔记单独提交事务。调用者在读取可能受影响的行之前必须先调用 {@link #flush()}。
+ */
+public class SqlWriteBatch {
+    private static final String TAG = SqlWriteBatch.class.getSimpleName();
+
+    // 默认积累多少条笔记的修改后写入一次
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private final ContentResolver mContentResolver;
+
+    private final int mBatchSize;
+
+    // 还没有写入的操作
+    private final ArrayList<ContentProviderOperation> mOperations;
+
+    // 操作列表中已经完整加入修改的笔记数
+    private int mItemCount;
+
+    public SqlWriteBatch(ContentResolver resolver) {
+        this(resolver, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param resolver 内容解析器
+     * @param batchSize 积累多少条笔记的修改后自动写入
+     */
+    public SqlWriteBatch(ContentResolver resolver, int batchSize) {
+        mContentResolver = resolver;
+        mBatchSize = batchSize;
+        mOperations = new ArrayList<ContentProviderOperation>();
+    }
+
+    /**
+     * 加入一个操作
+     *
+     * @param operation 要执行的操作
+     * @return 操作在本批中的位置，可用于反向引用和取得执行结果
+     */
+    public int add(ContentProviderOperation operation) {
+        mOperations.add(operation);
+        return mOperations.size() - 1;
+    }
+
+    /**
+     * 一条笔记的修改已经全部加入，积累的笔记数达到批量大小时写入
+     */
+    public void itemDone() {
+        mItemCount++;
+        if (mItemCount >= mBatchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * 在一个事务中写入积累的所有操作
+     *
+     * @return 每个操作的执行结果，没有积累的操作时返回空数组
+     */
+    public ContentProviderResult[] flush() {
+        mItemCount = 0;
+        if (mOperations.isEmpty()) {
+            return new ContentProviderResult[0];
+        }
+
+        ContentProviderResult[] results;
+        try {
+            results = mContentResolver.applyBatch(Notes.AUTHORITY, mOperations);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("failed to write local changes");
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("failed to write local changes");
+        } finally {
+            mOperations.clear();
+        }
+
+        for (ContentProviderResult result : results) {
+            // 更新没有生效，笔记的版本在同步期间被用户修改
+            if (result.uri == null && result.count != null && result.count == 0) {
+                Log.w(TAG, "there is no update. maybe user updates note when syncing");
+            }
+        }
+        return results;
+    }
+}
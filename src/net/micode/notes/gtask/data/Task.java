@@ -451,6 +451,20 @@ public class Task extends Node {
         this.mNotes = notes;
     }
 
+    /**
+     * 设置任务的全局 ID，同时更新所属任务列表中按全局 ID 的索引。
+     *
+     * @param gid 任务的全局 ID
+     */
+    @Override
+    public void setGid(String gid) {
+        String oldGid = getGid();
+        super.setGid(gid);
+        if (mParent != null) {
+            mParent.onChildGidChanged(this, oldGid);
+        }
+    }
+
     /**
      * 设置前一个兄弟任务。
      *
@@ -38,6 +38,8 @@ import org.json.JSONObject;
 
 // 导入 java.util.ArrayList 类，用于创建动态数组
 import java.util.ArrayList;
+// 导入 java.util.HashMap 类，用于按子任务和全局 ID 建立索引
+import java.util.HashMap;
 
 /**
  * TaskList 类表示一个任务列表，继承自 Node 类。
@@ -53,6 +55,12 @@ public class TaskList extends Node {
     // 存储该任务列表下的子任务
     private ArrayList<Task> mChildren;
 
+    // 子任务在 mChildren 中的位置，键为子任务
+    private HashMap<Task, Integer> mChildPositions;
+
+    // 已有全局 ID 的子任务，键为全局 ID
+    private HashMap<String, Task> mChildrenByGid;
+
     /**
      * 构造函数，初始化 TaskList 对象。
      * 调用父类的构造函数，并初始化子任务列表和索引。
@@ -62,6 +70,8 @@ public class TaskList extends Node {
         super();
         // 初始化子任务列表
         mChildren = new ArrayList<Task>();
+        mChildPositions = new HashMap<Task, Integer>();
+        mChildrenByGid = new HashMap<String, Task>();
         // 初始化索引为 1
         mIndex = 1;
     }
@@ -344,10 +354,12 @@ public class TaskList extends Node {
     public boolean addChildTask(Task task) {
         boolean ret = false;
         // 检查任务是否为空且任务列表中不包含该任务
-        if (task != null && !mChildren.contains(task)) {
+        if (task != null && !mChildPositions.containsKey(task)) {
             // 尝试将任务添加到任务列表中
             ret = mChildren.add(task);
             if (ret) {
+                mChildPositions.put(task, mChildren.size() - 1);
+                indexChildGid(task);
                 // 设置任务的前一个兄弟任务
                 task.setPriorSibling(mChildren.isEmpty() ? null : mChildren
                         .get(mChildren.size() - 1));
@@ -374,11 +386,13 @@ public class TaskList extends Node {
         }
     
         // 获取任务在任务列表中的位置
-        int pos = mChildren.indexOf(task);
+        int pos = getChildTaskIndex(task);
         // 检查任务是否为空且任务列表中不包含该任务
         if (task != null && pos == -1) {
             // 在指定位置添加任务
             mChildren.add(index, task);
+            updateChildPositions(index);
+            indexChildGid(task);
     
             // 更新任务列表
             Task preTask = null;
@@ -406,12 +420,18 @@ public class TaskList extends Node {
     public boolean removeChildTask(Task task) {
         boolean ret = false;
         // 获取任务在任务列表中的索引
-        int index = mChildren.indexOf(task);
+        int index = getChildTaskIndex(task);
         if (index != -1) {
-            // 尝试从任务列表中移除任务
-            ret = mChildren.remove(task);
+            // 按位置从任务列表中移除任务
+            ret = mChildren.remove(index) == task;
     
             if (ret) {
+                mChildPositions.remove(task);
+                updateChildPositions(index);
+                if (task.getGid() != null && mChildrenByGid.get(task.getGid()) == task) {
+                    mChildrenByGid.remove(task.getGid());
+                }
+
                 // 重置任务的前一个兄弟任务和父任务列表
                 task.setPriorSibling(null);
                 task.setParent(null);
@@ -442,7 +462,7 @@ public class TaskList extends Node {
         }
     
         // 获取任务在任务列表中的位置
-        int pos = mChildren.indexOf(task);
+        int pos = getChildTaskIndex(task);
         if (pos == -1) {
             // 记录错误日志
             Log.e(TAG, "move child task: the task should in the list");
@@ -462,15 +482,7 @@ public class TaskList extends Node {
      * @return 如果找到则返回子任务，否则返回 null
      */
     public Task findChildTaskByGid(String gid) {
-        // 遍历子任务列表
-        for (int i = 0; i < mChildren.size(); i++) {
-            // 获取当前子任务
-            Task t = mChildren.get(i);
-            if (t.getGid().equals(gid)) {
-                return t;
-            }
-        }
-        return null;
+        return mChildrenByGid.get(gid);
     }
 
     /**
@@ -480,7 +492,8 @@ public class TaskList extends Node {
      * @return 子任务的索引，如果未找到则返回 -1
      */
     public int getChildTaskIndex(Task task) {
-        return mChildren.indexOf(task);
+        Integer position = mChildPositions.get(task);
+        return position == null ? -1 : position.intValue();
     }
 
     /**
@@ -506,16 +519,12 @@ public class TaskList extends Node {
      * @return 如果找到则返回子任务，否则返回 null
      */
     public Task getChilTaskByGid(String gid) {
-        // 遍历子任务列表
-        for (Task task : mChildren) {
-            if (task.getGid().equals(gid))
-                return task;
-        }
-        return null;
+        return mChildrenByGid.get(gid);
     }
 
     /**
      * 获取任务列表的所有子任务。
+     * 返回的列表只能读取，增删子任务要通过本类的方法，否则索引会失效。
      *
      * @return 包含所有子任务的 ArrayList
      */
@@ -523,6 +532,42 @@ public class TaskList extends Node {
         return this.mChildren;
     }
 
+    /**
+     * 子任务的全局 ID 改变时由子任务调用，更新按全局 ID 的索引。
+     *
+     * @param task 子任务
+     * @param oldGid 原来的全局 ID
+     */
+    void onChildGidChanged(Task task, String oldGid) {
+        if (oldGid != null && mChildrenByGid.get(oldGid) == task) {
+            mChildrenByGid.remove(oldGid);
+        }
+        if (mChildPositions.containsKey(task)) {
+            indexChildGid(task);
+        }
+    }
+
+    /**
+     * 把有全局 ID 的子任务加入按全局 ID 的索引。
+     * 新建的任务在服务器返回 ID 之前没有全局 ID，到时再通过 onChildGidChanged 加入
+     */
+    private void indexChildGid(Task task) {
+        if (task.getGid() != null) {
+            mChildrenByGid.put(task.getGid(), task);
+        }
+    }
+
+    /**
+     * 插入或移除子任务后，更新从指定位置开始的子任务的位置
+     *
+     * @param from 第一个位置发生变化的子任务的位置
+     */
+    private void updateChildPositions(int from) {
+        for (int i = from; i < mChildren.size(); i++) {
+            mChildPositions.put(mChildren.get(i), i);
+        }
+    }
+
     /**
      * 设置任务列表的索引。
      *
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.exception;
+
+/**
+ * 服务器明确拒绝了整个请求，请求中的操作都没有执行。
+ * 只有这种情况可以拆小后重新发送；其他失败时服务器可能已经执行了部分操作，
+ * 重新发送会重复创建或移动任务。
+ */
+public class ActionRejectedException extends ActionFailureException {
+    private static final long serialVersionUID = -3125386541387310251L;
+
+    public ActionRejectedException(String paramString) {
+        super(paramString);
+    }
+}
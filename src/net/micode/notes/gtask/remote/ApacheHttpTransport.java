@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.cookie.Cookie;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 基于 Apache HttpClient 的传输层实现。
+ * 使用线程安全的连接池保持长连接，请求时声明接受 gzip/deflate 压缩的响应。
+ */
+class ApacheHttpTransport implements HttpTransport {
+    private static final String TAG = ApacheHttpTransport.class.getSimpleName();
+
+    // 关闭空闲时间超过该值的连接（毫秒）
+    private static final long IDLE_CONNECTION_MILLIS = 60000;
+
+    private final Config mConfig;
+
+    private final DefaultHttpClient mHttpClient;
+
+    private final BasicCookieStore mCookieStore;
+
+    private final Stats mStats = new Stats();
+
+    ApacheHttpTransport(Config config) {
+        mConfig = config;
+        HttpParams httpParameters = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(httpParameters, config.connectTimeout);
+        HttpConnectionParams.setSoTimeout(httpParameters, config.socketTimeout);
+        // 使用线程安全的连接管理器，允许多个请求同时进行并复用连接
+        ConnManagerParams.setMaxTotalConnections(httpParameters, config.maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(httpParameters,
+                new ConnPerRouteBean(config.maxConnections));
+        HttpProtocolParams.setUseExpectContinue(httpParameters, false);
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        mHttpClient = new DefaultHttpClient(
+                new ThreadSafeClientConnManager(httpParameters, schemeRegistry), httpParameters);
+        mCookieStore = new BasicCookieStore();
+        mHttpClient.setCookieStore(mCookieStore);
+        // 只重试还没有发出的请求，已经发出的 POST 可能已被服务器执行
+        mHttpClient.setHttpRequestRetryHandler(
+                new DefaultHttpRequestRetryHandler(config.maxRetries, false));
+        // 服务器没有指定保持时间时使用配置的时间
+        mHttpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            private final DefaultConnectionKeepAliveStrategy mDefault =
+                    new DefaultConnectionKeepAliveStrategy();
+
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                long duration = mDefault.getKeepAliveDuration(response, context);
+                return duration > 0 ? duration : mConfig.keepAliveMillis;
+            }
+        });
+    }
+
+    public InputStream get(String url) throws IOException {
+        return execute(new HttpGet(url), 0);
+    }
+
+    public InputStream postForm(String url, Map<String, String> headers, String name,
+            String value) throws IOException {
+        HttpPost httpPost = new HttpPost(url);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            httpPost.setHeader(header.getKey(), header.getValue());
+        }
+        LinkedList<BasicNameValuePair> list = new LinkedList<BasicNameValuePair>();
+        list.add(new BasicNameValuePair(name, value));
+        // 服务器没有声明接受压缩的请求内容，请求内容不压缩发送
+        HttpEntity entity = new UrlEncodedFormEntity(list, "UTF-8");
+        httpPost.setEntity(entity);
+        return execute(httpPost, entity.getContentLength());
+    }
+
+    public List<String> getCookieNames() {
+        List<String> names = new ArrayList<String>();
+        for (Cookie cookie : mCookieStore.getCookies()) {
+            names.add(cookie.getName());
+        }
+        return names;
+    }
+
+    public Stats getStats() {
+        synchronized (mStats) {
+            Stats stats = new Stats();
+            stats.requestCount = mStats.requestCount;
+            stats.bytesSent = mStats.bytesSent;
+            stats.bytesReceived = mStats.bytesReceived;
+            stats.totalLatencyMillis = mStats.totalLatencyMillis;
+            stats.maxLatencyMillis = mStats.maxLatencyMillis;
+            return stats;
+        }
+    }
+
+    public void shutdown() {
+        mHttpClient.getConnectionManager().shutdown();
+    }
+
+    private InputStream execute(HttpUriRequest request, long bytesSent) throws IOException {
+        request.setHeader("Accept-Encoding", "gzip, deflate");
+        long start = SystemClock.elapsedRealtime();
+        HttpResponse response = mHttpClient.execute(request);
+        long latency = SystemClock.elapsedRealtime() - start;
+        synchronized (mStats) {
+            mStats.requestCount++;
+            mStats.bytesSent += Math.max(0, bytesSent);
+            mStats.totalLatencyMillis += latency;
+            mStats.maxLatencyMillis = Math.max(mStats.maxLatencyMillis, latency);
+        }
+        // 借机关闭长时间空闲的连接
+        mHttpClient.getConnectionManager().closeIdleConnections(IDLE_CONNECTION_MILLIS,
+                TimeUnit.MILLISECONDS);
+
+        HttpEntity entity = response.getEntity();
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode >= 400) {
+            // 读完错误响应，连接才能被复用
+            if (entity != null) {
+                entity.consumeContent();
+            }
+            throw new StatusException(statusCode, "status " + response.getStatusLine());
+        }
+        if (entity == null) {
+            throw new IOException("empty response, status " + response.getStatusLine());
+        }
+        InputStream input = new CountingInputStream(entity.getContent());
+        Header encoding = entity.getContentEncoding();
+        String contentEncoding = encoding != null ? encoding.getValue() : null;
+        if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
+            input = new GZIPInputStream(input);
+        } else if (contentEncoding != null && contentEncoding.equalsIgnoreCase("deflate")) {
+            input = new InflaterInputStream(input, new Inflater(true));
+        } else if (contentEncoding != null) {
+            Log.w(TAG, "unknown content encoding: " + contentEncoding);
+        }
+        return input;
+    }
+
+    /**
+     * 统计从网络读取的字节数
+     */
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(long n) {
+            synchronized (mStats) {
+                mStats.bytesReceived += n;
+            }
+        }
+    }
+}
@@ -62,6 +62,10 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
     private GTaskManager mTaskManager;
     // 同步完成监听器，用于在同步完成时回调
     private OnCompleteListener mOnCompleteListener;
+    // 是否为后台同步，后台同步不显示通知，失败时等待下一次调度
+    private volatile boolean mBackground;
+    // 同步开始的时间，同步成功时只清除这之前的本地修改记录
+    private long mStartTime;
 
     /**
      * 构造函数，初始化 GTaskASyncTask 实例。
@@ -70,8 +74,20 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
      * @param listener 同步完成监听器，用于在同步完成时回调
      */
     public GTaskASyncTask(Context context, OnCompleteListener listener) {
+        this(context, listener, false);
+    }
+
+    /**
+     * 构造函数，初始化 GTaskASyncTask 实例。
+     *
+     * @param context 上下文对象，用于获取系统服务和资源
+     * @param listener 同步完成监听器，用于在同步完成时回调
+     * @param background 是否为后台同步
+     */
+    public GTaskASyncTask(Context context, OnCompleteListener listener, boolean background) {
         mContext = context;
         mOnCompleteListener = listener;
+        mBackground = background;
         // 获取通知管理器系统服务
         mNotifiManager = (NotificationManager) mContext
                 .getSystemService(Context.NOTIFICATION_SERVICE);
@@ -79,6 +95,20 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
         mTaskManager = GTaskManager.getInstance();
     }
 
+    /**
+     * @return 是否为后台同步
+     */
+    public boolean isBackground() {
+        return mBackground;
+    }
+
+    /**
+     * 用户在后台同步进行时手动同步，把这次同步改为前台同步，之后显示通知
+     */
+    public void setForeground() {
+        mBackground = false;
+    }
+
     /**
      * 取消同步操作。
      */
@@ -105,6 +135,9 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
      * @param content 通知的内容
      */
     private void showNotification(int tickerId, String content) {
+        if (mBackground) {
+            return;
+        }
         // 创建通知对象
         Notification notification = new Notification(R.drawable.notification, mContext
                 .getString(tickerId), System.currentTimeMillis());
@@ -139,6 +172,7 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
      */
     @Override
     protected Integer doInBackground(Void... unused) {
+        mStartTime = System.currentTimeMillis();
         // 发布登录进度消息
         publishProgess(mContext.getString(R.string.sync_progress_login, NotesPreferenceActivity
                 .getSyncAccountName(mContext)));
@@ -173,6 +207,7 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
             showNotification(R.string.ticker_success, mContext.getString(
                     R.string.success_sync_account, mTaskManager.getSyncAccount()));
             NotesPreferenceActivity.setLastSyncTime(mContext, System.currentTimeMillis());
+            SyncScheduler.onSyncSucceeded(mContext, mStartTime);
         } else if (result == GTaskManager.STATE_NETWORK_ERROR) {
             // 如果是网络错误，显示网络错误通知
             showNotification(R.string.ticker_fail, mContext.getString(R.string.error_sync_network));
@@ -184,6 +219,11 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
             showNotification(R.string.ticker_cancel, mContext
                     .getString(R.string.error_sync_cancelled));
         }
+        if (mBackground && (result == GTaskManager.STATE_NETWORK_ERROR
+                || result == GTaskManager.STATE_SYNC_CANCELLED)) {
+            // 后台同步因网络中断或超时没有完成，稍后再试
+            SyncScheduler.defer(mContext);
+        }
         if (mOnCompleteListener != null) {
             // 如果有同步完成监听器，在新线程中调用其 onComplete 方法
             new Thread(new Runnable() {
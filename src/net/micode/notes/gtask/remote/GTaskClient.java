@@ -23,12 +23,18 @@ import android.accounts.AccountManager;
 import android.accounts.AccountManagerFuture;
 // 导入 Android 活动类
 import android.app.Activity;
+// 导入 Android 上下文类
+import android.content.Context;
 // 导入 Android 系统的 Bundle 类，用于在不同组件间传递数据
 import android.os.Bundle;
+// 导入 Android 系统时钟类，用于统计提交耗时
+import android.os.SystemClock;
 // 导入 Android 文本工具类
 import android.text.TextUtils;
 // 导入 Android 日志工具类
 import android.util.Log;
+// 导入 JSON 流解析的格式异常类
+import android.util.MalformedJsonException;
 
 // 导入自定义的 Google 任务数据相关类
 import net.micode.notes.gtask.data.Node;
@@ -36,42 +42,29 @@ import net.micode.notes.gtask.data.Task;
 import net.micode.notes.gtask.data.TaskList;
 // 导入自定义的异常类
 import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.ActionRejectedException;
 import net.micode.notes.gtask.exception.NetworkFailureException;
 // 导入自定义的 Google 任务字符串工具类
 import net.micode.notes.tool.GTaskStringUtils;
 // 导入自定义的笔记偏好设置活动类
 import net.micode.notes.ui.NotesPreferenceActivity;
 
-// 导入 Apache HTTP 客户端相关类
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
+// 导入 Apache HTTP 客户端的协议异常类
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.cookie.Cookie;
-import org.apache.http.impl.client.BasicCookieStore;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 // 导入 JSON 处理相关类
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-// 导入 Java 输入输出和压缩相关类
+// 导入 Java 输入输出和集合相关类
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 /**
  * GTaskClient 类用于与 Google 任务服务进行交互，包括登录、创建任务和任务列表等操作。
@@ -86,10 +79,32 @@ public class GTaskClient {
     private static final String GTASK_GET_URL = "https://mail.google.com/tasks/ig";
     // 用于向 Google 任务服务发送 POST 请求的 URL
     private static final String GTASK_POST_URL = "https://mail.google.com/tasks/r/ig";
+    // 同时进行的最大请求数，获取任务列表时并行请求
+    public static final int MAX_CONCURRENT_REQUESTS = 4;
+    // 一次请求最初提交的操作数
+    private static final int INITIAL_BATCH_ACTIONS = 20;
+    // 一次请求最多提交的操作数
+    private static final int MAX_BATCH_ACTIONS = 100;
+    // 一次请求中操作列表的最大字节数
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    // 服务器拒绝执行请求时返回的状态码：请求格式错误、请求过大
+    private static final int HTTP_BAD_REQUEST = 400;
+    private static final int HTTP_REQUEST_TOO_LARGE = 413;
+    // 默认的传输层工厂，连接 Google 任务服务
+    private static final HttpTransport.Factory DEFAULT_TRANSPORT_FACTORY =
+            new HttpTransport.Factory() {
+                public HttpTransport create(HttpTransport.Config config) {
+                    return new ApacheHttpTransport(config);
+                }
+            };
     // GTaskClient 的单例实例
     private static GTaskClient mInstance = null;
-    // Apache HTTP 客户端对象，用于发送 HTTP 请求
-    private DefaultHttpClient mHttpClient;
+    // HTTP 传输层，用于发送 HTTP 请求
+    private HttpTransport mTransport;
+    // 传输层的配置，下次登录时生效
+    private HttpTransport.Config mTransportConfig;
+    // 创建传输层的工厂，下次登录时生效
+    private HttpTransport.Factory mTransportFactory;
     // 当前使用的 GET 请求 URL
     private String mGetUrl;
     // 当前使用的 POST 请求 URL
@@ -106,12 +121,24 @@ public class GTaskClient {
     private Account mAccount;
     // 更新操作的 JSON 数组
     private JSONArray mUpdateArray;
+    // 更新操作数组序列化后的大致字节数
+    private int mUpdateBytes;
+    // 积累的操作中创建操作对应的节点，键为操作 ID
+    private HashMap<Integer, Node> mCreatedNodes;
+    // 当前一次请求最多提交的操作数，服务器拒绝时减小
+    private int mBatchSize;
+    // 提交结果中带回的节点最后修改时间，键为节点的 gid
+    private HashMap<String, Long> mCommittedModified;
+    // 本次同步中所有提交的耗时和传输量，包括添加操作时自动触发的提交
+    private SyncMetrics.Phase mCommitStats;
 
     /**
      * 私有构造函数，确保只能通过 getInstance 方法获取实例
      */
     private GTaskClient() {
-        mHttpClient = null;
+        mTransport = null;
+        mTransportConfig = new HttpTransport.Config();
+        mTransportFactory = DEFAULT_TRANSPORT_FACTORY;
         mGetUrl = GTASK_GET_URL;
         mPostUrl = GTASK_POST_URL;
         mClientVersion = -1;
@@ -120,6 +147,11 @@ public class GTaskClient {
         mActionId = 1;
         mAccount = null;
         mUpdateArray = null;
+        mUpdateBytes = 0;
+        mCreatedNodes = new HashMap<Integer, Node>();
+        mBatchSize = INITIAL_BATCH_ACTIONS;
+        mCommittedModified = new HashMap<String, Long>();
+        mCommitStats = new SyncMetrics.Phase();
     }
 
     /**
@@ -137,10 +169,10 @@ public class GTaskClient {
     /**
      * 登录 Google 任务服务
      *
-     * @param activity 当前活动
+     * @param context 上下文，是活动时可以弹出授权界面，后台同步时只能使用已经授权的令牌
      * @return 登录成功返回 true，失败返回 false
      */
-    public boolean login(Activity activity) {
+    public boolean login(Context context) {
         // 假设 cookie 有效期为 5 分钟，超过则需要重新登录
         final long interval = 1000 * 60 * 5;
         if (mLastLoginTime + interval < System.currentTimeMillis()) {
@@ -150,7 +182,7 @@ public class GTaskClient {
         // 切换账户后需要重新登录
         if (mLoggedin
                 && !TextUtils.equals(getSyncAccount().name, NotesPreferenceActivity
-                        .getSyncAccountName(activity))) {
+                        .getSyncAccountName(context))) {
             mLoggedin = false;
         }
 
@@ -161,7 +193,7 @@ public class GTaskClient {
 
         mLastLoginTime = System.currentTimeMillis();
         // 登录 Google 账户获取认证令牌
-        String authToken = loginGoogleAccount(activity, false);
+        String authToken = loginGoogleAccount(context, false);
         if (authToken == null) {
             Log.e(TAG, "login google account failed");
             return false;
@@ -177,7 +209,7 @@ public class GTaskClient {
             mGetUrl = url.toString() + "ig";
             mPostUrl = url.toString() + "r/ig";
 
-            if (tryToLoginGtask(activity, authToken)) {
+            if (tryToLoginGtask(context, authToken)) {
                 mLoggedin = true;
             }
         }
@@ -186,7 +218,7 @@ public class GTaskClient {
         if (!mLoggedin) {
             mGetUrl = GTASK_GET_URL;
             mPostUrl = GTASK_POST_URL;
-            if (!tryToLoginGtask(activity, authToken)) {
+            if (!tryToLoginGtask(context, authToken)) {
                 return false;
             }
         }
@@ -198,13 +230,13 @@ public class GTaskClient {
     /**
      * 登录 Google 账户并获取认证令牌
      *
-     * @param activity        当前活动
+     * @param context         上下文
      * @param invalidateToken 是否使现有令牌无效
      * @return 认证令牌，失败返回 null
      */
-    private String loginGoogleAccount(Activity activity, boolean invalidateToken) {
+    private String loginGoogleAccount(Context context, boolean invalidateToken) {
         String authToken;
-        AccountManager accountManager = AccountManager.get(activity);
+        AccountManager accountManager = AccountManager.get(context);
         Account[] accounts = accountManager.getAccountsByType("com.google");
 
         if (accounts.length == 0) {
@@ -212,7 +244,7 @@ public class GTaskClient {
             return null;
         }
 
-        String accountName = NotesPreferenceActivity.getSyncAccountName(activity);
+        String accountName = NotesPreferenceActivity.getSyncAccountName(context);
         Account account = null;
         for (Account a : accounts) {
             if (a.name.equals(accountName)) {
@@ -227,7 +259,8 @@ public class GTaskClient {
             return null;
         }
 
-        // 获取认证令牌
+        // 获取认证令牌，没有活动时需要用户授权的请求不会弹出界面，直接得不到令牌
+        Activity activity = context instanceof Activity ? (Activity) context : null;
         AccountManagerFuture<Bundle> accountManagerFuture = accountManager.getAuthToken(account,
                 "goanna_mobile", null, activity, null, null);
         try {
@@ -235,7 +268,7 @@ public class GTaskClient {
             authToken = authTokenBundle.getString(AccountManager.KEY_AUTHTOKEN);
             if (invalidateToken) {
                 accountManager.invalidateAuthToken("com.google", authToken);
-                loginGoogleAccount(activity, false);
+                loginGoogleAccount(context, false);
             }
         } catch (Exception e) {
             Log.e(TAG, "get auth token failed");
@@ -248,14 +281,14 @@ public class GTaskClient {
     /**
      * 尝试登录 Google 任务服务
      *
-     * @param activity  当前活动
+     * @param context   上下文
      * @param authToken 认证令牌
      * @return 登录成功返回 true，失败返回 false
      */
-    private boolean tryToLoginGtask(Activity activity, String authToken) {
+    private boolean tryToLoginGtask(Context context, String authToken) {
         if (!loginGtask(authToken)) {
             // 可能认证令牌过期，使令牌无效并重新尝试
-            authToken = loginGoogleAccount(activity, true);
+            authToken = loginGoogleAccount(context, true);
             if (authToken == null) {
                 Log.e(TAG, "login google account failed");
                 return false;
@@ -276,28 +309,21 @@ public class GTaskClient {
      * @return 登录成功返回 true，失败返回 false
      */
     private boolean loginGtask(String authToken) {
-        int timeoutConnection = 10000;
-        int timeoutSocket = 15000;
-        HttpParams httpParameters = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection);
-        HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);
-        mHttpClient = new DefaultHttpClient(httpParameters);
-        BasicCookieStore localBasicCookieStore = new BasicCookieStore();
-        mHttpClient.setCookieStore(localBasicCookieStore);
-        HttpProtocolParams.setUseExpectContinue(mHttpClient.getParams(), false);
+        // 重新登录时使用新的连接和 cookie
+        if (mTransport != null) {
+            mTransport.shutdown();
+        }
+        mTransport = mTransportFactory.create(mTransportConfig);
 
         // 发送登录请求
         try {
             String loginUrl = mGetUrl + "?auth=" + authToken;
-            HttpGet httpGet = new HttpGet(loginUrl);
-            HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            InputStream input = mTransport.get(loginUrl);
 
             // 检查是否获取到认证 cookie
-            List<Cookie> cookies = mHttpClient.getCookieStore().getCookies();
             boolean hasAuthCookie = false;
-            for (Cookie cookie : cookies) {
-                if (cookie.getName().contains("GTL")) {
+            for (String name : mTransport.getCookieNames()) {
+                if (name.contains("GTL")) {
                     hasAuthCookie = true;
                 }
             }
@@ -306,7 +332,7 @@ public class GTaskClient {
             }
 
             // 获取客户端版本号
-            String resString = getResponseContent(response.getEntity());
+            String resString = readContent(input);
             String jsBegin = "_setup(";
             String jsEnd = ")}</script>";
             int begin = resString.indexOf(jsBegin);
@@ -335,44 +361,18 @@ public class GTaskClient {
      *
      * @return 操作 ID
      */
-    private int getActionId() {
+    private synchronized int getActionId() {
         return mActionId++;
     }
 
     /**
-     * 创建 HttpPost 请求对象
-     *
-     * @return HttpPost 请求对象
-     */
-    private HttpPost createHttpPost() {
-        HttpPost httpPost = new HttpPost(mPostUrl);
-        httpPost.setHeader("Content-Type", "application/x-www-form-urlencoded;charset=utf-8");
-        httpPost.setHeader("AT", "1");
-        return httpPost;
-    }
-
-    /**
-     * 获取 HTTP 响应内容
+     * 读取响应内容
      *
-     * @param entity HTTP 响应实体
+     * @param input 解压后的响应内容流，读完后关闭
      * @return 响应内容
      * @throws IOException 输入输出异常
      */
-    private String getResponseContent(HttpEntity entity) throws IOException {
-        String contentEncoding = null;
-        if (entity.getContentEncoding() != null) {
-            contentEncoding = entity.getContentEncoding().getValue();
-            Log.d(TAG, "encoding: " + contentEncoding);
-        }
-
-        InputStream input = entity.getContent();
-        if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
-            input = new GZIPInputStream(entity.getContent());
-        } else if (contentEncoding != null && contentEncoding.equalsIgnoreCase("deflate")) {
-            Inflater inflater = new Inflater(true);
-            input = new InflaterInputStream(entity.getContent(), inflater);
-        }
-
+    private String readContent(InputStream input) throws IOException {
         try {
             InputStreamReader isr = new InputStreamReader(input);
             BufferedReader br = new BufferedReader(isr);
@@ -390,6 +390,20 @@ public class GTaskClient {
         }
     }
 
+    /**
+     * 执行 POST 请求，请求内容以表单参数 r 发送
+     *
+     * @param js 请求的 JSON 对象
+     * @return 解压后的响应内容流
+     * @throws IOException 输入输出异常
+     */
+    private InputStream executePost(JSONObject js) throws IOException {
+        HashMap<String, String> headers = new HashMap<String, String>();
+        headers.put("Content-Type", "application/x-www-form-urlencoded;charset=utf-8");
+        headers.put("AT", "1");
+        return mTransport.postForm(mPostUrl, headers, "r", js.toString());
+    }
+
     /**
      * 发送 POST 请求
      *
@@ -403,18 +417,21 @@ public class GTaskClient {
             throw new ActionFailureException("not logged in");
         }
 
-        HttpPost httpPost = createHttpPost();
         try {
-            LinkedList<BasicNameValuePair> list = new LinkedList<BasicNameValuePair>();
-            list.add(new BasicNameValuePair("r", js.toString()));
-            UrlEncodedFormEntity entity = new UrlEncodedFormEntity(list, "UTF-8");
-            httpPost.setEntity(entity);
-
             // 执行 POST 请求
-            HttpResponse response = mHttpClient.execute(httpPost);
-            String jsString = getResponseContent(response.getEntity());
-            return new JSONObject(jsString);
+            String jsString = readContent(executePost(js));
+            JSONObject jsResponse = new JSONObject(jsString);
+            recordCommittedModified(jsResponse);
+            return jsResponse;
 
+        } catch (HttpTransport.StatusException e) {
+            Log.e(TAG, e.toString());
+            // 请求格式错误或者过大时服务器不执行其中任何操作
+            if (e.getStatusCode() == HTTP_BAD_REQUEST
+                    || e.getStatusCode() == HTTP_REQUEST_TOO_LARGE) {
+                throw new ActionRejectedException("request rejected: " + e.getMessage());
+            }
+            throw new NetworkFailureException("postRequest failed");
         } catch (ClientProtocolException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -435,111 +452,282 @@ public class GTaskClient {
     }
 
     /**
-     * 创建新任务
+     * 记录响应中各个操作结果带回的最后修改时间，同步结束时直接用来更新本地的同步 ID
+     *
+     * @param jsResponse 响应的 JSON 对象
+     */
+    private synchronized void recordCommittedModified(JSONObject jsResponse) {
+        JSONArray results = jsResponse.optJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS);
+        if (results == null) {
+            return;
+        }
+        for (int i = 0; i < results.length(); i++) {
+            JSONObject result = results.optJSONObject(i);
+            if (result == null || !result.has(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED)) {
+                continue;
+            }
+            // 创建操作的结果带回新的 gid，更新操作的结果带回原来的 gid
+            String gid = result.optString(GTaskStringUtils.GTASK_JSON_NEW_ID, null);
+            if (gid == null) {
+                gid = result.optString(GTaskStringUtils.GTASK_JSON_ID, null);
+            }
+            if (gid != null) {
+                mCommittedModified.put(gid,
+                        result.optLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED));
+            }
+        }
+    }
+
+    /**
+     * 获取提交结果中带回的节点最后修改时间
+     *
+     * @param gid 节点的 gid
+     * @return 最后修改时间，提交结果中没有时返回 null
+     */
+    public synchronized Long getCommittedModified(String gid) {
+        return mCommittedModified.get(gid);
+    }
+
+    /**
+     * 添加新任务的创建操作，在下一次提交时与其他操作一起发送，提交后任务获得新的 ID
      *
      * @param task 任务对象
      * @throws NetworkFailureException 网络失败异常
      */
     public void createTask(Task task) throws NetworkFailureException {
-        commitUpdate();
+        addAction(task.getCreateAction(getActionId()), task);
+    }
+
+    /**
+     * 添加新任务列表的创建操作，在下一次提交时与其他操作一起发送，提交后任务列表获得新的 ID
+     *
+     * @param tasklist 任务列表对象
+     * @throws NetworkFailureException 网络失败异常
+     */
+    public void createTaskList(TaskList tasklist) throws NetworkFailureException {
+        addAction(tasklist.getCreateAction(getActionId()), tasklist);
+    }
+
+    /**
+     * 提交积累的操作。
+     * 操作按数量和大小分批发送，服务器明确拒绝一批操作时减小批量重试，成功后逐渐恢复批量。
+     * 其他失败不知道服务器是否已经执行，不重新发送，以免重复创建或移动任务
+     *
+     * @throws NetworkFailureException 网络失败异常
+     */
+    public void commitUpdate() throws NetworkFailureException {
+        if (mUpdateArray == null) {
+            return;
+        }
+        long start = SystemClock.elapsedRealtime();
+        HttpTransport.Stats before = getTransportStats();
         try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
+            postUpdates();
+        } finally {
+            recordCommit(start, before);
+        }
+    }
 
-            // 添加创建任务的操作到操作列表
-            actionList.put(task.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+    /**
+     * 分批发送积累的操作，见 {@link #commitUpdate()}
+     *
+     * @throws NetworkFailureException 网络失败异常
+     */
+    private void postUpdates() throws NetworkFailureException {
+        JSONArray actions = mUpdateArray;
+        HashMap<Integer, Node> createdNodes = mCreatedNodes;
+        mUpdateArray = null;
+        mUpdateBytes = 0;
+        mCreatedNodes = new HashMap<Integer, Node>();
+
+        int index = 0;
+        while (index < actions.length()) {
+            // 本批的操作数，不超过当前批量和字节上限
+            int count = 0;
+            int bytes = 0;
+            while (index + count < actions.length() && count < mBatchSize) {
+                int length = actions.optJSONObject(index + count).toString().length();
+                if (count > 0 && bytes + length > MAX_BATCH_BYTES) {
+                    break;
+                }
+                bytes += length;
+                count++;
+            }
 
-            // 添加客户端版本号
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+            JSONObject jsResponse;
+            try {
+                jsResponse = postActions(actions, index, count);
+            } catch (ActionRejectedException e) {
+                if (count == 1) {
+                    throw e;
+                }
+                // 服务器拒绝了这一批操作，其中的操作都没有执行，减半后重试
+                mBatchSize = Math.max(1, count / 2);
+                Log.w(TAG, "batch of " + count + " actions rejected, retry with " + mBatchSize);
+                continue;
+            }
+            setNewIds(jsResponse, actions, index, count, createdNodes);
+            index += count;
 
-            // 发送 POST 请求
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            task.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+            // 提交成功，逐渐增大批量
+            if (count >= mBatchSize && mBatchSize < MAX_BATCH_ACTIONS) {
+                mBatchSize = Math.min(MAX_BATCH_ACTIONS, mBatchSize + mBatchSize / 4 + 1);
+            }
+        }
+    }
 
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create task: handing jsonobject failed");
+    /**
+     * 把一次提交的耗时和传输量累加到提交统计
+     *
+     * @param start 提交开始时的时钟
+     * @param before 提交开始时的传输统计，还没有连接时为 null
+     */
+    private synchronized void recordCommit(long start, HttpTransport.Stats before) {
+        mCommitStats.elapsedMillis += SystemClock.elapsedRealtime() - start;
+        HttpTransport.Stats after = getTransportStats();
+        if (before == null || after == null) {
+            return;
         }
+        mCommitStats.requestCount += after.requestCount - before.requestCount;
+        mCommitStats.bytesSent += after.bytesSent - before.bytesSent;
+        mCommitStats.bytesReceived += after.bytesReceived - before.bytesReceived;
+    }
+
+    /**
+     * @return 上次重置操作队列以来所有提交的耗时和传输量
+     */
+    public synchronized SyncMetrics.Phase getCommitStats() {
+        SyncMetrics.Phase stats = new SyncMetrics.Phase();
+        stats.elapsedMillis = mCommitStats.elapsedMillis;
+        stats.requestCount = mCommitStats.requestCount;
+        stats.bytesSent = mCommitStats.bytesSent;
+        stats.bytesReceived = mCommitStats.bytesReceived;
+        return stats;
     }
 
     /**
-     * 创建新的任务列表
+     * 添加节点的更新操作，在下一次提交时发送
      *
-     * @param tasklist 任务列表对象
+     * @param node 要更新的节点
      * @throws NetworkFailureException 网络失败异常
      */
-    public void createTaskList(TaskList tasklist) throws NetworkFailureException {
-        commitUpdate();
+    public void addUpdateNode(Node node) throws NetworkFailureException {
+        if (node != null) {
+            addAction(node.getUpdateAction(getActionId()), null);
+        }
+    }
+
+    /**
+     * 添加一个操作，积累的操作达到批量或字节上限时先提交之前的操作
+     *
+     * @param action 操作的 JSON 对象
+     * @param createdNode 创建操作对应的节点，提交后为它设置新的 ID，其他操作为 null
+     * @throws NetworkFailureException 网络失败异常
+     */
+    private void addAction(JSONObject action, Node createdNode) throws NetworkFailureException {
+        int length = action.toString().length();
+        if (mUpdateArray != null && (mUpdateArray.length() >= mBatchSize
+                || mUpdateBytes + length > MAX_BATCH_BYTES)) {
+            commitUpdate();
+        }
+
+        if (mUpdateArray == null)
+            mUpdateArray = new JSONArray();
+        mUpdateArray.put(action);
+        mUpdateBytes += length;
+        if (createdNode != null) {
+            mCreatedNodes.put(action.optInt(GTaskStringUtils.GTASK_JSON_ACTION_ID), createdNode);
+        }
+    }
+
+    /**
+     * 发送操作列表中的一段操作
+     *
+     * @param actions 操作列表
+     * @param start 第一个操作的位置
+     * @param count 操作数
+     * @return 响应的 JSON 对象
+     * @throws NetworkFailureException 网络失败异常
+     */
+    private JSONObject postActions(JSONArray actions, int start, int count)
+            throws NetworkFailureException {
         try {
             JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
 
-            // 添加创建任务列表的操作到操作列表
-            actionList.put(tasklist.getCreateAction(getActionId()));
+            // action_list
+            JSONArray actionList = new JSONArray();
+            for (int i = start; i < start + count; i++) {
+                actionList.put(actions.get(i));
+            }
             jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
 
-            // 添加客户端版本号
+            // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-            // 发送 POST 请求
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            tasklist.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
-
+            return postRequest(jsPost);
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            throw new ActionFailureException("create tasklist: handing jsonobject failed");
+            throw new ActionFailureException("commit update: handing jsonobject failed");
         }
     }
 
     /**
-     * 提交更新操作
+     * 把响应中创建操作的结果对应回节点，为节点设置新的 ID。
+     * 结果带有操作 ID 时按操作 ID 对应，否则按创建操作的先后顺序对应
      *
-     * @throws NetworkFailureException 网络失败异常
+     * @param jsResponse 响应的 JSON 对象
+     * @param actions 操作列表
+     * @param start 第一个操作的位置
+     * @param count 操作数
+     * @param createdNodes 创建操作对应的节点，键为操作 ID
      */
-    public void commitUpdate() throws NetworkFailureException {
-        if (mUpdateArray != null) {
-            try {
-                JSONObject jsPost = new JSONObject();
-
-                // action_list
-                jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, mUpdateArray);
-
-                // client_version
-                jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-                postRequest(jsPost);
-                mUpdateArray = null;
-            } catch (JSONException e) {
-                Log.e(TAG, e.toString());
-                e.printStackTrace();
-                throw new ActionFailureException("commit update: handing jsonobject failed");
+    private void setNewIds(JSONObject jsResponse, JSONArray actions, int start, int count,
+            HashMap<Integer, Node> createdNodes) {
+        // 本批中的创建操作，按发送顺序排列
+        LinkedHashMap<Integer, Node> nodes = new LinkedHashMap<Integer, Node>();
+        for (int i = start; i < start + count; i++) {
+            int actionId = actions.optJSONObject(i).optInt(GTaskStringUtils.GTASK_JSON_ACTION_ID);
+            Node node = createdNodes.remove(actionId);
+            if (node != null) {
+                nodes.put(actionId, node);
             }
         }
-    }
+        if (nodes.isEmpty()) {
+            return;
+        }
 
-    public void addUpdateNode(Node node) throws NetworkFailureException {
-        if (node != null) {
-            // too many update items may result in an error
-            // set max to 10 items
-            if (mUpdateArray != null && mUpdateArray.length() > 10) {
-                commitUpdate();
+        try {
+            JSONArray results = jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS);
+            for (int i = 0; i < results.length() && !nodes.isEmpty(); i++) {
+                JSONObject jsResult = results.getJSONObject(i);
+                if (!jsResult.has(GTaskStringUtils.GTASK_JSON_NEW_ID)) {
+                    continue;
+                }
+                Node node = null;
+                if (jsResult.has(GTaskStringUtils.GTASK_JSON_ACTION_ID)) {
+                    node = nodes.remove(jsResult.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+                }
+                if (node == null) {
+                    Iterator<Node> iter = nodes.values().iterator();
+                    node = iter.next();
+                    iter.remove();
+                }
+                node.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
             }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("create node: handing jsonobject failed");
+        }
 
-            if (mUpdateArray == null)
-                mUpdateArray = new JSONArray();
-            mUpdateArray.put(node.getUpdateAction(getActionId()));
+        if (!nodes.isEmpty()) {
+            throw new ActionFailureException("create node: new id is missing in results");
         }
     }
 
     /**
-     * 将任务从一个任务列表移动到另一个任务列表
+     * 将任务从一个任务列表移动到另一个任务列表，移动操作在下一次提交时发送
      *
      * @param task      要移动的任务
      * @param preParent 任务的原父任务列表
@@ -548,13 +736,7 @@ public class GTaskClient {
      */
     public void moveTask(Task task, TaskList preParent, TaskList curParent)
             throws NetworkFailureException {
-        // 提交之前的更新操作
-        commitUpdate();
         try {
-            // 创建一个新的 JSON 对象，用于构建 POST 请求的内容
-            JSONObject jsPost = new JSONObject();
-            // 创建一个 JSON 数组，用于存储操作列表
-            JSONArray actionList = new JSONArray();
             // 创建一个 JSON 对象，用于存储单个操作
             JSONObject action = new JSONObject();
 
@@ -580,16 +762,8 @@ public class GTaskClient {
                 // 仅当在不同任务列表之间移动时才设置目标任务列表的 ID
                 action.put(GTaskStringUtils.GTASK_JSON_DEST_LIST, curParent.getGid());
             }
-            // 将操作添加到操作列表中
-            actionList.put(action);
-            // 将操作列表添加到 POST 请求的 JSON 对象中
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // 设置客户端版本号
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            // 发送 POST 请求
-            postRequest(jsPost);
+            // 与其他操作一起提交
+            addAction(action, null);
 
         } catch (JSONException e) {
             // 记录 JSON 处理异常
@@ -603,44 +777,16 @@ public class GTaskClient {
 
 
     /**
-     * 删除指定的节点
+     * 删除指定的节点，删除操作在下一次提交时发送
      *
      * @param node 要删除的节点
      * @throws NetworkFailureException 网络失败异常
      */
     public void deleteNode(Node node) throws NetworkFailureException {
-        // 提交之前的更新操作
-        commitUpdate();
-        try {
-            // 创建一个新的 JSON 对象，用于构建 POST 请求的内容
-            JSONObject jsPost = new JSONObject();
-            // 创建一个 JSON 数组，用于存储操作列表
-            JSONArray actionList = new JSONArray();
-
-            // action_list
-            // 将节点标记为已删除
-            node.setDeleted(true);
-            // 获取节点的更新操作，并添加到操作列表中
-            actionList.put(node.getUpdateAction(getActionId()));
-            // 将操作列表添加到 POST 请求的 JSON 对象中
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            // 设置客户端版本号
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            // 发送 POST 请求
-            postRequest(jsPost);
-            // 清空更新操作数组
-            mUpdateArray = null;
-        } catch (JSONException e) {
-            // 记录 JSON 处理异常
-            Log.e(TAG, e.toString());
-            // 打印异常堆栈信息
-            e.printStackTrace();
-            // 抛出操作失败异常
-            throw new ActionFailureException("delete node: handing jsonobject failed");
-        }
+        // 将节点标记为已删除
+        node.setDeleted(true);
+        // 获取节点的更新操作，与其他操作一起提交
+        addAction(node.getUpdateAction(getActionId()), null);
     }
 
 
@@ -658,16 +804,8 @@ public class GTaskClient {
         }
 
         try {
-            // 创建一个 HttpGet 请求对象，使用当前的 GET 请求 URL
-            HttpGet httpGet = new HttpGet(mGetUrl);
-            // 初始化 HttpResponse 对象
-            HttpResponse response = null;
-            // 执行 HttpGet 请求并获取响应
-            response = mHttpClient.execute(httpGet);
-
-            // 获取任务列表
-            // 从响应实体中获取响应内容
-            String resString = getResponseContent(response.getEntity());
+            // 使用当前的 GET 请求 URL 发送请求，并获取任务列表
+            String resString = readContent(mTransport.get(mGetUrl));
             // 定义 JSON 字符串的起始标记
             String jsBegin = "_setup(";
             // 定义 JSON 字符串的结束标记
@@ -721,35 +859,20 @@ public class GTaskClient {
     public JSONArray getTaskList(String listGid) throws NetworkFailureException {
         // 提交之前的更新操作，确保之前的操作已经完成
         commitUpdate();
-        try {
-            // 创建一个新的 JSON 对象，用于构建 POST 请求的内容
-            JSONObject jsPost = new JSONObject();
-            // 创建一个 JSON 数组，用于存储操作列表
-            JSONArray actionList = new JSONArray();
-            // 创建一个 JSON 对象，用于存储单个操作
-            JSONObject action = new JSONObject();
-
-            // action_list
-            // 设置操作类型为获取所有任务
-            action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
-                    GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL);
-            // 设置操作 ID
-            action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId());
-            // 设置要获取任务的任务列表的 ID
-            action.put(GTaskStringUtils.GTASK_JSON_LIST_ID, listGid);
-            // 设置是否获取已删除的任务，这里设置为 false 表示不获取
-            action.put(GTaskStringUtils.GTASK_JSON_GET_DELETED, false);
-            // 将操作添加到操作列表中
-            actionList.put(action);
-            // 将操作列表添加到 POST 请求的 JSON 对象中
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client_version
-            // 设置客户端版本号
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+        return fetchTaskList(listGid);
+    }
 
+    /**
+     * 获取任务列表中的所有任务，不提交之前的更新操作
+     *
+     * @param listGid 任务列表的全局唯一标识符
+     * @return 包含该任务列表中所有任务的 JSON 数组
+     * @throws NetworkFailureException 当网络请求失败时抛出此异常
+     */
+    private JSONArray fetchTaskList(String listGid) throws NetworkFailureException {
+        try {
             // 发送 POST 请求
-            JSONObject jsResponse = postRequest(jsPost);
+            JSONObject jsResponse = postRequest(createGetAllRequest(listGid));
             // 从响应中提取包含任务的 JSON 数组并返回
             return jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
         } catch (JSONException e) {
@@ -762,11 +885,154 @@ public class GTaskClient {
         }
     }
 
+    /**
+     * 获取任务列表中值得保存的任务。
+     * 响应以流的方式解析，直接生成任务对象，不构建整个响应的 JSON 树。
+     * 不提交之前的更新操作，可以在多个线程中同时调用
+     *
+     * @param listGid 任务列表的全局唯一标识符
+     * @param meta 是否为元数据列表，元数据列表中的任务解析为元数据对象
+     * @return 任务列表中值得保存的任务
+     * @throws NetworkFailureException 当网络请求失败时抛出此异常
+     */
+    ArrayList<Task> fetchTasks(String listGid, boolean meta) throws NetworkFailureException {
+        if (!mLoggedin) {
+            Log.e(TAG, "please login first");
+            throw new ActionFailureException("not logged in");
+        }
+
+        InputStream input = null;
+        try {
+            input = executePost(createGetAllRequest(listGid));
+            return TaskStreamParser.parseTasks(new InputStreamReader(input, "UTF-8"), meta);
+        } catch (MalformedJsonException e) {
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("get task list: malformed response");
+        } catch (IllegalStateException e) {
+            // 响应的结构与预期不符
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("get task list: unexpected response");
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new NetworkFailureException("get task list: httppost failed");
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new ActionFailureException("get task list: handing jsonobject failed");
+        } finally {
+            // 关闭内容流，连接才能被复用
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    Log.w(TAG, e.toString());
+                }
+            }
+        }
+    }
+
+    /**
+     * 构建获取任务列表中所有任务的请求
+     *
+     * @param listGid 任务列表的全局唯一标识符
+     * @return 请求的 JSON 对象
+     * @throws JSONException 构建 JSON 失败时抛出
+     */
+    private JSONObject createGetAllRequest(String listGid) throws JSONException {
+        // 创建一个新的 JSON 对象，用于构建 POST 请求的内容
+        JSONObject jsPost = new JSONObject();
+        // 创建一个 JSON 数组，用于存储操作列表
+        JSONArray actionList = new JSONArray();
+        // 创建一个 JSON 对象，用于存储单个操作
+        JSONObject action = new JSONObject();
+
+        // action_list
+        // 设置操作类型为获取所有任务
+        action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
+                GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL);
+        // 设置操作 ID
+        action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId());
+        // 设置要获取任务的任务列表的 ID
+        action.put(GTaskStringUtils.GTASK_JSON_LIST_ID, listGid);
+        // 设置是否获取已删除的任务，这里设置为 false 表示不获取
+        action.put(GTaskStringUtils.GTASK_JSON_GET_DELETED, false);
+        // 将操作添加到操作列表中
+        actionList.put(action);
+        // 将操作列表添加到 POST 请求的 JSON 对象中
+        jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+
+        // client_version
+        // 设置客户端版本号
+        jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+        return jsPost;
+    }
+
+    /**
+     * 设置传输层的超时、重试和压缩等配置，下次登录时生效
+     *
+     * @param config 传输层的配置
+     */
+    public void setTransportConfig(HttpTransport.Config config) {
+        mTransportConfig = config;
+    }
+
+    /**
+     * 设置创建传输层的工厂，下次登录时生效。
+     * 用于把同步接到进程内的模拟服务器上，在没有网络的情况下测量同步的吞吐
+     *
+     * @param factory 传输层工厂，为 null 时恢复连接 Google 任务服务
+     */
+    void setTransportFactory(HttpTransport.Factory factory) {
+        mTransportFactory = factory != null ? factory : DEFAULT_TRANSPORT_FACTORY;
+    }
+
+    /**
+     * 不经过账户管理器，直接使用给定的账户和令牌登录，用于连接模拟服务器
+     *
+     * @param account 账户
+     * @param authToken 认证令牌
+     * @return 登录成功返回 true，失败返回 false
+     */
+    boolean loginWithToken(Account account, String authToken) {
+        mAccount = account;
+        mGetUrl = GTASK_GET_URL;
+        mPostUrl = GTASK_POST_URL;
+        mLoggedin = loginGtask(authToken);
+        mLastLoginTime = mLoggedin ? System.currentTimeMillis() : 0;
+        return mLoggedin;
+    }
+
+    /**
+     * 退出登录并关闭传输层，下次同步时重新登录
+     */
+    void logout() {
+        if (mTransport != null) {
+            mTransport.shutdown();
+            mTransport = null;
+        }
+        mLoggedin = false;
+        mLastLoginTime = 0;
+        mAccount = null;
+        resetUpdateArray();
+    }
+
+    /**
+     * @return 传输层的字节数和请求耗时统计，还没有登录时返回 null
+     */
+    public HttpTransport.Stats getTransportStats() {
+        return mTransport != null ? mTransport.getStats() : null;
+    }
+
     public Account getSyncAccount() {
         return mAccount;
     }
 
-    public void resetUpdateArray() {
+    public synchronized void resetUpdateArray() {
         mUpdateArray = null;
+        mUpdateBytes = 0;
+        mCreatedNodes.clear();
+        mCommittedModified.clear();
+        mCommitStats = new SyncMetrics.Phase();
     }
 }
@@ -17,34 +17,47 @@
 package net.micode.notes.gtask.remote;
 
 import android.app.Activity;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
 import android.util.Log;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.TextNote;
 import net.micode.notes.gtask.data.MetaData;
 import net.micode.notes.gtask.data.Node;
 import net.micode.notes.gtask.data.SqlNote;
+import net.micode.notes.gtask.data.SqlWriteBatch;
 import net.micode.notes.gtask.data.Task;
 import net.micode.notes.gtask.data.TaskList;
 import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.gtask.exception.NetworkFailureException;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.tool.LongHashSet;
+import net.micode.notes.tool.TextMerger;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 
@@ -57,6 +70,19 @@ public class GTaskManager {
     // 日志标签，用于调试和日志记录
     private static final String TAG = GTaskManager.class.getSimpleName();
 
+    // 同步查询本地笔记的条件和排序，查询计划测试检查它们使用索引
+    // 回收站中的笔记和文件夹，参数为系统类型和回收站ID
+    public static final String TRASH_SELECTION = "(type<>? AND parent_id=?)";
+
+    // 回收站以外指定类型的笔记或文件夹，参数为类型和回收站ID
+    public static final String LOCAL_NODE_SELECTION = "(type=? AND parent_id<>?)";
+
+    // 回收站以外对应指定远程节点的笔记，参数为类型、回收站ID和Google任务ID
+    public static final String MOVED_NOTE_SELECTION = "(type=? AND parent_id<>? AND gtask_id=?)";
+
+    // 同步时遍历本地笔记的顺序
+    public static final String LOCAL_NODE_SORT_ORDER = NoteColumns.TYPE + " DESC";
+
     // 同步成功的状态码
     public static final int STATE_SUCCESS = 0;
 
@@ -72,6 +98,24 @@ public class GTaskManager {
     // 同步已取消的状态码
     public static final int STATE_SYNC_CANCELLED = 4;
 
+    // 保存同步水位的偏好设置文件名
+    private static final String PREFERENCE_WATERMARK_NAME = "gtask_sync_watermarks";
+
+    // 水位所属的同步账户
+    private static final String PREFERENCE_WATERMARK_ACCOUNT = "account";
+
+    // 上次全量同步的时间
+    private static final String PREFERENCE_WATERMARK_FULL_SYNC_TIME = "full_sync_time";
+
+    // 任务列表水位的键前缀，后接任务列表的gid
+    private static final String PREFERENCE_WATERMARK_LIST_PREFIX = "list_";
+
+    // 两次全量同步的最长间隔，用全量同步兜底处理增量同步发现不了的远程变化
+    private static final long FULL_SYNC_INTERVAL = 24 * 60 * 60 * 1000L;
+
+    // 积累的新建远程节点达到这个数量时提交
+    private static final int MAX_PENDING_CREATES = 100;
+
     // 单例实例
     private static GTaskManager mInstance = null;
 
@@ -84,11 +128,20 @@ public class GTaskManager {
     // 内容解析器，用于与内容提供者进行交互
     private ContentResolver mContentResolver;
 
-    // 表示同步是否正在进行的标志
+    // 表示同步是否正在进行的标志，和数据库整理标志一起由本对象的锁保护
     private boolean mSyncing;
 
-    // 表示同步是否已取消的标志
-    private boolean mCancelled;
+    // 表示数据库整理是否正在进行的标志
+    private boolean mMaintaining;
+
+    // 表示同步是否已取消的标志，可能由其他线程设置
+    private volatile boolean mCancelled;
+
+    // 正在并行获取任务列表的获取器，取消同步时一并取消
+    private volatile TaskListFetcher mFetcher;
+
+    // 本次同步各阶段的耗时、请求数和收发字节数
+    private SyncMetrics mMetrics;
 
     // 存储Google任务列表的哈希映射，键为任务列表的ID
     private HashMap<String, TaskList> mGTaskListHashMap;
@@ -111,6 +164,57 @@ public class GTaskManager {
     // 存储本地笔记ID到Google任务ID的映射
     private HashMap<Long, String> mNidToGid;
 
+    // 本次同步是否为增量同步
+    private boolean mIncremental;
+
+    // 是否已经加载了所有任务列表中的任务
+    private boolean mAllListsLoaded;
+
+    // 是否已经加载了元数据列表中的元数据
+    private boolean mMetaLoaded;
+
+    // 已经加载了任务的任务列表的ID
+    private HashSet<String> mLoadedListGids;
+
+    // 已经加载了任务的任务列表对应的本地文件夹ID
+    private ArrayList<Long> mLoadedFolderIds;
+
+    // 远程任务列表的最后修改时间，同步成功后作为水位保存
+    private HashMap<String, Long> mListModified;
+
+    // 同步结束时要写入的同步ID，键为本地笔记ID
+    private HashMap<Long, Long> mSyncIdMap;
+
+    // 修改了远程节点、同步ID需要从提交结果中获取的本地笔记，值为远程节点的ID
+    private HashMap<Long, String> mSyncIdPending;
+
+    // 上述远程任务所在的任务列表，提交结果中没有修改时间时重新获取这些任务列表
+    private HashSet<String> mSyncIdPendingLists;
+
+    // 创建操作已经加入提交队列、还没有写入远程ID的本地笔记和对应的远程节点
+    private ArrayList<SqlNote> mPendingCreateNotes;
+    private ArrayList<Node> mPendingCreateNodes;
+
+    // 同步期间的本地写入，笔记的更新积累后成批写入
+    private SqlWriteBatch mWriteBatch;
+
+    // 同步日志，记录已完成的操作，同步中断后下次从这里恢复
+    private SyncJournal mJournal;
+
+    // 本地已使用的笔记ID和数据ID，添加本地笔记时第一次需要检查ID时装入
+    private LongHashSet mLocalNoteIds;
+    private LongHashSet mLocalDataIds;
+
+    // 本次同步在内存中完成的ID检查次数
+    private int mIdChecks;
+
+    // 本次同步中内容没有变化、没有发给服务器的本地修改数
+    private int mSkippedUpdates;
+
+    // 本次同步中合并成功的冲突数和合并失败、保留了远程副本的冲突数
+    private int mMergedConflicts;
+    private int mConflictCopies;
+
     /**
      * 私有构造函数，确保只能通过getInstance方法创建实例
      */
@@ -119,8 +223,8 @@ public class GTaskManager {
         mSyncing = false;
         // 初始化取消标志为未取消
         mCancelled = false;
-        // 初始化Google任务列表的哈希映射
-        mGTaskListHashMap = new HashMap<String, TaskList>();
+        // 初始化Google任务列表的哈希映射，保持任务列表在远程的顺序
+        mGTaskListHashMap = new LinkedHashMap<String, TaskList>();
         // 初始化Google任务的哈希映射
         mGTaskHashMap = new HashMap<String, Node>();
         // 初始化元数据的哈希映射
@@ -133,6 +237,14 @@ public class GTaskManager {
         mGidToNid = new HashMap<String, Long>();
         // 初始化本地笔记ID到Google任务ID的映射
         mNidToGid = new HashMap<Long, String>();
+        mLoadedListGids = new HashSet<String>();
+        mLoadedFolderIds = new ArrayList<Long>();
+        mListModified = new HashMap<String, Long>();
+        mSyncIdMap = new HashMap<Long, Long>();
+        mSyncIdPending = new HashMap<Long, String>();
+        mSyncIdPendingLists = new HashSet<String>();
+        mPendingCreateNotes = new ArrayList<SqlNote>();
+        mPendingCreateNodes = new ArrayList<Node>();
     }
 
     /**
@@ -164,19 +276,31 @@ public class GTaskManager {
      * @return 同步结果的状态码
      */
     public int sync(Context context, GTaskASyncTask asyncTask) {
-        // 检查同步是否正在进行
-        if (mSyncing) {
-            // 记录日志，提示同步正在进行
-            Log.d(TAG, "Sync is in progress");
-            // 返回同步正在进行的状态码
-            return STATE_SYNC_IN_PROGRESS;
+        synchronized (this) {
+            // 检查同步是否正在进行
+            if (mSyncing) {
+                // 记录日志，提示同步正在进行
+                Log.d(TAG, "Sync is in progress");
+                // 返回同步正在进行的状态码
+                return STATE_SYNC_IN_PROGRESS;
+            }
+            // 数据库整理期间的 VACUUM 会阻塞写入，等整理结束后再开始同步
+            while (mMaintaining) {
+                Log.d(TAG, "database maintenance is in progress, wait for it");
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return STATE_SYNC_CANCELLED;
+                }
+            }
+            // 设置同步状态为正在进行
+            mSyncing = true;
         }
         // 设置应用程序上下文
         mContext = context;
         // 获取内容解析器
         mContentResolver = mContext.getContentResolver();
-        // 设置同步状态为正在进行
-        mSyncing = true;
         // 设置取消标志为未取消
         mCancelled = false;
         // 清空Google任务列表的哈希映射
@@ -191,6 +315,10 @@ public class GTaskManager {
         mGidToNid.clear();
         // 清空本地笔记ID到Google任务ID的映射
         mNidToGid.clear();
+        resetIncrementalState();
+        mMetrics = new SyncMetrics();
+        mMetrics.start(asyncTask.isBackground());
+        int state;
 
         try {
             // 获取GTaskClient的实例
@@ -200,38 +328,77 @@ public class GTaskManager {
 
             // 登录Google任务服务
             if (!mCancelled) {
-                // 如果登录失败，抛出网络错误异常
-                if (!client.login(mActivity)) {
-                    throw new NetworkFailureException("login google task failed");
+                beginPhase(SyncMetrics.PHASE_LOGIN);
+                try {
+                    // 如果登录失败，抛出网络错误异常
+                    // 后台同步没有活动，只能使用已经授权的账户令牌
+                    if (!client.login(mActivity != null ? mActivity : context)) {
+                        throw new NetworkFailureException("login google task failed");
+                    }
+                } finally {
+                    endPhase(SyncMetrics.PHASE_LOGIN);
                 }
             }
 
+            // 上次同步中断时，先根据同步日志恢复已完成的操作
+            mWriteBatch = new SqlWriteBatch(mContentResolver);
+            mJournal = new SyncJournal(mContentResolver, mWriteBatch);
+            mJournal.resume();
+
+            // 有上次同步保存的水位且距离上次全量同步不久时，只同步水位之后的变化
+            mIncremental = client.getSyncAccount() != null
+                    && canSyncIncrementally(client.getSyncAccount().name);
+            Log.d(TAG, mIncremental ? "incremental sync" : "full sync");
+            mMetrics.setIncremental(mIncremental);
+
             // 从Google获取任务列表
             asyncTask.publishProgess(mContext.getString(R.string.sync_progress_init_list));
             // 初始化Google任务列表
-            initGTaskList();
+            beginPhase(SyncMetrics.PHASE_INIT_LIST);
+            try {
+                initGTaskList();
+            } finally {
+                endPhase(SyncMetrics.PHASE_INIT_LIST);
+            }
 
             // 执行内容同步工作
             asyncTask.publishProgess(mContext.getString(R.string.sync_progress_syncing));
             // 同步内容
-            syncContent();
+            beginPhase(SyncMetrics.PHASE_SYNC_CONTENT);
+            try {
+                syncContent();
+            } finally {
+                endPhase(SyncMetrics.PHASE_SYNC_CONTENT);
+            }
+
+            // 同步完成后保存水位，下次同步只处理之后的变化
+            if (!mCancelled) {
+                saveWatermarks(client.getSyncAccount().name);
+                // 所有结果都已写入笔记，不再需要同步日志
+                mJournal.clear();
+            }
+
+            // 同步会产生大量写入，结束后把 WAL 日志写回数据库文件
+            mContentResolver.call(Notes.CONTENT_NOTE_URI, Notes.METHOD_CHECKPOINT, null, null);
+            // 根据取消标志确定同步结果的状态码
+            state = mCancelled ? STATE_SYNC_CANCELLED : STATE_SUCCESS;
         } catch (NetworkFailureException e) {
             // 记录网络错误日志
             Log.e(TAG, e.toString());
-            // 返回网络错误的状态码
-            return STATE_NETWORK_ERROR;
+            // 网络错误的状态码
+            state = STATE_NETWORK_ERROR;
         } catch (ActionFailureException e) {
             // 记录内部错误日志
             Log.e(TAG, e.toString());
-            // 返回内部错误的状态码
-            return STATE_INTERNAL_ERROR;
+            // 内部错误的状态码
+            state = STATE_INTERNAL_ERROR;
         } catch (Exception e) {
             // 记录异常日志
             Log.e(TAG, e.toString());
             // 打印异常堆栈信息
             e.printStackTrace();
-            // 返回内部错误的状态码
-            return STATE_INTERNAL_ERROR;
+            // 内部错误的状态码
+            state = STATE_INTERNAL_ERROR;
         } finally {
             // 清空Google任务列表的哈希映射
             mGTaskListHashMap.clear();
@@ -245,16 +412,59 @@ public class GTaskManager {
             mGidToNid.clear();
             // 清空本地笔记ID到Google任务ID的映射
             mNidToGid.clear();
+            resetIncrementalState();
+            // 同步没有完成时写入积累的本地修改并保存最后的检查点，下次同步从这里继续
+            if (mJournal != null) {
+                try {
+                    // 已经在服务器上创建的节点也要记下远程ID，否则下次同步会重复创建
+                    saveCreatedGids();
+                    mJournal.checkpoint();
+                } catch (ActionFailureException e) {
+                    Log.e(TAG, e.toString());
+                }
+                mJournal = null;
+            }
+            mWriteBatch = null;
+            mPendingCreateNotes.clear();
+            mPendingCreateNodes.clear();
+            // 记录本次同步的网络开销：请求数、收发字节数和请求耗时
+            Log.d(TAG, "transport " + GTaskClient.getInstance().getTransportStats());
             // 设置同步状态为未进行
-            mSyncing = false;
+            synchronized (this) {
+                mSyncing = false;
+            }
         }
 
-        // 根据取消标志返回同步结果的状态码
-        return mCancelled ? STATE_SYNC_CANCELLED : STATE_SUCCESS;
+        // 保存本次同步各阶段的统计，提交的统计由GTaskClient在每次提交时累计
+        mMetrics.addPhase(SyncMetrics.PHASE_COMMIT_UPDATE,
+                GTaskClient.getInstance().getCommitStats());
+        mMetrics.finish(state);
+        Log.d(TAG, "sync " + mMetrics);
+        SyncMetrics.record(mContext, mMetrics);
+        mMetrics = null;
+        return state;
+    }
+
+    /**
+     * 开始统计一个同步阶段
+     * @param phase 阶段，SyncMetrics.PHASE_*
+     */
+    private void beginPhase(int phase) {
+        mMetrics.beginPhase(phase, GTaskClient.getInstance().getTransportStats());
+    }
+
+    /**
+     * 结束统计一个同步阶段
+     * @param phase 阶段，SyncMetrics.PHASE_*
+     */
+    private void endPhase(int phase) {
+        mMetrics.endPhase(phase, GTaskClient.getInstance().getTransportStats());
     }
 
     /**
-     * 初始化Google任务列表
+     * 初始化Google任务列表。
+     * 全量同步时加载所有任务列表中的任务；增量同步时只加载水位之后有变化的任务列表，
+     * 以及本地有修改的笔记所在的任务列表。
      * @throws NetworkFailureException 如果网络连接失败
      */
     private void initGTaskList() throws NetworkFailureException {
@@ -285,56 +495,8 @@ public class GTaskManager {
                     mMetaList = new TaskList();
                     // 根据远程JSON对象设置任务列表的内容
                     mMetaList.setContentByRemoteJSON(object);
-
-                    // 加载元数据
-                    JSONArray jsMetas = client.getTaskList(gid);
-                    // 遍历元数据的JSON数组
-                    for (int j = 0; j < jsMetas.length(); j++) {
-                        // 获取当前元数据的JSON对象
-                        object = (JSONObject) jsMetas.getJSONObject(j);
-                        // 创建一个新的元数据对象
-                        MetaData metaData = new MetaData();
-                        // 根据远程JSON对象设置元数据的内容
-                        metaData.setContentByRemoteJSON(object);
-                        // 如果元数据值得保存
-                        if (metaData.isWorthSaving()) {
-                            // 将元数据添加到元数据列表中
-                            mMetaList.addChildTask(metaData);
-                            // 如果元数据有ID
-                            if (metaData.getGid() != null) {
-                                // 将元数据添加到元数据哈希映射中
-                                mMetaHashMap.put(metaData.getRelatedGid(), metaData);
-                            }
-                        }
-                    }
-                }
-            }
-
-            // 如果元数据列表不存在，则创建一个新的元数据列表
-            if (mMetaList == null) {
-                // 创建一个新的任务列表
-                mMetaList = new TaskList();
-                // 设置任务列表的名称为元数据列表的名称
-                mMetaList.setName(GTaskStringUtils.MIUI_FOLDER_PREFFIX
-                        + GTaskStringUtils.FOLDER_META);
-                // 在Google任务服务中创建元数据列表
-                GTaskClient.getInstance().createTaskList(mMetaList);
-            }
-
-            // 初始化任务列表
-            for (int i = 0; i < jsTaskLists.length(); i++) {
-                // 获取当前任务列表的JSON对象
-                JSONObject object = jsTaskLists.getJSONObject(i);
-                // 获取任务列表的ID
-                String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                // 获取任务列表的名称
-                String name = object.getString(GTaskStringUtils.GTASK_JSON_NAME);
-
-                // 如果任务列表的名称以特定前缀开头，且不是元数据列表
-                if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)
-                        && !name.equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX
-                                + GTaskStringUtils.FOLDER_META)) {
-                    // 创建一个新的任务列表
+                } else if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)) {
+                    // 创建一个新的任务列表，其中的任务稍后按需加载
                     TaskList tasklist = new TaskList();
                     // 根据远程JSON对象设置任务列表的内容
                     tasklist.setContentByRemoteJSON(object);
@@ -342,29 +504,8 @@ public class GTaskManager {
                     mGTaskListHashMap.put(gid, tasklist);
                     // 将任务列表添加到任务哈希映射中
                     mGTaskHashMap.put(gid, tasklist);
-
-                    // 加载任务
-                    JSONArray jsTasks = client.getTaskList(gid);
-                    // 遍历任务的JSON数组
-                    for (int j = 0; j < jsTasks.length(); j++) {
-                        // 获取当前任务的JSON对象
-                        object = (JSONObject) jsTasks.getJSONObject(j);
-                        // 获取任务的ID
-                        gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                        // 创建一个新的任务对象
-                        Task task = new Task();
-                        // 根据远程JSON对象设置任务的内容
-                        task.setContentByRemoteJSON(object);
-                        // 如果任务值得保存
-                        if (task.isWorthSaving()) {
-                            // 设置任务的元数据信息
-                            task.setMetaInfo(mMetaHashMap.get(gid));
-                            // 将任务添加到任务列表中
-                            tasklist.addChildTask(task);
-                            // 将任务添加到任务哈希映射中
-                            mGTaskHashMap.put(gid, task);
-                        }
-                    }
+                    // 记录任务列表的最后修改时间，同步成功后作为水位保存
+                    mListModified.put(gid, tasklist.getLastModified());
                 }
             }
         } catch (JSONException e) {
@@ -375,6 +516,267 @@ public class GTaskManager {
             // 抛出操作失败异常
             throw new ActionFailureException("initGTaskList: handing JSONObject failed");
         }
+
+        // 如果元数据列表不存在，则创建一个新的元数据列表
+        if (mMetaList == null) {
+            // 创建一个新的任务列表
+            mMetaList = new TaskList();
+            // 设置任务列表的名称为元数据列表的名称
+            mMetaList.setName(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                    + GTaskStringUtils.FOLDER_META);
+            // 在Google任务服务中创建元数据列表，之后创建元数据时需要它的ID
+            GTaskClient.getInstance().createTaskList(mMetaList);
+            GTaskClient.getInstance().commitUpdate();
+            // 新建的元数据列表中没有元数据
+            mMetaLoaded = true;
+        }
+
+        if (!mIncremental) {
+            // 全量同步，加载所有任务列表
+            loadAllTaskLists();
+            return;
+        }
+
+        // 本地文件夹与任务列表的对应关系
+        HashMap<String, Long> folderIds = queryFolderIds();
+        // 需要加载的任务列表
+        HashSet<String> listGids = new HashSet<String>();
+        // 远程在水位之后有变化的任务列表
+        SharedPreferences watermarks = getWatermarkPreferences(mContext);
+        for (Map.Entry<String, TaskList> entry : mGTaskListHashMap.entrySet()) {
+            long watermark = watermarks.getLong(PREFERENCE_WATERMARK_LIST_PREFIX
+                    + entry.getKey(), 0);
+            if (watermark == 0 || watermark != entry.getValue().getLastModified()) {
+                listGids.add(entry.getKey());
+            }
+        }
+        // 本地有修改的笔记所在的任务列表，更新远程任务时需要它们的当前状态
+        boolean hasLocalChange = collectLocalChangedLists(folderIds, listGids);
+        if (!hasLocalChange && listGids.isEmpty()) {
+            Log.d(TAG, "nothing changed since last sync");
+            return;
+        }
+
+        // 按任务列表在远程的顺序加载
+        ArrayList<TaskList> lists = new ArrayList<TaskList>();
+        for (Map.Entry<String, TaskList> entry : mGTaskListHashMap.entrySet()) {
+            if (listGids.contains(entry.getKey())) {
+                lists.add(entry.getValue());
+            }
+        }
+        loadTaskLists(lists);
+        if (mCancelled) {
+            return;
+        }
+
+        // 已加载的任务列表对应的本地文件夹，这些文件夹中的笔记都需要比较
+        mLoadedFolderIds.clear();
+        for (Map.Entry<String, Long> entry : folderIds.entrySet()) {
+            if (mLoadedListGids.contains(entry.getKey())) {
+                mLoadedFolderIds.add(entry.getValue());
+            }
+        }
+
+        // 需要比较的笔记在已加载的任务列表中找不到对应的任务时，可能是被远程删除，
+        // 也可能是被移动到了其他任务列表，只有加载全部任务列表才能区分
+        if (hasMissingNode()) {
+            Log.d(TAG, "some local notes are not in loaded lists, load all lists");
+            loadAllTaskLists();
+        }
+    }
+
+    /**
+     * 加载所有还没有加载的任务列表
+     * @throws NetworkFailureException 如果网络连接失败
+     */
+    private void loadAllTaskLists() throws NetworkFailureException {
+        loadTaskLists(new ArrayList<TaskList>(mGTaskListHashMap.values()));
+        if (!mCancelled) {
+            mAllListsLoaded = true;
+        }
+    }
+
+    /**
+     * 并行获取任务列表中的任务，还没有加载元数据时一起获取元数据。
+     * 获取完成后按元数据、任务列表在参数中的顺序合并，合并结果与请求完成的先后无关
+     * @param lists 要加载的任务列表
+     * @throws NetworkFailureException 如果网络连接失败
+     */
+    private void loadTaskLists(ArrayList<TaskList> lists) throws NetworkFailureException {
+        boolean loadMeta = !mMetaLoaded;
+        ArrayList<TaskList> pending = new ArrayList<TaskList>();
+        for (TaskList tasklist : lists) {
+            if (!mLoadedListGids.contains(tasklist.getGid())) {
+                pending.add(tasklist);
+            }
+        }
+        if (!loadMeta && pending.isEmpty()) {
+            return;
+        }
+
+        TaskListFetcher fetcher = new TaskListFetcher(GTaskClient.MAX_CONCURRENT_REQUESTS);
+        mFetcher = fetcher;
+        try {
+            // 取消可能发生在设置 mFetcher 之前
+            if (mCancelled) {
+                return;
+            }
+            if (loadMeta) {
+                fetcher.fetch(mMetaList.getGid(), true);
+            }
+            for (TaskList tasklist : pending) {
+                fetcher.fetch(tasklist.getGid(), false);
+            }
+
+            // 先合并元数据，任务需要用它设置元信息
+            if (loadMeta) {
+                ArrayList<Task> metas = fetcher.get(mMetaList.getGid());
+                if (metas == null) {
+                    return;
+                }
+                for (Task task : metas) {
+                    MetaData metaData = (MetaData) task;
+                    // 将元数据添加到元数据列表中
+                    mMetaList.addChildTask(metaData);
+                    // 如果元数据有ID
+                    if (metaData.getGid() != null) {
+                        // 将元数据添加到元数据哈希映射中
+                        mMetaHashMap.put(metaData.getRelatedGid(), metaData);
+                    }
+                }
+                mMetaLoaded = true;
+            }
+
+            for (TaskList tasklist : pending) {
+                ArrayList<Task> tasks = fetcher.get(tasklist.getGid());
+                if (tasks == null) {
+                    return;
+                }
+                for (Task task : tasks) {
+                    // 设置任务的元数据信息
+                    task.setMetaInfo(mMetaHashMap.get(task.getGid()));
+                    // 将任务添加到任务列表中
+                    tasklist.addChildTask(task);
+                    // 将任务添加到任务哈希映射中
+                    mGTaskHashMap.put(task.getGid(), task);
+                }
+                mLoadedListGids.add(tasklist.getGid());
+            }
+        } finally {
+            mFetcher = null;
+            fetcher.shutdown();
+        }
+    }
+
+    /**
+     * 查询已经同步过的本地文件夹
+     * @return 任务列表的gid到本地文件夹ID的映射
+     */
+    private HashMap<String, Long> queryFolderIds() {
+        HashMap<String, Long> folderIds = new HashMap<String, Long>();
+        Cursor c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                NoteColumns.ID, NoteColumns.GTASK_ID
+        }, "(type<>? AND gtask_id<>'')", new String[] {
+                String.valueOf(Notes.TYPE_NOTE)
+        }, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    folderIds.put(c.getString(1), c.getLong(0));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return folderIds;
+    }
+
+    /**
+     * 收集本地有修改的笔记所在的任务列表，回收站中的笔记按删除前所在的文件夹计算
+     * @param folderIds 任务列表的gid到本地文件夹ID的映射
+     * @param listGids 用于保存需要加载的任务列表
+     * @return 本地是否有需要同步的修改
+     */
+    private boolean collectLocalChangedLists(HashMap<String, Long> folderIds,
+            HashSet<String> listGids) {
+        HashMap<Long, String> folderGids = new HashMap<Long, String>();
+        for (Map.Entry<String, Long> entry : folderIds.entrySet()) {
+            folderGids.put(entry.getValue(), entry.getKey());
+        }
+
+        boolean hasLocalChange = false;
+        Cursor c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                NoteColumns.TYPE, NoteColumns.PARENT_ID, NoteColumns.ORIGIN_PARENT_ID
+        }, "(type<>? AND (local_modified=1 OR parent_id=?))", new String[] {
+                String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
+        }, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    hasLocalChange = true;
+                    // 文件夹对应的任务列表总是完整获取的，只有笔记需要加载所在的任务列表
+                    if (c.getInt(0) != Notes.TYPE_NOTE) {
+                        continue;
+                    }
+                    long folderId = c.getLong(1);
+                    if (folderId == Notes.ID_TRASH_FOLER) {
+                        folderId = c.getLong(2);
+                    }
+                    String listGid = folderGids.get(folderId);
+                    if (listGid != null && mGTaskListHashMap.containsKey(listGid)) {
+                        listGids.add(listGid);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return hasLocalChange;
+    }
+
+    /**
+     * 检查本次需要比较的笔记中是否有在已加载的任务列表中找不到对应任务的
+     * @return 有找不到对应任务的笔记时返回true
+     */
+    private boolean hasMissingNode() {
+        ArrayList<String> args = new ArrayList<String>();
+        args.add(String.valueOf(Notes.TYPE_SYSTEM));
+        args.add(String.valueOf(Notes.ID_TRASH_FOLER));
+        String selection = "(type<>? AND gtask_id<>'' AND (parent_id=? OR "
+                + getIncrementalSelection(args) + "))";
+        Cursor c = mContentResolver.query(Notes.CONTENT_NOTE_URI, new String[] {
+                NoteColumns.GTASK_ID
+        }, selection, args.toArray(new String[args.size()]), null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    if (!mGTaskHashMap.containsKey(c.getString(0))) {
+                        return true;
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 构造增量同步时需要比较的笔记的查询条件：本地有修改的笔记，以及已加载的任务列表对应的文件夹中的笔记
+     * @param args 用于追加查询参数
+     * @return 查询条件
+     */
+    private String getIncrementalSelection(ArrayList<String> args) {
+        StringBuilder selection = new StringBuilder("local_modified=1");
+        if (!mLoadedFolderIds.isEmpty()) {
+            selection.append(" OR parent_id IN (");
+            for (int i = 0; i < mLoadedFolderIds.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                args.add(String.valueOf(mLoadedFolderIds.get(i)));
+            }
+            selection.append(")");
+        }
+        return selection.toString();
     }
 
     /**
@@ -403,7 +805,7 @@ public class GTaskManager {
         try {
             // 查询本地已删除的笔记
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type<>? AND parent_id=?)", new String[] {
+                    TRASH_SELECTION, new String[] {
                             String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, null);
             // 如果查询结果不为空
@@ -438,15 +840,23 @@ public class GTaskManager {
         }
 
         // 首先同步文件夹
-        syncFolder();
+        beginPhase(SyncMetrics.PHASE_SYNC_FOLDER);
+        try {
+            syncFolder();
+        } finally {
+            endPhase(SyncMetrics.PHASE_SYNC_FOLDER);
+        }
 
         // 处理数据库中存在的笔记
         try {
-            // 查询数据库中存在的笔记
+            // 查询数据库中存在的笔记，增量同步时只查询本地有修改或所在任务列表有变化的笔记
+            ArrayList<String> args = new ArrayList<String>();
+            args.add(String.valueOf(Notes.TYPE_NOTE));
+            args.add(String.valueOf(Notes.ID_TRASH_FOLER));
+            String selection = mAllListsLoaded ? LOCAL_NODE_SELECTION
+                    : "(" + LOCAL_NODE_SELECTION + " AND (" + getIncrementalSelection(args) + "))";
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type=? AND parent_id<>?)", new String[] {
-                            String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");
+                    selection, args.toArray(new String[args.size()]), LOCAL_NODE_SORT_ORDER);
             // 如果查询结果不为空
             if (c != null) {
                 // 遍历查询结果
@@ -498,6 +908,11 @@ public class GTaskManager {
             Map.Entry<String, Node> entry = iter.next();
             // 获取任务节点
             node = entry.getValue();
+            // 增量同步时没有比较未加载的任务列表对应文件夹中的笔记，
+            // 从这些任务列表移动过来的任务在本地已经存在，不能重复添加
+            if (!mAllListsLoaded && syncMovedNode(entry.getKey(), node)) {
+                continue;
+            }
             // 执行内容同步操作，添加本地任务
             doContentSync(Node.SYNC_ACTION_ADD_LOCAL, node, null);
         }
@@ -505,6 +920,9 @@ public class GTaskManager {
         // mCancelled可以由另一个线程设置，所以需要逐个检查
         // 清空本地已删除笔记表
         if (!mCancelled) {
+            commitPendingCreates();
+            // 先写入积累的本地修改，删除按原来的顺序执行
+            mWriteBatch.flush();
             // 如果批量删除本地已删除笔记失败，抛出操作失败异常
             if (!DataUtils.batchDeleteNotes(mContentResolver, mLocalDeleteIdMap)) {
                 throw new ActionFailureException("failed to batch-delete local deleted notes");
@@ -515,12 +933,46 @@ public class GTaskManager {
         if (!mCancelled) {
             // 提交更新
             GTaskClient.getInstance().commitUpdate();
+            mJournal.checkpoint();
             // 刷新本地同步ID
-            refreshLocalSyncId();
+            beginPhase(SyncMetrics.PHASE_REFRESH_SYNC_ID);
+            try {
+                refreshLocalSyncId();
+            } finally {
+                endPhase(SyncMetrics.PHASE_REFRESH_SYNC_ID);
+            }
         }
 
     }
 
+    /**
+     * 如果远程任务对应的笔记在本地已经存在，按已有笔记同步
+     * @param gid 远程任务的ID
+     * @param node 远程任务
+     * @return 本地存在对应的笔记时返回true
+     * @throws NetworkFailureException 如果网络连接失败
+     */
+    private boolean syncMovedNode(String gid, Node node) throws NetworkFailureException {
+        Cursor c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+                MOVED_NOTE_SELECTION, new String[] {
+                        String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER), gid
+                }, null);
+        if (c == null) {
+            return false;
+        }
+        try {
+            if (!c.moveToFirst()) {
+                return false;
+            }
+            mGidToNid.put(gid, c.getLong(SqlNote.ID_COLUMN));
+            mNidToGid.put(c.getLong(SqlNote.ID_COLUMN), gid);
+            doContentSync(node.getSyncAction(c), node, c);
+            return true;
+        } finally {
+            c.close();
+        }
+    }
+
     /**
      * 同步文件夹
      * @throws NetworkFailureException 如果网络连接失败
@@ -632,9 +1084,9 @@ public class GTaskManager {
         try {
             // 查询本地存在的文件夹
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type=? AND parent_id<>?)", new String[] {
+                    LOCAL_NODE_SELECTION, new String[] {
                             String.valueOf(Notes.TYPE_FOLDER), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");
+                    }, LOCAL_NODE_SORT_ORDER);
             // 如果查询结果不为空
             if (c != null) {
                 // 遍历查询结果
@@ -697,8 +1149,13 @@ public class GTaskManager {
         }
 
         // 如果同步未取消，提交更新
-        if (!mCancelled)
+        if (!mCancelled) {
+            // 新建的文件夹要先得到远程ID，之后才能在其中创建任务
+            commitPendingCreates();
             GTaskClient.getInstance().commitUpdate();
+            // 文件夹同步完成，写入检查点
+            mJournal.checkpoint();
+        }
     }
 
     /**
@@ -714,6 +1171,8 @@ public class GTaskManager {
             return;
         }
 
+        mMetrics.countAction(syncType);
+
         // 元数据
         MetaData meta;
         // 根据同步类型执行相应的操作
@@ -753,13 +1212,15 @@ public class GTaskManager {
                 updateLocalNode(node, c);
                 break;
             case Node.SYNC_ACTION_UPDATE_REMOTE:
-                // 更新远程任务节点
-                updateRemoteNode(node, c);
+                // 内容与上次同步时相同的本地修改不需要发给服务器
+                if (!skipUnchangedNode(c)) {
+                    // 更新远程任务节点
+                    updateRemoteNode(node, c);
+                }
                 break;
             case Node.SYNC_ACTION_UPDATE_CONFLICT:
-                // 合并双方的修改可能是个好主意
-                // 目前只是简单地使用本地更新
-                updateRemoteNode(node, c);
+                // 合并双方对笔记文本的修改，再用合并结果更新远程
+                resolveConflict(node, c);
                 break;
             case Node.SYNC_ACTION_NONE:
                 break;
@@ -818,7 +1279,7 @@ public class GTaskManager {
                         // 获取笔记的ID
                         long id = note.getLong(NoteColumns.ID);
                         // 如果该ID在数据库中已存在
-                        if (DataUtils.existInNoteDatabase(mContentResolver, id)) {
+                        if (localNoteIdExists(id)) {
                             // 该ID不可用，需要创建一个新的ID
                             note.remove(NoteColumns.ID);
                         }
@@ -838,7 +1299,7 @@ public class GTaskManager {
                             // 获取数据的ID
                             long dataId = data.getLong(DataColumns.ID);
                             // 如果该ID在数据库中已存在
-                            if (DataUtils.existInDataDatabase(mContentResolver, dataId)) {
+                            if (localDataIdExists(dataId)) {
                                 // 该数据ID不可用，需要创建一个新的ID
                                 data.remove(DataColumns.ID);
                             }
@@ -870,18 +1331,81 @@ public class GTaskManager {
 
         // 创建本地任务节点
         sqlNote.setGtaskId(node.getGid());
+        // 本地笔记的内容来自远程，记录内容指纹和合并基准
+        sqlNote.recordSyncedContent();
         // 提交本地笔记的更改
-        sqlNote.commit(false);
+        sqlNote.commit(false, mWriteBatch);
+        // 新插入的ID之后不能再给其他笔记使用
+        if (mLocalNoteIds != null) {
+            mLocalNoteIds.add(sqlNote.getId());
+            for (long dataId : sqlNote.getDataIds()) {
+                mLocalDataIds.add(dataId);
+            }
+        }
 
         // 更新Google任务ID到本地笔记ID的映射
         mGidToNid.put(node.getGid(), sqlNote.getId());
         // 更新本地笔记ID到Google任务ID的映射
         mNidToGid.put(sqlNote.getId(), node.getGid());
+        // 远程任务没有修改，同步ID就是它的最后修改时间
+        mSyncIdMap.put(sqlNote.getId(), node.getLastModified());
+        mJournal.recordDone(sqlNote.getId(), node.getGid(), Node.SYNC_ACTION_ADD_LOCAL,
+                node.getLastModified());
 
         // 更新远程元数据
         updateRemoteMeta(node.getGid(), sqlNote);
     }
 
+    /**
+     * 检查笔记ID在本地是否已被使用
+     * @param id 笔记ID
+     * @return 已被使用时返回true
+     */
+    private boolean localNoteIdExists(long id) {
+        loadLocalIds();
+        mIdChecks++;
+        return mLocalNoteIds.contains(id);
+    }
+
+    /**
+     * 检查数据ID在本地是否已被使用
+     * @param id 数据ID
+     * @return 已被使用时返回true
+     */
+    private boolean localDataIdExists(long id) {
+        loadLocalIds();
+        mIdChecks++;
+        return mLocalDataIds.contains(id);
+    }
+
+    /**
+     * 一次装入本地所有的笔记ID和数据ID，之后的检查在内存中完成，
+     * 不再为每条远程笔记和每行数据分别查询数据库
+     */
+    private void loadLocalIds() {
+        if (mLocalNoteIds != null) {
+            return;
+        }
+        mLocalNoteIds = queryIds(Notes.CONTENT_NOTE_URI, NoteColumns.ID);
+        mLocalDataIds = queryIds(Notes.CONTENT_DATA_URI, DataColumns.ID);
+    }
+
+    private LongHashSet queryIds(Uri uri, String column) {
+        Cursor c = mContentResolver.query(uri, new String[] { column }, null, null, null);
+        if (c == null) {
+            throw new ActionFailureException("failed to query local ids");
+        }
+        try {
+            LongHashSet ids = new LongHashSet(c.getCount());
+            while (c.moveToNext()) {
+                ids.add(c.getLong(0));
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
     /**
      * 更新本地任务节点
      * @param node 任务节点
@@ -913,8 +1437,14 @@ public class GTaskManager {
         }
         // 设置本地笔记的父ID
         sqlNote.setParentId(parentId.longValue());
+        // 本地笔记的内容来自远程，记录内容指纹和合并基准
+        sqlNote.recordSyncedContent();
         // 提交本地笔记的更改
-        sqlNote.commit(true);
+        sqlNote.commit(true, mWriteBatch);
+        // 远程任务没有修改，同步ID就是它的最后修改时间
+        mSyncIdMap.put(sqlNote.getId(), node.getLastModified());
+        mJournal.recordDone(sqlNote.getId(), node.getGid(), Node.SYNC_ACTION_UPDATE_LOCAL,
+                node.getLastModified());
 
         // 更新元数据信息
         updateRemoteMeta(node.getGid(), sqlNote);
@@ -956,13 +1486,10 @@ public class GTaskManager {
             // 将任务添加到父任务列表中
             mGTaskListHashMap.get(parentGid).addChildTask(task);
 
-            // 在Google任务服务中创建任务
+            // 在Google任务服务中创建任务，提交后任务才有ID，元数据和本地笔记之后再更新
             GTaskClient.getInstance().createTask(task);
-            // 获取任务节点
-            n = (Node) task;
-
-            // 添加元数据
-            updateRemoteMeta(task.getGid(), sqlNote);
+            addPendingCreate(sqlNote, task);
+            return;
         } else {
             // 任务列表
             TaskList tasklist = null;
@@ -1010,28 +1537,144 @@ public class GTaskManager {
                 tasklist = new TaskList();
                 // 根据本地笔记的内容设置任务列表的内容
                 tasklist.setContentByLocalJSON(sqlNote.getContent());
-                // 在Google任务服务中创建任务列表
+                // 在Google任务服务中创建任务列表，提交后任务列表才有ID
                 GTaskClient.getInstance().createTaskList(tasklist);
-                // 将任务列表添加到任务列表哈希映射中
-                mGTaskListHashMap.put(tasklist.getGid(), tasklist);
+                addPendingCreate(sqlNote, tasklist);
+                return;
             }
+            // 使用远程已有的任务列表，它没有被修改
+            mSyncIdMap.put(sqlNote.getId(), tasklist.getLastModified());
             // 获取任务节点
             n = (Node) tasklist;
         }
 
-        // 更新本地笔记
+        // 更新本地笔记，无论用户是否在同步期间修改了笔记都要记录远程节点的ID
         sqlNote.setGtaskId(n.getGid());
-        // 提交本地笔记的更改
-        sqlNote.commit(false);
+        // 提交本地笔记的更改，同一条笔记下面还会再次提交，这里不计入批量的笔记数
+        sqlNote.commit(false, mWriteBatch, false);
+        finishRemoteNode(sqlNote, n);
+    }
+
+    /**
+     * 记录一个创建操作已经加入提交队列的节点，积累到一定数量时提交
+     * @param sqlNote 本地笔记对象
+     * @param node 新建的远程节点
+     * @throws NetworkFailureException 如果网络连接失败
+     */
+    private void addPendingCreate(SqlNote sqlNote, Node node) throws NetworkFailureException {
+        mPendingCreateNotes.add(sqlNote);
+        mPendingCreateNodes.add(node);
+        if (mPendingCreateNodes.size() >= MAX_PENDING_CREATES) {
+            commitPendingCreates();
+        }
+    }
+
+    /**
+     * 提交积累的新建节点：先提交创建操作，新节点得到ID后立即写入本地；
+     * 再为新建的任务创建元数据并提交，之后才清除这些笔记的本地修改标志，
+     * 中断时笔记仍标记为修改，下次同步时更新远程节点并补上元数据
+     * @throws NetworkFailureException 如果网络连接失败
+     */
+    private void commitPendingCreates() throws NetworkFailureException {
+        if (mPendingCreateNodes.isEmpty()) {
+            return;
+        }
+        GTaskClient.getInstance().commitUpdate();
+        saveCreatedGids();
+
+        for (int i = 0; i < mPendingCreateNodes.size(); i++) {
+            Node node = mPendingCreateNodes.get(i);
+            if (node instanceof TaskList) {
+                // 将任务列表添加到任务列表哈希映射中
+                mGTaskListHashMap.put(node.getGid(), (TaskList) node);
+            } else {
+                // 添加元数据
+                updateRemoteMeta(node.getGid(), mPendingCreateNotes.get(i));
+            }
+        }
+        GTaskClient.getInstance().commitUpdate();
+
+        for (int i = 0; i < mPendingCreateNodes.size(); i++) {
+            finishRemoteNode(mPendingCreateNotes.get(i), mPendingCreateNodes.get(i));
+        }
+        mPendingCreateNotes.clear();
+        mPendingCreateNodes.clear();
+    }
+
+    /**
+     * 把已经在服务器上创建的节点的ID写入对应的本地笔记。
+     * 留在批量中时进程被杀会丢失对应关系，下次同步会在服务器上重复创建
+     */
+    private void saveCreatedGids() {
+        for (int i = 0; i < mPendingCreateNodes.size(); i++) {
+            String gid = mPendingCreateNodes.get(i).getGid();
+            if (gid == null) {
+                // 创建操作还没有提交
+                continue;
+            }
+            SqlNote sqlNote = mPendingCreateNotes.get(i);
+            // 无论用户是否在同步期间修改了笔记都要记录远程节点的ID
+            sqlNote.setGtaskId(gid);
+            // 同一条笔记之后还会再次提交，这里不计入批量的笔记数
+            sqlNote.commit(false, mWriteBatch, false);
+        }
+        mWriteBatch.flush();
+    }
+
+    /**
+     * 远程节点和本地笔记已经对应起来，清除本地修改标志并记录同步ID
+     * @param sqlNote 本地笔记对象
+     * @param n 远程节点
+     */
+    private void finishRemoteNode(SqlNote sqlNote, Node n) {
         // 重置本地修改标志
         sqlNote.resetLocalModified();
+        // 远程节点的内容来自本地，记录内容指纹和合并基准
+        sqlNote.recordSyncedContent();
         // 提交本地笔记的更改
-        sqlNote.commit(true);
+        sqlNote.commit(true, mWriteBatch);
 
         // 更新Google任务ID到本地笔记ID的映射
         mGidToNid.put(n.getGid(), sqlNote.getId());
         // 更新本地笔记ID到Google任务ID的映射
         mNidToGid.put(sqlNote.getId(), n.getGid());
+        // 新建的远程节点的同步ID需要从提交结果中获取
+        if (!mSyncIdMap.containsKey(sqlNote.getId())) {
+            markSyncIdPending(sqlNote.getId(), n);
+        }
+        // 创建操作已经提交，远程节点和本地笔记已经对应起来
+        Long syncId = mSyncIdMap.containsKey(sqlNote.getId()) ? mSyncIdMap.get(sqlNote.getId())
+                : GTaskClient.getInstance().getCommittedModified(n.getGid());
+        if (syncId != null) {
+            mJournal.recordDone(sqlNote.getId(), n.getGid(), Node.SYNC_ACTION_ADD_REMOTE,
+                    syncId);
+        }
+    }
+
+    /**
+     * 本地笔记被标记为修改、但内容与上次同步时相同时，只清除本地修改标志，
+     * 不发送更新，也不提交笔记
+     * @param c 游标，指向本地笔记
+     * @return 内容没有变化、已经跳过时返回true
+     */
+    private boolean skipUnchangedNode(Cursor c) {
+        if (mCancelled || c.getLong(SqlNote.CONTENT_HASH_COLUMN) == 0) {
+            return false;
+        }
+        SqlNote sqlNote = new SqlNote(mContext, c);
+        if (!sqlNote.isContentUnchanged()) {
+            return false;
+        }
+        // 用户在同步期间再次修改了笔记时版本会变化，不清除修改标志
+        mWriteBatch.add(ContentProviderOperation
+                .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, sqlNote.getId()))
+                .withValue(NoteColumns.LOCAL_MODIFIED, 0)
+                .withSelection(NoteColumns.VERSION + "=?",
+                        new String[] { String.valueOf(sqlNote.getVersion()) })
+                .build());
+        mWriteBatch.itemDone();
+        mSkippedUpdates++;
+        return true;
     }
 
     /**
@@ -1046,9 +1689,16 @@ public class GTaskManager {
             return;
         }
 
-        // 本地笔记对象
-        SqlNote sqlNote = new SqlNote(mContext, c);
+        updateRemoteNode(node, new SqlNote(mContext, c));
+    }
 
+    /**
+     * 用本地笔记更新远程任务节点
+     * @param node 任务节点
+     * @param sqlNote 本地笔记对象
+     * @throws NetworkFailureException 如果网络连接失败
+     */
+    private void updateRemoteNode(Node node, SqlNote sqlNote) throws NetworkFailureException {
         // 远程更新
         // 根据本地笔记的内容设置任务节点的内容
         node.setContentByLocalJSON(sqlNote.getContent());
@@ -1088,10 +1738,108 @@ public class GTaskManager {
             }
         }
 
+        // 修改要到下次提交时才发给服务器，清除本地修改标志之前先记入同步日志，
+        // 同步在提交之前中断时下次重新发送
+        mJournal.recordPending(sqlNote.getId(), node.getGid(), Node.SYNC_ACTION_UPDATE_REMOTE);
         // 清除本地修改标志
         sqlNote.resetLocalModified();
+        // 远程节点的内容来自本地，记录内容指纹和合并基准
+        sqlNote.recordSyncedContent();
         // 提交本地笔记的更改
-        sqlNote.commit(true);
+        sqlNote.commit(true, mWriteBatch);
+        // 远程节点被修改，同步ID需要从提交结果中获取
+        markSyncIdPending(sqlNote.getId(), node);
+    }
+
+    /**
+     * 本地和远程都修改了笔记时，以上次同步的文本为基准按行合并双方的修改。
+     * 合并成功时本地和远程都使用合并结果；合并失败时把远程版本另存为一条新的本地笔记，
+     * 下次同步时上传，原来的笔记仍以本地为准。文件夹和其他属性以本地为准
+     * @param node 任务节点
+     * @param c 游标，指向本地笔记
+     * @throws NetworkFailureException 如果网络连接失败
+     */
+    private void resolveConflict(Node node, Cursor c) throws NetworkFailureException {
+        // 检查同步是否已取消
+        if (mCancelled) {
+            return;
+        }
+
+        SqlNote sqlNote = new SqlNote(mContext, c);
+        String local = sqlNote.getNoteText();
+        if (!(node instanceof Task) || local == null) {
+            updateRemoteNode(node, sqlNote);
+            return;
+        }
+
+        String remote = node.getName() != null ? node.getName() : "";
+        String merged;
+        if (c.getLong(SqlNote.CONTENT_HASH_COLUMN) != 0) {
+            merged = TextMerger.merge(querySyncBase(sqlNote.getId()), local, remote);
+        } else {
+            // 没有合并基准，只有双方的文本相同时才不算冲突
+            merged = local.equals(remote) ? local : null;
+        }
+
+        if (merged != null) {
+            if (!merged.equals(local)) {
+                sqlNote.setNoteText(merged);
+            }
+            mMergedConflicts++;
+        } else {
+            addConflictCopy(sqlNote, remote);
+            mConflictCopies++;
+        }
+        updateRemoteNode(node, sqlNote);
+    }
+
+    /**
+     * 查询笔记上次同步时的文本
+     * @param noteId 本地笔记ID
+     * @return 上次同步时的文本
+     */
+    private String querySyncBase(long noteId) {
+        Cursor c = mContentResolver.query(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), new String[] {
+                    NoteColumns.SYNC_BASE
+                }, null, null, null);
+        if (c == null) {
+            throw new ActionFailureException("cannot query sync base");
+        }
+        try {
+            return c.moveToFirst() ? c.getString(0) : "";
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 把远程版本的文本另存为同一文件夹中的一条新笔记，标记为本地修改，下次同步时上传
+     * @param sqlNote 发生冲突的本地笔记
+     * @param text 远程版本的文本
+     */
+    private void addConflictCopy(SqlNote sqlNote, String text) {
+        int noteIndex = mWriteBatch.add(ContentProviderOperation
+                .newInsert(Notes.CONTENT_NOTE_URI)
+                .withValue(NoteColumns.PARENT_ID, sqlNote.getParentId())
+                .withValue(NoteColumns.TYPE, Notes.TYPE_NOTE)
+                .withValue(NoteColumns.LOCAL_MODIFIED, 1)
+                .build());
+        int dataIndex = mWriteBatch.add(ContentProviderOperation
+                .newInsert(Notes.CONTENT_DATA_URI)
+                .withValueBackReference(DataColumns.NOTE_ID, noteIndex)
+                .withValue(DataColumns.MIME_TYPE, DataConstants.NOTE)
+                .withValue(DataColumns.CONTENT, text)
+                .withValue(TextNote.MODE, sqlNote.getNoteTextMode())
+                .build());
+        ContentProviderResult[] results = mWriteBatch.flush();
+        Log.w(TAG, "conflicting edits on note " + sqlNote.getId() + " cannot be merged, "
+                + "remote version saved as a new note");
+        // 新插入的ID之后不能再给其他笔记使用
+        if (mLocalNoteIds != null) {
+            mLocalNoteIds.add(ContentUris.parseId(results[noteIndex].uri));
+            mLocalDataIds.add(ContentUris.parseId(results[dataIndex].uri));
+        }
     }
 
     /**
@@ -1107,15 +1855,16 @@ public class GTaskManager {
             MetaData metaData = mMetaHashMap.get(gid);
             // 如果元数据存在
             if (metaData != null) {
-                // 设置元数据的内容
-                metaData.setMeta(gid, sqlNote.getContent());
-                // 将元数据添加到更新列表中
-                GTaskClient.getInstance().addUpdateNode(metaData);
+                // 设置元数据的内容，只有修改时间变化时不需要更新
+                if (metaData.updateMeta(gid, sqlNote.getMetaContent())) {
+                    // 将元数据添加到更新列表中
+                    GTaskClient.getInstance().addUpdateNode(metaData);
+                }
             } else {
                 // 创建一个新的元数据对象
                 metaData = new MetaData();
                 // 设置元数据的内容
-                metaData.setMeta(gid, sqlNote.getContent());
+                metaData.setMeta(gid, sqlNote.getMetaContent());
                 // 将元数据添加到元数据列表中
                 mMetaList.addChildTask(metaData);
                 // 将元数据添加到元数据哈希映射中
@@ -1127,7 +1876,22 @@ public class GTaskManager {
     }
 
     /**
-     * 刷新本地同步ID
+     * 记录修改了远程节点的本地笔记，同步结束时从提交结果中获取它的同步ID
+     * @param noteId 本地笔记ID
+     * @param node 远程节点
+     */
+    private void markSyncIdPending(long noteId, Node node) {
+        mSyncIdMap.remove(noteId);
+        mSyncIdPending.put(noteId, node.getGid());
+        if (node instanceof Task) {
+            mSyncIdPendingLists.add(((Task) node).getParent().getGid());
+        }
+    }
+
+    /**
+     * 刷新本地同步ID。
+     * 本地修改过的远程节点优先使用提交结果中的最后修改时间，
+     * 提交结果中没有时只重新获取这些节点所在的任务列表，而不是重新获取全部任务
      * @throws NetworkFailureException 如果网络连接失败
      */
     private void refreshLocalSyncId() throws NetworkFailureException {
@@ -1136,59 +1900,165 @@ public class GTaskManager {
             return;
         }
 
-        // 获取最新的Google任务列表
-        mGTaskHashMap.clear();
-        mGTaskListHashMap.clear();
-        mMetaHashMap.clear();
-        // 初始化Google任务列表
-        initGTaskList();
+        GTaskClient client = GTaskClient.getInstance();
+        // 提交结果中没有修改时间的远程节点，键为节点ID，值为本地笔记ID
+        HashMap<String, Long> unresolved = new HashMap<String, Long>();
+        for (Map.Entry<Long, String> entry : mSyncIdPending.entrySet()) {
+            Long modified = client.getCommittedModified(entry.getValue());
+            if (modified != null) {
+                mSyncIdMap.put(entry.getKey(), modified);
+            } else {
+                unresolved.put(entry.getValue(), entry.getKey());
+            }
+        }
 
-        // 游标，用于查询数据库
-        Cursor c = null;
-        try {
-            // 查询本地笔记
-            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type<>? AND parent_id<>?)", new String[] {
-                            String.valueOf(Notes.TYPE_SYSTEM), String.valueOf(Notes.ID_TRASH_FOLER)
-                    }, NoteColumns.TYPE + " DESC");
-            // 如果查询结果不为空
-            if (c != null) {
-                // 遍历查询结果
-                while (c.moveToNext()) {
-                    // 获取Google任务的ID
-                    String gid = c.getString(SqlNote.GTASK_ID_COLUMN);
-                    // 从任务哈希映射中获取任务节点
-                    Node node = mGTaskHashMap.get(gid);
-                    // 如果任务节点存在
-                    if (node != null) {
-                        // 从任务哈希映射中移除任务节点
-                        mGTaskHashMap.remove(gid);
-                        // 创建内容值对象
-                        ContentValues values = new ContentValues();
-                        // 设置同步ID
-                        values.put(NoteColumns.SYNC_ID, node.getLastModified());
-                        // 更新本地笔记的同步ID
-                        mContentResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
-                                c.getLong(SqlNote.ID_COLUMN)), values, null, null);
-                    } else {
-                        // 记录错误日志，提示同步后有些本地项没有Google任务ID
-                        Log.e(TAG, "something is missed");
-                        // 抛出操作失败异常
-                        throw new ActionFailureException(
-                                "some local items don't have gid after sync");
+        if (!unresolved.isEmpty()) {
+            try {
+                // 任务列表的最后修改时间
+                JSONArray jsTaskLists = client.getTaskLists();
+                for (int i = 0; i < jsTaskLists.length(); i++) {
+                    TaskList tasklist = new TaskList();
+                    tasklist.setContentByRemoteJSON(jsTaskLists.getJSONObject(i));
+                    if (mListModified.containsKey(tasklist.getGid())) {
+                        // 使用写入之后的时间作为水位，避免下次同步重新加载自己修改过的任务列表
+                        mListModified.put(tasklist.getGid(), tasklist.getLastModified());
+                    }
+                    Long noteId = unresolved.remove(tasklist.getGid());
+                    if (noteId != null) {
+                        mSyncIdMap.put(noteId, tasklist.getLastModified());
                     }
                 }
-            } else {
-                // 记录查询失败日志
-                Log.w(TAG, "failed to query local note to refresh sync id");
+
+                // 任务的最后修改时间
+                for (String listGid : mSyncIdPendingLists) {
+                    if (unresolved.isEmpty() || mCancelled) {
+                        break;
+                    }
+                    for (Task task : client.fetchTasks(listGid, false)) {
+                        Long noteId = unresolved.remove(task.getGid());
+                        if (noteId != null) {
+                            mSyncIdMap.put(noteId, task.getLastModified());
+                        }
+                    }
+                }
+            } catch (JSONException e) {
+                // 记录JSON解析错误日志
+                Log.e(TAG, e.toString());
+                // 打印异常堆栈信息
+                e.printStackTrace();
+                // 抛出操作失败异常
+                throw new ActionFailureException("refreshLocalSyncId: handing JSONObject failed");
             }
-        } finally {
-            // 关闭游标
-            if (c != null) {
-                c.close();
-                c = null;
+        }
+
+        if (!unresolved.isEmpty()) {
+            // 下次同步时这些笔记会按远程有修改处理
+            Log.w(TAG, "cannot find sync id of " + unresolved.size() + " remote items");
+        }
+
+        // 在一个事务中写入所有同步ID
+        ArrayList<ContentProviderOperation> operationList = new ArrayList<ContentProviderOperation>();
+        for (Map.Entry<Long, Long> entry : mSyncIdMap.entrySet()) {
+            if (mLocalDeleteIdMap.contains(entry.getKey())) {
+                continue;
             }
+            operationList.add(ContentProviderOperation
+                    .newUpdate(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, entry.getKey()))
+                    .withValue(NoteColumns.SYNC_ID, entry.getValue())
+                    .build());
+        }
+        if (operationList.isEmpty()) {
+            return;
+        }
+        try {
+            mContentResolver.applyBatch(Notes.AUTHORITY, operationList);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("failed to refresh local sync id");
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("failed to refresh local sync id");
+        }
+    }
+
+    /**
+     * 判断本次同步能否只处理上次同步之后的变化
+     * @param account 同步账户的名称
+     * @return 可以增量同步时返回true
+     */
+    private boolean canSyncIncrementally(String account) {
+        SharedPreferences watermarks = getWatermarkPreferences(mContext);
+        if (!account.equals(watermarks.getString(PREFERENCE_WATERMARK_ACCOUNT, ""))) {
+            return false;
+        }
+        long fullSyncTime = watermarks.getLong(PREFERENCE_WATERMARK_FULL_SYNC_TIME, 0);
+        long now = System.currentTimeMillis();
+        return fullSyncTime > 0 && fullSyncTime <= now && now - fullSyncTime < FULL_SYNC_INTERVAL;
+    }
+
+    /**
+     * 保存本次同步的水位
+     * @param account 同步账户的名称
+     */
+    private void saveWatermarks(String account) {
+        SharedPreferences watermarks = getWatermarkPreferences(mContext);
+        long fullSyncTime = mIncremental
+                ? watermarks.getLong(PREFERENCE_WATERMARK_FULL_SYNC_TIME, 0)
+                : System.currentTimeMillis();
+        SharedPreferences.Editor editor = watermarks.edit();
+        // 已删除的任务列表的水位不再需要
+        editor.clear();
+        editor.putString(PREFERENCE_WATERMARK_ACCOUNT, account);
+        editor.putLong(PREFERENCE_WATERMARK_FULL_SYNC_TIME, fullSyncTime);
+        for (Map.Entry<String, Long> entry : mListModified.entrySet()) {
+            editor.putLong(PREFERENCE_WATERMARK_LIST_PREFIX + entry.getKey(), entry.getValue());
+        }
+        editor.commit();
+    }
+
+    /**
+     * 清除同步水位和同步日志，下次同步时进行全量同步。更换或移除同步账户时调用
+     * @param context 上下文
+     */
+    public static void resetWatermarks(Context context) {
+        getWatermarkPreferences(context).edit().clear().commit();
+        // 同步日志属于原来的账户
+        SyncJournal.clear(context.getContentResolver());
+    }
+
+    private static SharedPreferences getWatermarkPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCE_WATERMARK_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * 清空增量同步过程中的状态
+     */
+    private void resetIncrementalState() {
+        mIncremental = false;
+        mAllListsLoaded = false;
+        mMetaLoaded = false;
+        mLoadedListGids.clear();
+        mLoadedFolderIds.clear();
+        mListModified.clear();
+        mSyncIdMap.clear();
+        mSyncIdPending.clear();
+        mSyncIdPendingLists.clear();
+        if (mIdChecks > 0) {
+            Log.d(TAG, mIdChecks + " local id checks answered from 2 queries");
+        }
+        mLocalNoteIds = null;
+        mLocalDataIds = null;
+        mIdChecks = 0;
+        if (mSkippedUpdates > 0) {
+            Log.d(TAG, mSkippedUpdates + " unchanged local notes not sent");
+        }
+        mSkippedUpdates = 0;
+        if (mMergedConflicts > 0 || mConflictCopies > 0) {
+            Log.d(TAG, mMergedConflicts + " conflicts merged, " + mConflictCopies
+                    + " conflict copies saved");
         }
+        mMergedConflicts = 0;
+        mConflictCopies = 0;
     }
 
     /**
@@ -1200,11 +2070,47 @@ public class GTaskManager {
         return GTaskClient.getInstance().getSyncAccount().name;
     }
 
+    /**
+     * 在没有同步时执行数据库整理，整理期间开始的同步等整理结束后再继续
+     * @param maintenance 整理操作
+     * @return 正在同步、没有执行整理时返回false
+     */
+    public boolean runMaintenance(Runnable maintenance) {
+        synchronized (this) {
+            if (mSyncing) {
+                return false;
+            }
+            mMaintaining = true;
+        }
+        try {
+            maintenance.run();
+        } finally {
+            synchronized (this) {
+                mMaintaining = false;
+                notifyAll();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 检查数据库整理是否正在进行
+     * @return 正在整理时返回true
+     */
+    public synchronized boolean isMaintaining() {
+        return mMaintaining;
+    }
+
     /**
      * 取消同步操作
      */
     public void cancelSync() {
         // 设置取消标志为已取消
         mCancelled = true;
+        // 不再等待正在进行的任务列表请求
+        TaskListFetcher fetcher = mFetcher;
+        if (fetcher != null) {
+            fetcher.cancel();
+        }
     }
 }
@@ -24,12 +24,23 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.PowerManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 /**
  * 该服务负责处理 Google 任务的同步操作，包括启动和取消同步，并通过广播通知同步状态。
  */
 public class GTaskSyncService extends Service {
+    private static final String TAG = GTaskSyncService.class.getSimpleName();
+
     /**
      * 用于在 Intent 中传递同步操作类型的键名。
      */
@@ -50,6 +61,11 @@ public class GTaskSyncService extends Service {
      */
     public final static int ACTION_INVALID = 2;
 
+    /**
+     * 表示由 {@link SyncScheduler} 安排的后台同步的常量。
+     */
+    public final static int ACTION_BACKGROUND_SYNC = 3;
+
     /**
      * 同步服务广播的名称，用于发送同步状态更新。
      */
@@ -75,12 +91,37 @@ public class GTaskSyncService extends Service {
      */
     private static String mSyncProgress = "";
 
+    /**
+     * 用于在主线程上安排后台同步的超时。
+     */
+    private Handler mHandler;
+
+    /**
+     * 后台同步期间保持 CPU 运行。设备休眠时 Handler 的计时也会停止，
+     * 不持有唤醒锁时同步和超时都可能被推迟到下次唤醒。
+     */
+    private PowerManager.WakeLock mWakeLock;
+
+    /**
+     * 后台同步超过最长运行时间时取消同步。
+     */
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        public void run() {
+            Log.w(TAG, "background sync runs too long, cancel it");
+            cancelSync();
+        }
+    };
+
     /**
      * 启动同步操作。
      * 如果当前没有正在进行的同步任务，则创建一个新的异步任务并开始执行。
+     *
+     * @param background 是否为后台同步，后台同步不显示通知并限制运行时间
      */
-    private void startSync() {
+    private void startSync(boolean background) {
         if (mSyncTask == null) {
+            // 这次同步会处理之前所有的本地修改
+            SyncScheduler.onSyncStarted(this);
             // 创建一个新的异步任务实例，并传入当前服务和完成监听器
             mSyncTask = new GTaskASyncTask(this, new GTaskASyncTask.OnCompleteListener() {
                 /**
@@ -88,17 +129,50 @@ public class GTaskSyncService extends Service {
                  * 清空同步任务实例，发送广播通知同步完成，并停止服务。
                  */
                 public void onComplete() {
+                    mHandler.removeCallbacks(mTimeoutRunnable);
                     mSyncTask = null;
+                    if (mWakeLock.isHeld()) {
+                        mWakeLock.release();
+                    }
                     // 发送广播，更新同步状态
                     sendBroadcast("");
                     // 停止当前服务
                     stopSelf();
                 }
-            });
+            }, background);
+            if (background) {
+                mWakeLock.acquire();
+                mHandler.postDelayed(mTimeoutRunnable, SyncScheduler.MAX_RUN_TIME);
+            }
             // 发送广播，更新同步状态
             sendBroadcast("");
             // 执行异步任务
             mSyncTask.execute();
+        } else if (!background && mSyncTask.isBackground()) {
+            // 用户手动同步时正在进行后台同步，改为前台同步：显示通知，不再限制运行时间
+            mHandler.removeCallbacks(mTimeoutRunnable);
+            mSyncTask.setForeground();
+        }
+    }
+
+    /**
+     * 执行定时或本地修改后安排的后台同步。
+     * 没有设置同步账户时不同步；正在同步、正在整理数据库或者网络、电量不适合同步时推迟到以后。
+     */
+    private void startBackgroundSync() {
+        if (TextUtils.isEmpty(NotesPreferenceActivity.getSyncAccountName(this))) {
+            Log.d(TAG, "no sync account, skip background sync");
+        } else if (mSyncTask != null || GTaskManager.getInstance().isMaintaining()
+                || !SyncScheduler.canRunNow(this)) {
+            SyncScheduler.defer(this);
+        } else {
+            // 后台同步不能弹出授权界面，清除之前手动同步时设置的活动
+            GTaskManager.getInstance().setActivityContext(null);
+            startSync(true);
+            return;
+        }
+        if (mSyncTask == null) {
+            stopSelf();
         }
     }
 
@@ -120,6 +194,22 @@ public class GTaskSyncService extends Service {
     @Override
     public void onCreate() {
         mSyncTask = null;
+        mHandler = new Handler();
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * 服务销毁时释放还持有的唤醒锁。
+     */
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        if (mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+        super.onDestroy();
     }
 
     /**
@@ -133,14 +223,18 @@ public class GTaskSyncService extends Service {
      */
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        // 获取 Intent 中的额外数据
-        Bundle bundle = intent.getExtras();
+        // 服务被系统重新创建时 Intent 为空
+        Bundle bundle = intent != null ? intent.getExtras() : null;
         if (bundle != null && bundle.containsKey(ACTION_STRING_NAME)) {
             // 根据同步操作类型执行相应的操作
             switch (bundle.getInt(ACTION_STRING_NAME, ACTION_INVALID)) {
                 case ACTION_START_SYNC:
                     // 启动同步操作
-                    startSync();
+                    startSync(false);
+                    break;
+                case ACTION_BACKGROUND_SYNC:
+                    // 启动后台同步
+                    startBackgroundSync();
                     break;
                 case ACTION_CANCEL_SYNC:
                     // 取消同步操作
@@ -179,6 +273,17 @@ public class GTaskSyncService extends Service {
         return null;
     }
 
+    /**
+     * 输出同步状态和最近几次同步的统计，
+     * 服务运行时通过 adb shell dumpsys activity service GTaskSyncService 查看，
+     * 其他时候可以用 {@link SyncMetrics#getHistory} 查询。
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Syncing: " + isSyncing());
+        SyncMetrics.dump(this, writer);
+    }
+
     /**
      * 发送广播，通知同步状态和进度消息。
      *
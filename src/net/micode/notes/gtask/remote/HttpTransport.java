@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * GTaskClient 使用的 HTTP 传输层。
+ * 负责连接复用、压缩协商、超时和重试，返回的响应内容都已经解压。
+ */
+public interface HttpTransport {
+
+    /**
+     * 发送 GET 请求
+     *
+     * @param url 请求地址
+     * @return 解压后的响应内容流，调用者读完后必须关闭，连接才能被复用
+     * @throws IOException 网络错误时抛出
+     */
+    InputStream get(String url) throws IOException;
+
+    /**
+     * 以表单方式发送 POST 请求
+     *
+     * @param url 请求地址
+     * @param headers 附加的请求头
+     * @param name 表单参数名
+     * @param value 表单参数值
+     * @return 解压后的响应内容流，调用者读完后必须关闭，连接才能被复用
+     * @throws IOException 网络错误时抛出，服务器返回错误状态码时抛出 {@link StatusException}
+     */
+    InputStream postForm(String url, Map<String, String> headers, String name, String value)
+            throws IOException;
+
+    /**
+     * @return 服务器设置的 cookie 名称
+     */
+    List<String> getCookieNames();
+
+    /**
+     * @return 传输统计
+     */
+    Stats getStats();
+
+    /**
+     * 关闭空闲连接，释放资源
+     */
+    void shutdown();
+
+    /**
+     * 创建传输层，每次登录时调用一次
+     */
+    public interface Factory {
+        /**
+         * @param config 传输层的配置
+         * @return 新的传输层
+         */
+        HttpTransport create(Config config);
+    }
+
+    /**
+     * 传输层的配置
+     */
+    public static class Config {
+        // 建立连接的超时时间（毫秒）
+        public int connectTimeout = 10000;
+        // 读取数据的超时时间（毫秒）
+        public int socketTimeout = 15000;
+        // 请求还没有发出时失败的重试次数，已经发出的请求不会重试，避免重复修改
+        public int maxRetries = 2;
+        // 服务器没有指定时连接保持的时间（毫秒）
+        public long keepAliveMillis = 30000;
+        // 最大连接数
+        public int maxConnections = GTaskClient.MAX_CONCURRENT_REQUESTS;
+    }
+
+    /**
+     * 服务器返回了错误状态码
+     */
+    public static class StatusException extends IOException {
+        private static final long serialVersionUID = 6319702580167283412L;
+
+        private final int mStatusCode;
+
+        public StatusException(int statusCode, String message) {
+            super(message);
+            mStatusCode = statusCode;
+        }
+
+        /**
+         * @return HTTP 状态码
+         */
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+    }
+
+    /**
+     * 传输统计，用于观察线上的字节数和请求耗时
+     */
+    public static class Stats {
+        // 请求数
+        public long requestCount;
+        // 发送的字节数（压缩后）
+        public long bytesSent;
+        // 接收的字节数（解压前）
+        public long bytesReceived;
+        // 所有请求从发出到收到响应头的总耗时（毫秒）
+        public long totalLatencyMillis;
+        // 单个请求的最长耗时（毫秒）
+        public long maxLatencyMillis;
+
+        @Override
+        public String toString() {
+            return "requests " + requestCount + ", sent " + bytesSent + " bytes, received "
+                    + bytesReceived + " bytes, avg latency "
+                    + (requestCount == 0 ? 0 : totalLatencyMillis / requestCount) + " ms, max "
+                    + maxLatencyMillis + " ms";
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.Notes.SyncJournalColumns;
+import net.micode.notes.gtask.data.SqlWriteBatch;
+import net.micode.notes.gtask.exception.ActionFailureException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 同步日志。
+ * 同步过程中记录已经完成的操作和它们应有的同步ID，定期成批写入数据库；
+ * 修改远程节点的操作和清除本地修改标志的更新在同一个事务中写入日志，服务器确认后再标记为完成。
+ * 同步中断（进程被杀或网络失败）后，下次同步开始时根据日志恢复：
+ * 已完成的操作直接写入同步ID，不再重新比较和传输；没有确认的修改重新标记为本地修改，再次发送。
+ */
+class SyncJournal {
+    private static final String TAG = SyncJournal.class.getSimpleName();
+
+    // 积累多少个已完成的操作后写入一次检查点
+    private static final int CHECKPOINT_INTERVAL = 200;
+
+    private static final String[] PROJECTION = new String[] {
+            SyncJournalColumns.NOTE_ID, SyncJournalColumns.GTASK_ID, SyncJournalColumns.STATE,
+            SyncJournalColumns.SYNC_ID, SyncJournalColumns.ID
+    };
+
+    private static final int NOTE_ID_COLUMN = 0;
+
+    private static final int GTASK_ID_COLUMN = 1;
+
+    private static final int STATE_COLUMN = 2;
+
+    private static final int SYNC_ID_COLUMN = 3;
+
+    private static final int ID_COLUMN = 4;
+
+    private final ContentResolver mContentResolver;
+
+    // 同步期间的本地写入，检查点和它们在同一个事务中写入
+    private final SqlWriteBatch mWriteBatch;
+
+    // 还没有写入数据库的已完成操作
+    private final ArrayList<ContentValues> mDone = new ArrayList<ContentValues>();
+
+    // 已经加入写入批次、还没有确认的远程修改，键为日志行的ID，值为远程节点的ID
+    private final HashMap<Long, String> mPending = new HashMap<Long, String>();
+
+    // 下一个日志行的ID。行ID由日志分配，远程修改的行写入之前就能确定，确认时按ID更新
+    private long mNextId = 1;
+
+    SyncJournal(ContentResolver resolver, SqlWriteBatch writeBatch) {
+        mContentResolver = resolver;
+        mWriteBatch = writeBatch;
+    }
+
+    /**
+     * 根据上次中断的同步留下的日志恢复本地状态，然后清空日志
+     *
+     * @return 恢复的操作数
+     */
+    int resume() {
+        Cursor c = mContentResolver.query(Notes.CONTENT_SYNC_JOURNAL_URI, PROJECTION, null,
+                null, SyncJournalColumns.ID);
+        if (c == null) {
+            return 0;
+        }
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        try {
+            while (c.moveToNext()) {
+                // 恢复后日志被清空，新的行从上次用过的ID之后开始，不会和还没有删除的行冲突
+                mNextId = Math.max(mNextId, c.getLong(ID_COLUMN) + 1);
+                Uri uri = ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
+                        c.getLong(NOTE_ID_COLUMN));
+                if (c.getInt(STATE_COLUMN) == SyncJournalColumns.STATE_DONE) {
+                    // 操作已经完成，写入同步ID，笔记已经换了远程节点时不再适用
+                    operations.add(ContentProviderOperation.newUpdate(uri)
+                            .withValue(NoteColumns.SYNC_ID, c.getLong(SYNC_ID_COLUMN))
+                            .withSelection(NoteColumns.GTASK_ID + "=?",
+                                    new String[] { c.getString(GTASK_ID_COLUMN) })
+                            .build());
+                } else {
+                    // 服务器可能没有收到修改，下次同步重新发送
+                    operations.add(ContentProviderOperation.newUpdate(uri)
+                            .withValue(NoteColumns.LOCAL_MODIFIED, 1)
+                            .build());
+                }
+            }
+        } finally {
+            c.close();
+        }
+        if (operations.isEmpty()) {
+            return 0;
+        }
+
+        operations.add(ContentProviderOperation.newDelete(Notes.CONTENT_SYNC_JOURNAL_URI)
+                .build());
+        apply(operations);
+        Log.d(TAG, "resumed " + (operations.size() - 1) + " operations from sync journal");
+        return operations.size() - 1;
+    }
+
+    /**
+     * 记录一个即将发给服务器的远程修改，在清除笔记的本地修改标志之前调用。
+     * 日志行加入本地写入批次，和之后清除标志的更新在同一个事务中写入
+     *
+     * @param noteId 本地笔记ID
+     * @param gid 远程节点的ID
+     * @param action 同步操作类型
+     */
+    void recordPending(long noteId, String gid, int action) {
+        ContentValues values = new ContentValues();
+        values.put(SyncJournalColumns.NOTE_ID, noteId);
+        values.put(SyncJournalColumns.GTASK_ID, gid);
+        values.put(SyncJournalColumns.ACTION, action);
+        values.put(SyncJournalColumns.STATE, SyncJournalColumns.STATE_PENDING);
+        long id = mNextId++;
+        values.put(SyncJournalColumns.ID, id);
+        mWriteBatch.add(ContentProviderOperation.newInsert(Notes.CONTENT_SYNC_JOURNAL_URI)
+                .withValues(values).build());
+        mPending.put(id, gid);
+    }
+
+    /**
+     * 记录一个已经完成的操作，积累到一定数量时写入检查点
+     *
+     * @param noteId 本地笔记ID
+     * @param gid 远程节点的ID
+     * @param action 同步操作类型
+     * @param syncId 笔记应有的同步ID
+     */
+    void recordDone(long noteId, String gid, int action, long syncId) {
+        ContentValues values = new ContentValues();
+        values.put(SyncJournalColumns.NOTE_ID, noteId);
+        values.put(SyncJournalColumns.GTASK_ID, gid);
+        values.put(SyncJournalColumns.ACTION, action);
+        values.put(SyncJournalColumns.STATE, SyncJournalColumns.STATE_DONE);
+        values.put(SyncJournalColumns.SYNC_ID, syncId);
+        values.put(SyncJournalColumns.ID, mNextId++);
+        mDone.add(values);
+        if (mDone.size() >= CHECKPOINT_INTERVAL) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * 写入检查点：保存积累的已完成操作，并把服务器已经确认的远程修改标记为完成。
+     * 日志和还没有写入的本地修改在同一个事务中写入，日志不会先于它记录的修改落盘
+     */
+    void checkpoint() {
+        for (ContentValues values : mDone) {
+            mWriteBatch.add(ContentProviderOperation.newInsert(Notes.CONTENT_SYNC_JOURNAL_URI)
+                    .withValues(values).build());
+        }
+
+        GTaskClient client = GTaskClient.getInstance();
+        Iterator<Map.Entry<Long, String>> iter = mPending.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Long, String> entry = iter.next();
+            Long modified = client.getCommittedModified(entry.getValue());
+            if (modified == null) {
+                continue;
+            }
+            mWriteBatch.add(ContentProviderOperation.newUpdate(Notes.CONTENT_SYNC_JOURNAL_URI)
+                    .withValue(SyncJournalColumns.STATE, SyncJournalColumns.STATE_DONE)
+                    .withValue(SyncJournalColumns.SYNC_ID, modified)
+                    .withSelection(SyncJournalColumns.ID + "=?",
+                            new String[] { String.valueOf(entry.getKey()) })
+                    .build());
+            iter.remove();
+        }
+
+        mWriteBatch.flush();
+        mDone.clear();
+    }
+
+    /**
+     * 同步完成，所有结果都已写入笔记，清空日志
+     */
+    void clear() {
+        mDone.clear();
+        mPending.clear();
+        clear(mContentResolver);
+    }
+
+    /**
+     * 清空日志，不做恢复。更换或移除同步账户时调用
+     *
+     * @param resolver 内容解析器
+     */
+    static void clear(ContentResolver resolver) {
+        resolver.delete(Notes.CONTENT_SYNC_JOURNAL_URI, null, null);
+    }
+
+    private void apply(ArrayList<ContentProviderOperation> operations) {
+        try {
+            mContentResolver.applyBatch(Notes.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("failed to write sync journal");
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("failed to write sync journal");
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.micode.notes.gtask.data.Node;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * 一次同步的统计。
+ * 按阶段记录耗时、请求数和收发的字节数，并按同步动作统计处理的笔记数。
+ * 阶段可以嵌套，外层阶段的数据包含其中的子阶段；同一阶段执行多次时累加。
+ * 最近几次同步的统计保存在偏好设置中，可以查询或输出到 dumpsys。
+ */
+public class SyncMetrics {
+    private static final String TAG = SyncMetrics.class.getSimpleName();
+
+    // 登录 Google 任务服务
+    public static final int PHASE_LOGIN = 0;
+    // 加载任务列表，见 GTaskManager.initGTaskList
+    public static final int PHASE_INIT_LIST = 1;
+    // 同步所有内容，包含文件夹同步、提交更新和刷新同步 ID
+    public static final int PHASE_SYNC_CONTENT = 2;
+    // 同步文件夹
+    public static final int PHASE_SYNC_FOLDER = 3;
+    // 把积累的修改提交到服务器，由 GTaskClient.commitUpdate 统计，
+    // 包括添加操作时自动触发的提交，数据同时计入发生提交的外层阶段
+    public static final int PHASE_COMMIT_UPDATE = 4;
+    // 刷新本地笔记的同步 ID
+    public static final int PHASE_REFRESH_SYNC_ID = 5;
+
+    public static final int PHASE_COUNT = 6;
+
+    private static final String[] PHASE_NAMES = new String[] {
+            "login", "init_list", "sync_content", "sync_folder", "commit_update",
+            "refresh_sync_id"
+    };
+
+    // 同步动作的种类数，与 Node.SYNC_ACTION_* 对应
+    private static final int ACTION_COUNT = Node.SYNC_ACTION_ERROR + 1;
+
+    private static final String[] ACTION_NAMES = new String[] {
+            "none", "add_remote", "add_local", "del_remote", "del_local", "update_remote",
+            "update_local", "conflict", "error"
+    };
+
+    // 保存最近多少次同步的统计
+    private static final int HISTORY_SIZE = 20;
+
+    private static final String PREFERENCE_NAME = "gtask_sync_metrics";
+
+    private static final String PREFERENCE_HISTORY = "history";
+
+    private static final String JSON_START = "start";
+    private static final String JSON_DURATION = "duration";
+    private static final String JSON_RESULT = "result";
+    private static final String JSON_INCREMENTAL = "incremental";
+    private static final String JSON_BACKGROUND = "background";
+    private static final String JSON_PHASES = "phases";
+    private static final String JSON_ACTIONS = "actions";
+
+    /**
+     * 一个阶段的统计
+     */
+    public static class Phase {
+        // 耗时（毫秒）
+        public long elapsedMillis;
+        // 请求数
+        public long requestCount;
+        // 发送的字节数
+        public long bytesSent;
+        // 接收的字节数
+        public long bytesReceived;
+
+        @Override
+        public String toString() {
+            return elapsedMillis + " ms, " + requestCount + " requests, sent " + bytesSent
+                    + " bytes, received " + bytesReceived + " bytes";
+        }
+    }
+
+    // 开始时间
+    private long mStartTime;
+
+    // 总耗时（毫秒）
+    private long mDuration;
+
+    // 同步结果，GTaskManager.STATE_*
+    private int mResult;
+
+    private boolean mIncremental;
+
+    private boolean mBackground;
+
+    private final Phase[] mPhases;
+
+    private final int[] mActionCounts;
+
+    // 同步开始和各阶段开始时的时钟
+    private long mStartElapsed;
+    private final long[] mPhaseStart;
+
+    // 各阶段开始时的传输统计
+    private final HttpTransport.Stats[] mPhaseStartStats;
+
+    public SyncMetrics() {
+        mPhases = new Phase[PHASE_COUNT];
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mPhases[i] = new Phase();
+        }
+        mActionCounts = new int[ACTION_COUNT];
+        mPhaseStart = new long[PHASE_COUNT];
+        mPhaseStartStats = new HttpTransport.Stats[PHASE_COUNT];
+    }
+
+    /**
+     * 开始统计一次同步
+     *
+     * @param background 是否为后台同步
+     */
+    public void start(boolean background) {
+        mStartTime = System.currentTimeMillis();
+        mStartElapsed = SystemClock.elapsedRealtime();
+        mBackground = background;
+    }
+
+    /**
+     * 结束统计
+     *
+     * @param result 同步结果
+     */
+    public void finish(int result) {
+        mDuration = SystemClock.elapsedRealtime() - mStartElapsed;
+        mResult = result;
+    }
+
+    public void setIncremental(boolean incremental) {
+        mIncremental = incremental;
+    }
+
+    /**
+     * 开始一个阶段
+     *
+     * @param phase 阶段，PHASE_*
+     * @param stats 当前的传输统计，还没有连接时为 null
+     */
+    public void beginPhase(int phase, HttpTransport.Stats stats) {
+        mPhaseStart[phase] = SystemClock.elapsedRealtime();
+        mPhaseStartStats[phase] = stats;
+    }
+
+    /**
+     * 结束一个阶段，把期间的耗时和传输量累加到该阶段
+     *
+     * @param phase 阶段，PHASE_*
+     * @param stats 当前的传输统计，还没有连接时为 null
+     */
+    public void endPhase(int phase, HttpTransport.Stats stats) {
+        Phase p = mPhases[phase];
+        p.elapsedMillis += SystemClock.elapsedRealtime() - mPhaseStart[phase];
+        HttpTransport.Stats before = mPhaseStartStats[phase];
+        mPhaseStartStats[phase] = null;
+        if (stats == null) {
+            return;
+        }
+        // 登录时会换用新的传输层，统计从零开始，这时整个统计都属于这个阶段
+        if (before == null || stats.requestCount < before.requestCount) {
+            before = new HttpTransport.Stats();
+        }
+        p.requestCount += stats.requestCount - before.requestCount;
+        p.bytesSent += Math.max(0, stats.bytesSent - before.bytesSent);
+        p.bytesReceived += Math.max(0, stats.bytesReceived - before.bytesReceived);
+    }
+
+    /**
+     * 把在其他地方测量的统计累加到一个阶段
+     *
+     * @param phase 阶段，PHASE_*
+     * @param stats 要累加的统计
+     */
+    public void addPhase(int phase, Phase stats) {
+        Phase p = mPhases[phase];
+        p.elapsedMillis += stats.elapsedMillis;
+        p.requestCount += stats.requestCount;
+        p.bytesSent += stats.bytesSent;
+        p.bytesReceived += stats.bytesReceived;
+    }
+
+    /**
+     * 记录处理了一条笔记
+     *
+     * @param action 同步动作，Node.SYNC_ACTION_*
+     */
+    public void countAction(int action) {
+        if (action >= 0 && action < ACTION_COUNT) {
+            mActionCounts[action]++;
+        }
+    }
+
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public long getDuration() {
+        return mDuration;
+    }
+
+    public int getResult() {
+        return mResult;
+    }
+
+    public boolean isIncremental() {
+        return mIncremental;
+    }
+
+    public boolean isBackground() {
+        return mBackground;
+    }
+
+    /**
+     * @param phase 阶段，PHASE_*
+     * @return 该阶段的统计
+     */
+    public Phase getPhase(int phase) {
+        return mPhases[phase];
+    }
+
+    /**
+     * @param action 同步动作，Node.SYNC_ACTION_*
+     * @return 按该动作处理的笔记数
+     */
+    public int getActionCount(int action) {
+        return mActionCounts[action];
+    }
+
+    /**
+     * @return 所有阶段的请求数，嵌套的子阶段不重复计算
+     */
+    public long getRequestCount() {
+        return mPhases[PHASE_LOGIN].requestCount + mPhases[PHASE_INIT_LIST].requestCount
+                + mPhases[PHASE_SYNC_CONTENT].requestCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("result ").append(mResult).append(mIncremental ? ", incremental" : ", full")
+                .append(mBackground ? ", background" : "").append(", ").append(mDuration)
+                .append(" ms");
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            sb.append("\n  ").append(PHASE_NAMES[i]).append(": ").append(mPhases[i]);
+        }
+        sb.append("\n  actions:");
+        for (int i = 0; i < ACTION_COUNT; i++) {
+            if (mActionCounts[i] > 0) {
+                sb.append(' ').append(ACTION_NAMES[i]).append('=').append(mActionCounts[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    private JSONObject toJSON() throws JSONException {
+        JSONObject js = new JSONObject();
+        js.put(JSON_START, mStartTime);
+        js.put(JSON_DURATION, mDuration);
+        js.put(JSON_RESULT, mResult);
+        js.put(JSON_INCREMENTAL, mIncremental);
+        js.put(JSON_BACKGROUND, mBackground);
+        JSONArray phases = new JSONArray();
+        for (Phase p : mPhases) {
+            phases.put(new JSONArray().put(p.elapsedMillis).put(p.requestCount)
+                    .put(p.bytesSent).put(p.bytesReceived));
+        }
+        js.put(JSON_PHASES, phases);
+        JSONArray actions = new JSONArray();
+        for (int count : mActionCounts) {
+            actions.put(count);
+        }
+        js.put(JSON_ACTIONS, actions);
+        return js;
+    }
+
+    private static SyncMetrics fromJSON(JSONObject js) throws JSONException {
+        SyncMetrics metrics = new SyncMetrics();
+        metrics.mStartTime = js.getLong(JSON_START);
+        metrics.mDuration = js.getLong(JSON_DURATION);
+        metrics.mResult = js.getInt(JSON_RESULT);
+        metrics.mIncremental = js.optBoolean(JSON_INCREMENTAL);
+        metrics.mBackground = js.optBoolean(JSON_BACKGROUND);
+        JSONArray phases = js.getJSONArray(JSON_PHASES);
+        for (int i = 0; i < Math.min(phases.length(), PHASE_COUNT); i++) {
+            JSONArray values = phases.getJSONArray(i);
+            Phase p = metrics.mPhases[i];
+            p.elapsedMillis = values.getLong(0);
+            p.requestCount = values.getLong(1);
+            p.bytesSent = values.getLong(2);
+            p.bytesReceived = values.getLong(3);
+        }
+        JSONArray actions = js.getJSONArray(JSON_ACTIONS);
+        for (int i = 0; i < Math.min(actions.length(), ACTION_COUNT); i++) {
+            metrics.mActionCounts[i] = actions.getInt(i);
+        }
+        return metrics;
+    }
+
+    /**
+     * 保存一次同步的统计，只保留最近的 {@link #HISTORY_SIZE} 次
+     *
+     * @param context 上下文
+     * @param metrics 同步的统计
+     */
+    public static synchronized void record(Context context, SyncMetrics metrics) {
+        SharedPreferences settings = getPreferences(context);
+        JSONArray history = loadHistory(settings);
+        try {
+            JSONArray trimmed = new JSONArray();
+            for (int i = Math.max(0, history.length() - HISTORY_SIZE + 1); i < history.length();
+                    i++) {
+                trimmed.put(history.getJSONObject(i));
+            }
+            trimmed.put(metrics.toJSON());
+            settings.edit().putString(PREFERENCE_HISTORY, trimmed.toString()).commit();
+        } catch (JSONException e) {
+            Log.e(TAG, "failed to save sync metrics", e);
+        }
+    }
+
+    /**
+     * @param context 上下文
+     * @return 最近几次同步的统计，按时间先后排列
+     */
+    public static synchronized List<SyncMetrics> getHistory(Context context) {
+        JSONArray history = loadHistory(getPreferences(context));
+        ArrayList<SyncMetrics> list = new ArrayList<SyncMetrics>(history.length());
+        for (int i = 0; i < history.length(); i++) {
+            try {
+                list.add(fromJSON(history.getJSONObject(i)));
+            } catch (JSONException e) {
+                Log.w(TAG, "skip broken sync metrics " + i);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * 输出最近几次同步的统计
+     *
+     * @param context 上下文
+     * @param writer 输出目标
+     */
+    public static void dump(Context context, PrintWriter writer) {
+        List<SyncMetrics> history = getHistory(context);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        writer.println("Recent syncs: " + history.size());
+        for (SyncMetrics metrics : history) {
+            writer.println(format.format(new Date(metrics.getStartTime())) + " " + metrics);
+        }
+    }
+
+    private static JSONArray loadHistory(SharedPreferences settings) {
+        String json = settings.getString(PREFERENCE_HISTORY, null);
+        if (json != null) {
+            try {
+                return new JSONArray(json);
+            } catch (JSONException e) {
+                Log.w(TAG, "discard broken sync metrics history");
+            }
+        }
+        return new JSONArray();
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+/**
+ * 后台同步的调度。
+ * 设置了同步账户后每半天同步一次；本地修改后等待一段时间再同步，
+ * 期间的连续修改只推迟这一次同步，不会各自触发同步，但距离第一次修改不超过最长等待时间。
+ * 使用计费网络或电量不足时推迟执行，待同步的修改记录在偏好设置中，直到同步成功才清除，
+ * 同步失败后重启也会重新安排。
+ */
+public class SyncScheduler {
+    private static final String TAG = SyncScheduler.class.getSimpleName();
+
+    // 定时同步的间隔
+    private static final long PERIODIC_INTERVAL = AlarmManager.INTERVAL_HALF_DAY;
+
+    // 本地修改后等待多久同步，期间再有修改时重新计时
+    private static final long CHANGE_DELAY = 5 * 60 * 1000L;
+
+    // 连续修改时距离第一次修改最多等待多久
+    private static final long MAX_CHANGE_DELAY = 30 * 60 * 1000L;
+
+    // 条件不满足时推迟多久再尝试
+    private static final long DEFER_DELAY = 30 * 60 * 1000L;
+
+    // 没有充电时低于该电量百分比不同步
+    private static final int MIN_BATTERY_PERCENT = 20;
+
+    // 后台同步最长运行时间，超过后取消本次同步
+    public static final long MAX_RUN_TIME = 10 * 60 * 1000L;
+
+    // 第一次未同步的本地修改的时间，没有待同步的修改时为 0
+    private static final String PREFERENCE_SYNC_PENDING_SINCE = "pref_sync_pending_since";
+
+    // 最近一次本地修改的时间，同步成功时用来判断同步期间是否又有修改
+    private static final String PREFERENCE_SYNC_LAST_CHANGE = "pref_sync_last_change";
+
+    private static final int REQUEST_PERIODIC = 1;
+
+    private static final int REQUEST_CHANGE = 2;
+
+    private SyncScheduler() {
+    }
+
+    /**
+     * 安排定时同步，已经安排过时不会重复安排；有未同步的修改时重新安排修改后的同步
+     *
+     * @param context 上下文
+     */
+    public static void schedule(Context context) {
+        Intent intent = getSyncIntent(context);
+        if (PendingIntent.getService(context, REQUEST_PERIODIC, intent,
+                PendingIntent.FLAG_NO_CREATE) == null) {
+            PendingIntent pendingIntent = PendingIntent.getService(context, REQUEST_PERIODIC,
+                    intent, 0);
+            AlarmManager alarmManager = (AlarmManager) context
+                    .getSystemService(Context.ALARM_SERVICE);
+            // 不唤醒设备，和其他应用的定时任务一起在设备醒着的时候执行
+            alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                    SystemClock.elapsedRealtime() + PERIODIC_INTERVAL, PERIODIC_INTERVAL,
+                    pendingIntent);
+        }
+
+        // 重启会清除闹钟，上次的修改还没有同步时重新安排
+        if (getPreferences(context).getLong(PREFERENCE_SYNC_PENDING_SINCE, 0) != 0) {
+            setChangeAlarm(context, CHANGE_DELAY);
+        }
+    }
+
+    /**
+     * 本地有修改时调用，在等待时间结束后同步
+     *
+     * @param context 上下文
+     */
+    public static void onLocalChange(Context context) {
+        if (TextUtils.isEmpty(NotesPreferenceActivity.getSyncAccountName(context))) {
+            return;
+        }
+        SharedPreferences settings = getPreferences(context);
+        long now = System.currentTimeMillis();
+        long since = settings.getLong(PREFERENCE_SYNC_PENDING_SINCE, 0);
+        SharedPreferences.Editor editor = settings.edit();
+        if (since == 0 || since > now) {
+            since = now;
+            editor.putLong(PREFERENCE_SYNC_PENDING_SINCE, since);
+        }
+        // 每次保存笔记都会调用，异步写入，不阻塞界面线程
+        editor.putLong(PREFERENCE_SYNC_LAST_CHANGE, now).apply();
+        // 同一个 PendingIntent 的闹钟会替换之前的闹钟，连续修改只会推迟同步
+        long delay = Math.min(CHANGE_DELAY, since + MAX_CHANGE_DELAY - now);
+        setChangeAlarm(context, Math.max(delay, 0));
+    }
+
+    /**
+     * 同步开始时调用，之前的修改都会在这次同步中处理，取消等待中的修改后同步。
+     * 待同步的修改记录保留到同步成功，同步失败时重启后仍会重新安排
+     *
+     * @param context 上下文
+     */
+    public static void onSyncStarted(Context context) {
+        PendingIntent pendingIntent = PendingIntent.getService(context, REQUEST_CHANGE,
+                getSyncIntent(context), PendingIntent.FLAG_NO_CREATE);
+        if (pendingIntent != null) {
+            AlarmManager alarmManager = (AlarmManager) context
+                    .getSystemService(Context.ALARM_SERVICE);
+            alarmManager.cancel(pendingIntent);
+            pendingIntent.cancel();
+        }
+    }
+
+    /**
+     * 同步成功时调用，清除同步开始之前的修改记录；同步期间又有修改时保留，
+     * 这些修改已经安排了下一次同步
+     *
+     * @param context 上下文
+     * @param syncStartTime 同步开始的时间
+     */
+    public static void onSyncSucceeded(Context context, long syncStartTime) {
+        SharedPreferences settings = getPreferences(context);
+        if (settings.getLong(PREFERENCE_SYNC_LAST_CHANGE, 0) < syncStartTime) {
+            settings.edit().remove(PREFERENCE_SYNC_PENDING_SINCE)
+                    .remove(PREFERENCE_SYNC_LAST_CHANGE).apply();
+        }
+    }
+
+    /**
+     * 当前条件不适合同步，推迟一段时间后再尝试
+     *
+     * @param context 上下文
+     */
+    public static void defer(Context context) {
+        setChangeAlarm(context, DEFER_DELAY);
+    }
+
+    /**
+     * 检查当前是否适合在后台同步：有不计费的网络连接，并且正在充电或电量充足
+     *
+     * @param context 上下文
+     * @return 适合同步时返回 true
+     */
+    public static boolean canRunNow(Context context) {
+        ConnectivityManager connectivity = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = connectivity.getActiveNetworkInfo();
+        if (network == null || !network.isConnected()) {
+            Log.d(TAG, "no network connection");
+            return false;
+        }
+        boolean metered;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            metered = connectivity.isActiveNetworkMetered();
+        } else {
+            // 旧系统无法判断是否计费，把移动网络都当作计费网络
+            metered = network.getType() == ConnectivityManager.TYPE_MOBILE;
+        }
+        if (metered) {
+            Log.d(TAG, "active network is metered");
+            return false;
+        }
+
+        // 电池状态是粘性广播，不需要注册接收器就能取得最近一次的状态
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+            boolean charging = status == BatteryManager.BATTERY_STATUS_CHARGING
+                    || status == BatteryManager.BATTERY_STATUS_FULL;
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (!charging && level >= 0 && scale > 0
+                    && level * 100 / scale < MIN_BATTERY_PERCENT) {
+                Log.d(TAG, "battery is low");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void setChangeAlarm(Context context, long delay) {
+        PendingIntent pendingIntent = PendingIntent.getService(context, REQUEST_CHANGE,
+                getSyncIntent(context), 0);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmManager.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delay,
+                pendingIntent);
+    }
+
+    private static Intent getSyncIntent(Context context) {
+        Intent intent = new Intent(context, GTaskSyncService.class);
+        intent.putExtra(GTaskSyncService.ACTION_STRING_NAME,
+                GTaskSyncService.ACTION_BACKGROUND_SYNC);
+        return intent;
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.Log;
+
+import net.micode.notes.gtask.data.MetaData;
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.gtask.exception.NetworkFailureException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 并行获取任务列表中的任务。
+ * 请求和响应的解析都在工作线程中进行，调用者按自己的顺序取回结果，合并的顺序与请求完成的先后无关。
+ */
+class TaskListFetcher {
+    // 日志标签
+    private static final String TAG = TaskListFetcher.class.getSimpleName();
+
+    // 执行请求的线程池
+    private final ExecutorService mExecutor;
+
+    // 已提交的请求，键为任务列表的ID
+    private final HashMap<String, Future<ArrayList<Task>>> mFutures;
+
+    // 是否已取消
+    private volatile boolean mCancelled;
+
+    /**
+     * 构造函数
+     * @param threads 同时进行的请求数
+     */
+    TaskListFetcher(int threads) {
+        mExecutor = Executors.newFixedThreadPool(threads);
+        mFutures = new HashMap<String, Future<ArrayList<Task>>>();
+    }
+
+    /**
+     * 提交一个任务列表的获取请求
+     * @param listGid 任务列表的ID
+     * @param meta 是否为元数据列表，元数据列表中的任务解析为 {@link MetaData}
+     */
+    synchronized void fetch(final String listGid, final boolean meta) {
+        if (mCancelled || mFutures.containsKey(listGid)) {
+            return;
+        }
+        mFutures.put(listGid, mExecutor.submit(new Callable<ArrayList<Task>>() {
+            public ArrayList<Task> call() throws Exception {
+                return GTaskClient.getInstance().fetchTasks(listGid, meta);
+            }
+        }));
+    }
+
+    /**
+     * 等待并取回一个任务列表中的任务
+     * @param listGid 任务列表的ID
+     * @return 值得保存的任务，已取消时返回 null
+     * @throws NetworkFailureException 如果网络连接失败
+     */
+    ArrayList<Task> get(String listGid) throws NetworkFailureException {
+        Future<ArrayList<Task>> future;
+        synchronized (this) {
+            future = mFutures.get(listGid);
+        }
+        if (future == null || mCancelled) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (CancellationException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            // 一个请求失败时，其余请求的结果也不再需要
+            cancel();
+            Throwable cause = e.getCause();
+            if (cause instanceof NetworkFailureException) {
+                throw (NetworkFailureException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            Log.e(TAG, cause.toString());
+            throw new ActionFailureException("fetch task list failed");
+        }
+    }
+
+    /**
+     * 取消所有还没有完成的请求，等待结果的调用者立即返回
+     */
+    synchronized void cancel() {
+        mCancelled = true;
+        for (Future<ArrayList<Task>> future : mFutures.values()) {
+            future.cancel(true);
+        }
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * 不再接受新的请求，正在进行的请求完成后释放线程
+     */
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+}
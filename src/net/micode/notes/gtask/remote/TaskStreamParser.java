@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import net.micode.notes.gtask.data.MetaData;
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * 以流的方式解析获取任务列表的响应。
+ * 响应中每次只把一个任务转换成 JSON 对象并立即生成 {@link Task}，
+ * 不需要先读出整个响应字符串再构建完整的 JSON 树，内存占用只与单个任务的大小有关。
+ */
+class TaskStreamParser {
+
+    private TaskStreamParser() {
+    }
+
+    /**
+     * 解析响应中的任务数组
+     *
+     * @param in 响应内容
+     * @param meta 是否为元数据列表，元数据列表中的任务解析为 {@link MetaData}
+     * @return 值得保存的任务
+     * @throws IOException 读取失败或响应格式错误时抛出
+     * @throws JSONException 任务内容无法转换时抛出
+     */
+    static ArrayList<Task> parseTasks(Reader in, boolean meta) throws IOException, JSONException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            ArrayList<Task> tasks = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (GTaskStringUtils.GTASK_JSON_TASKS.equals(reader.nextName())) {
+                    tasks = readTasks(reader, meta);
+                } else {
+                    // 响应中的其他内容不需要
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (tasks == null) {
+                throw new ActionFailureException("get task list: no tasks in response");
+            }
+            return tasks;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static ArrayList<Task> readTasks(JsonReader reader, boolean meta)
+            throws IOException, JSONException {
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            Task task = meta ? new MetaData() : new Task();
+            // 根据远程JSON对象设置任务的内容
+            task.setContentByRemoteJSON(readObject(reader));
+            // 只保留值得保存的任务
+            if (task.isWorthSaving()) {
+                tasks.add(task);
+            }
+        }
+        reader.endArray();
+        return tasks;
+    }
+
+    private static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject object = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            object.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return object;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER:
+                // 时间戳等整数保持为 long，避免精度损失
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
+                }
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+}
@@ -32,6 +32,7 @@ import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.gtask.remote.SyncScheduler;
 import net.micode.notes.tool.ResourceParser.NoteBgResources;
 
 /**
@@ -256,6 +257,8 @@ public class WorkingNote {
 
             // 同步笔记
             mNote.syncNote(mContext, mNoteId);
+            // 安排修改后的后台同步
+            SyncScheduler.onLocalChange(mContext);
 
             /**
              * 更新小部件内容，如果存在该笔记的小部件
@@ -19,24 +19,33 @@ package net.micode.notes.tool;
 import android.content.Context;
 import android.database.Cursor;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
+import android.text.format.DateUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.ExportColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 
 /**
- * 该类用于处理笔记的备份操作，将笔记数据导出为文本文件。
+ * 该类用于处理笔记的备份操作，将笔记数据导出为文本文件或 JSON 文件。
  */
 public class BackupUtils {
     private static final String TAG = "BackupUtils";
@@ -70,15 +79,36 @@ public class BackupUtils {
     // 备份或恢复成功
     public static final int STATE_SUCCESS                      = 4;
 
-    private TextExport mTextExport;
+    /**
+     * 以下常量用于表示导出文件的格式
+     */
+    // 用户可读的文本格式
+    public static final int FORMAT_TEXT                        = 0;
+    // 每行一条笔记的 JSON 格式，便于其他程序读取
+    public static final int FORMAT_JSON_LINES                  = 1;
+
+    /**
+     * 导出进度监听接口
+     */
+    public interface ExportProgressListener {
+        /**
+         * 每导出一批笔记后调用一次
+         *
+         * @param exported 已导出的数据行数
+         * @param total 需要导出的数据行数
+         */
+        void onProgress(int exported, int total);
+    }
+
+    private NoteExport mNoteExport;
 
     /**
-     * 构造函数，初始化 TextExport 对象。
+     * 构造函数，初始化 NoteExport 对象。
      *
      * @param context 上下文对象
      */
     private BackupUtils(Context context) {
-        mTextExport = new TextExport(context);
+        mNoteExport = new NoteExport(context);
     }
 
     /**
@@ -91,12 +121,14 @@ public class BackupUtils {
     }
 
     /**
-     * 将笔记导出为文本文件。
+     * 将笔记按指定格式导出到文件。
      *
+     * @param format 导出格式，{@link #FORMAT_TEXT} 或 {@link #FORMAT_JSON_LINES}
+     * @param listener 导出进度监听器，可以为 null
      * @return 导出操作的状态码
      */
-    public int exportToText() {
-        return mTextExport.exportToText();
+    public int export(int format, ExportProgressListener listener) {
+        return mNoteExport.export(format, listener);
     }
 
     /**
@@ -105,7 +137,7 @@ public class BackupUtils {
      * @return 导出的文本文件的文件名
      */
     public String getExportedTextFileName() {
-        return mTextExport.mFileName;
+        return mNoteExport.mFileName;
     }
 
     /**
@@ -114,46 +146,60 @@ public class BackupUtils {
      * @return 导出的文本文件的目录
      */
     public String getExportedTextFileDir() {
-        return mTextExport.mFileDirectory;
+        return mNoteExport.mFileDirectory;
     }
 
     /**
-     * 内部类，用于处理文本导出操作。
+     * 获取上一次导出的笔记数量。
+     *
+     * @return 上一次导出的笔记数量
+     */
+    public int getExportedNoteCount() {
+        return mNoteExport.mNoteCount;
+    }
+
+    /**
+     * 获取上一次导出写入的字节数。
+     *
+     * @return 上一次导出写入的字节数
+     */
+    public long getExportedBytes() {
+        return mNoteExport.mBytes;
+    }
+
+    /**
+     * 获取上一次导出的耗时。
+     *
+     * @return 上一次导出的耗时（毫秒）
      */
-    private static class TextExport {
-        // 笔记查询的投影列
-        private static final String[] NOTE_PROJECTION = {
+    public long getExportElapsed() {
+        return mNoteExport.mElapsed;
+    }
+
+    /**
+     * 内部类，用于处理导出操作。
+     * 通过一个按文件夹排序的游标一次取出所有笔记及其数据，边读边写入带缓冲的文件。
+     */
+    private static class NoteExport {
+        // 文件夹查询的投影列
+        private static final String[] FOLDER_PROJECTION = {
                 NoteColumns.ID,
-                NoteColumns.MODIFIED_DATE,
-                NoteColumns.SNIPPET,
-                NoteColumns.TYPE
+                NoteColumns.SNIPPET
         };
 
-        // 笔记 ID 列的索引
-        private static final int NOTE_COLUMN_ID = 0;
-        // 笔记修改日期列的索引
-        private static final int NOTE_COLUMN_MODIFIED_DATE = 1;
-        // 笔记摘要列的索引
-        private static final int NOTE_COLUMN_SNIPPET = 2;
-
-        // 数据查询的投影列
-        private static final String[] DATA_PROJECTION = {
-                DataColumns.CONTENT,
-                DataColumns.MIME_TYPE,
-                DataColumns.DATA1,
-                DataColumns.DATA2,
-                DataColumns.DATA3,
-                DataColumns.DATA4,
-        };
+        // 文件夹 ID 列的索引
+        private static final int FOLDER_COLUMN_ID = 0;
+        // 文件夹名称列的索引
+        private static final int FOLDER_COLUMN_SNIPPET = 1;
 
-        // 数据内容列的索引
-        private static final int DATA_COLUMN_CONTENT = 0;
-        // 数据 MIME 类型列的索引
-        private static final int DATA_COLUMN_MIME_TYPE = 1;
-        // 数据通话日期列的索引
-        private static final int DATA_COLUMN_CALL_DATE = 2;
-        // 数据电话号码列的索引
-        private static final int DATA_COLUMN_PHONE_NUMBER = 4;
+        // 写入文件的缓冲区大小
+        private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+        // 每导出多少行数据通知一次进度
+        private static final int PROGRESS_INTERVAL = 200;
+        // 笔记之间的分隔符
+        private static final String NOTE_SEPARATOR = "\r\n";
+        // JSON 格式中存放笔记数据行的键名
+        private static final String JSON_KEY_DATA = "data";
 
         // 文本格式数组
         private final String [] TEXT_FORMAT;
@@ -167,13 +213,21 @@ public class BackupUtils {
         private Context mContext;
         private String mFileName;
         private String mFileDirectory;
+        private int mNoteCount;
+        private long mBytes;
+        private long mElapsed;
+
+        // 日期格式，以及上一次格式化的分钟和结果，同一分钟内修改的笔记不用重复格式化
+        private String mDateFormat;
+        private long mLastFormattedMinute;
+        private CharSequence mLastFormattedDate;
 
         /**
          * 构造函数，初始化文本格式数组和上下文。
          *
          * @param context 上下文对象
          */
-        public TextExport(Context context) {
+        public NoteExport(Context context) {
             TEXT_FORMAT = context.getResources().getStringArray(R.array.format_for_exported_note);
             mContext = context;
             mFileName = "";
@@ -181,195 +235,256 @@ public class BackupUtils {
         }
 
         /**
-         * 根据索引获取文本格式。
+         * 按格式写入一行文本，格式中的 %s 替换为指定的值。
          *
+         * @param writer 输出流
          * @param id 格式索引
-         * @return 对应的文本格式字符串
+         * @param value 要写入的值
          */
-        private String getFormat(int id) {
-            return TEXT_FORMAT[id];
+        private void writeFormatted(Writer writer, int id, CharSequence value) throws IOException {
+            String format = TEXT_FORMAT[id];
+            int index = format.indexOf("%s");
+            if (index < 0) {
+                writer.write(String.format(format, value));
+            } else {
+                writer.write(format, 0, index);
+                writer.append(value);
+                writer.write(format, index + 2, format.length() - index - 2);
+            }
+            writer.write('\n');
         }
 
         /**
-         * 将指定文件夹下的笔记导出为文本。
+         * 格式化日期，精确到分钟。
          *
-         * @param folderId 文件夹 ID
-         * @param ps 打印流对象
+         * @param date 时间戳
+         * @return 格式化后的日期
          */
-        private void exportFolderToText(String folderId, PrintStream ps) {
-            // 查询属于该文件夹的笔记
-            Cursor notesCursor = mContext.getContentResolver().query(Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION, NoteColumns.PARENT_ID + "=?", new String[] {
-                        folderId
-                    }, null);
-
-            if (notesCursor != null) {
-                if (notesCursor.moveToFirst()) {
-                    do {
-                        // 打印笔记的最后修改日期
-                        ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
-                                mContext.getString(R.string.format_datetime_mdhm),
-                                notesCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-                        // 查询属于该笔记的数据
-                        String noteId = notesCursor.getString(NOTE_COLUMN_ID);
-                        exportNoteToText(noteId, ps);
-                    } while (notesCursor.moveToNext());
-                }
-                notesCursor.close();
+        private CharSequence formatDate(long date) {
+            long minute = date / DateUtils.MINUTE_IN_MILLIS;
+            if (mLastFormattedDate == null || minute != mLastFormattedMinute) {
+                mLastFormattedMinute = minute;
+                mLastFormattedDate = DateFormat.format(mDateFormat, date);
             }
+            return mLastFormattedDate;
         }
 
         /**
-         * 将指定 ID 的笔记导出为文本。
+         * 将笔记按指定格式导出到文件。
          *
-         * @param noteId 笔记 ID
-         * @param ps 打印流对象
+         * @param format 导出格式
+         * @param listener 导出进度监听器，可以为 null
+         * @return 导出操作的状态码
          */
-        private void exportNoteToText(String noteId, PrintStream ps) {
-            Cursor dataCursor = mContext.getContentResolver().query(Notes.CONTENT_DATA_URI,
-                    DATA_PROJECTION, DataColumns.NOTE_ID + "=?", new String[] {
-                        noteId
-                    }, null);
-
-            if (dataCursor != null) {
-                if (dataCursor.moveToFirst()) {
-                    do {
-                        String mimeType = dataCursor.getString(DATA_COLUMN_MIME_TYPE);
-                        if (DataConstants.CALL_NOTE.equals(mimeType)) {
-                            // 打印电话号码
-                            String phoneNumber = dataCursor.getString(DATA_COLUMN_PHONE_NUMBER);
-                            long callDate = dataCursor.getLong(DATA_COLUMN_CALL_DATE);
-                            String location = dataCursor.getString(DATA_COLUMN_CONTENT);
-
-                            if (!TextUtils.isEmpty(phoneNumber)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        phoneNumber));
-                            }
-                            // 打印通话日期
-                            ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT), DateFormat
-                                    .format(mContext.getString(R.string.format_datetime_mdhm),
-                                            callDate)));
-                            // 打印通话附件位置
-                            if (!TextUtils.isEmpty(location)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        location));
-                            }
-                        } else if (DataConstants.NOTE.equals(mimeType)) {
-                            String content = dataCursor.getString(DATA_COLUMN_CONTENT);
-                            if (!TextUtils.isEmpty(content)) {
-                                ps.println(String.format(getFormat(FORMAT_NOTE_CONTENT),
-                                        content));
-                            }
-                        }
-                    } while (dataCursor.moveToNext());
-                }
-                dataCursor.close();
+        public int export(int format, ExportProgressListener listener) {
+            if (!externalStorageAvailable()) {
+                Log.d(TAG, "Media was not mounted");
+                return STATE_SD_CARD_UNMOUONTED;
+            }
+
+            long start = SystemClock.elapsedRealtime();
+            mNoteCount = 0;
+            mBytes = 0;
+            mDateFormat = mContext.getString(R.string.format_datetime_mdhm);
+            mLastFormattedDate = null;
+
+            File file = generateFileMountedOnSDcard(mContext, R.string.file_path,
+                    format == FORMAT_JSON_LINES ? R.string.file_name_jsonl_format
+                            : R.string.file_name_txt_format);
+            if (file == null) {
+                Log.e(TAG, "create file to exported failed");
+                return STATE_SYSTEM_ERROR;
             }
-            // 在笔记之间打印换行符
+            mFileName = file.getName();
+            mFileDirectory = mContext.getString(R.string.file_path);
+
+            Cursor cursor = null;
+            Writer writer = null;
             try {
-                ps.write(new byte[] {
-                        Character.LINE_SEPARATOR, Character.LETTER_NUMBER
-                });
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                        "UTF-8"), WRITE_BUFFER_SIZE);
+                cursor = mContext.getContentResolver().query(Notes.CONTENT_EXPORT_URI, null,
+                        null, null, null);
+                if (cursor == null) {
+                    Log.e(TAG, "query notes to export failed");
+                    return STATE_SYSTEM_ERROR;
+                }
+                if (format == FORMAT_JSON_LINES) {
+                    exportToJsonLines(cursor, writer, listener);
+                } else {
+                    exportToText(cursor, writer, listener);
+                }
+                writer.flush();
             } catch (IOException e) {
                 Log.e(TAG, e.toString());
+                return STATE_SYSTEM_ERROR;
+            } catch (JSONException e) {
+                Log.e(TAG, e.toString());
+                return STATE_SYSTEM_ERROR;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+                if (writer != null) {
+                    try {
+                        writer.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, e.toString());
+                    }
+                }
             }
+
+            mBytes = file.length();
+            mElapsed = SystemClock.elapsedRealtime() - start;
+            Log.d(TAG, "exported " + mNoteCount + " notes, " + mBytes + " bytes in " + mElapsed
+                    + " ms (" + (mNoteCount * 1000L / Math.max(mElapsed, 1)) + " notes/s)");
+            return STATE_SUCCESS;
         }
 
         /**
-         * 将笔记导出为用户可读的文本。
+         * 读取文件夹名称，按 ID 排序，与导出游标中文件夹的顺序一致。
          *
-         * @return 导出操作的状态码
+         * @param ids 用于返回文件夹 ID
+         * @param names 用于返回文件夹名称
          */
-        public int exportToText() {
-            if (!externalStorageAvailable()) {
-                Log.d(TAG, "Media was not mounted");
-                return STATE_SD_CARD_UNMOUONTED;
-            }
-
-            PrintStream ps = getExportToTextPrintStream();
-            if (ps == null) {
-                Log.e(TAG, "get print stream error");
-                return STATE_SYSTEM_ERROR;
-            }
-            // 首先导出文件夹及其笔记
+        private void loadFolders(ArrayList<Long> ids, ArrayList<String> names) {
             Cursor folderCursor = mContext.getContentResolver().query(
                     Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION,
+                    FOLDER_PROJECTION,
                     "(" + NoteColumns.TYPE + "=" + Notes.TYPE_FOLDER + " AND "
                             + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER + ") OR "
-                            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER, null, null);
-
-            if (folderCursor != null) {
-                if (folderCursor.moveToFirst()) {
-                    do {
-                        // 打印文件夹名称
-                        String folderName = "";
-                        if(folderCursor.getLong(NOTE_COLUMN_ID) == Notes.ID_CALL_RECORD_FOLDER) {
-                            folderName = mContext.getString(R.string.call_record_folder_name);
-                        } else {
-                            folderName = folderCursor.getString(NOTE_COLUMN_SNIPPET);
-                        }
-                        if (!TextUtils.isEmpty(folderName)) {
-                            ps.println(String.format(getFormat(FORMAT_FOLDER_NAME), folderName));
-                        }
-                        String folderId = folderCursor.getString(NOTE_COLUMN_ID);
-                        exportFolderToText(folderId, ps);
-                    } while (folderCursor.moveToNext());
+                            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER, null,
+                    NoteColumns.ID);
+            if (folderCursor == null) {
+                return;
+            }
+            while (folderCursor.moveToNext()) {
+                long id = folderCursor.getLong(FOLDER_COLUMN_ID);
+                ids.add(id);
+                if (id == Notes.ID_CALL_RECORD_FOLDER) {
+                    names.add(mContext.getString(R.string.call_record_folder_name));
+                } else {
+                    names.add(folderCursor.getString(FOLDER_COLUMN_SNIPPET));
                 }
-                folderCursor.close();
             }
+            folderCursor.close();
+        }
 
-            // 导出根文件夹中的笔记
-            Cursor noteCursor = mContext.getContentResolver().query(
-                    Notes.CONTENT_NOTE_URI,
-                    NOTE_PROJECTION,
-                    NoteColumns.TYPE + "=" + +Notes.TYPE_NOTE + " AND " + NoteColumns.PARENT_ID
-                            + "=0", null, null);
-
-            if (noteCursor != null) {
-                if (noteCursor.moveToFirst()) {
-                    do {
-                        ps.println(String.format(getFormat(FORMAT_NOTE_DATE), DateFormat.format(
-                                mContext.getString(R.string.format_datetime_mdhm),
-                                noteCursor.getLong(NOTE_COLUMN_MODIFIED_DATE))));
-                        // 查询属于该笔记的数据
-                        String noteId = noteCursor.getString(NOTE_COLUMN_ID);
-                        exportNoteToText(noteId, ps);
-                    } while (noteCursor.moveToNext());
+        /**
+         * 将笔记导出为用户可读的文本，文件夹名称后跟文件夹中的笔记，最后是根文件夹中的笔记。
+         */
+        private void exportToText(Cursor cursor, Writer writer, ExportProgressListener listener)
+                throws IOException {
+            ArrayList<Long> folderIds = new ArrayList<Long>();
+            ArrayList<String> folderNames = new ArrayList<String>();
+            loadFolders(folderIds, folderNames);
+
+            int total = cursor.getCount();
+            int nextFolder = 0;
+            long noteId = 0;
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(ExportColumns.NOTE_ID);
+                if (id != noteId) {
+                    if (noteId != 0) {
+                        writer.write(NOTE_SEPARATOR);
+                    }
+                    // 在文件夹的第一条笔记之前写出文件夹名称，没有笔记的文件夹也要写出名称
+                    long parentId = cursor.getLong(ExportColumns.PARENT_ID);
+                    while (nextFolder < folderIds.size() && (parentId == Notes.ID_ROOT_FOLDER
+                            || folderIds.get(nextFolder) <= parentId)) {
+                        writeFolderName(writer, folderNames.get(nextFolder));
+                        nextFolder++;
+                    }
+                    noteId = id;
+                    mNoteCount++;
+                    writeFormatted(writer, FORMAT_NOTE_DATE,
+                            formatDate(cursor.getLong(ExportColumns.MODIFIED_DATE)));
+                }
+
+                String mimeType = cursor.getString(ExportColumns.MIME_TYPE);
+                if (DataConstants.CALL_NOTE.equals(mimeType)) {
+                    // 写出电话号码、通话日期和通话附件位置
+                    String phoneNumber = cursor.getString(ExportColumns.DATA3);
+                    String location = cursor.getString(ExportColumns.CONTENT);
+                    if (!TextUtils.isEmpty(phoneNumber)) {
+                        writeFormatted(writer, FORMAT_NOTE_CONTENT, phoneNumber);
+                    }
+                    writeFormatted(writer, FORMAT_NOTE_CONTENT,
+                            formatDate(cursor.getLong(ExportColumns.DATA1)));
+                    if (!TextUtils.isEmpty(location)) {
+                        writeFormatted(writer, FORMAT_NOTE_CONTENT, location);
+                    }
+                } else if (DataConstants.NOTE.equals(mimeType)) {
+                    String content = cursor.getString(ExportColumns.CONTENT);
+                    if (!TextUtils.isEmpty(content)) {
+                        writeFormatted(writer, FORMAT_NOTE_CONTENT, content);
+                    }
                 }
-                noteCursor.close();
+                notifyProgress(listener, cursor.getPosition() + 1, total);
+            }
+            if (noteId != 0) {
+                writer.write(NOTE_SEPARATOR);
+            }
+            while (nextFolder < folderIds.size()) {
+                writeFolderName(writer, folderNames.get(nextFolder++));
             }
-            ps.close();
+        }
 
-            return STATE_SUCCESS;
+        private void writeFolderName(Writer writer, String folderName) throws IOException {
+            if (!TextUtils.isEmpty(folderName)) {
+                writeFormatted(writer, FORMAT_FOLDER_NAME, folderName);
+            }
         }
 
         /**
-         * 获取指向导出文本文件的打印流。
-         *
-         * @return 打印流对象，如果获取失败则返回 null
+         * 将笔记导出为 JSON，每行一条笔记，包含笔记的所有数据行。
          */
-        private PrintStream getExportToTextPrintStream() {
-            File file = generateFileMountedOnSDcard(mContext, R.string.file_path,
-                    R.string.file_name_txt_format);
-            if (file == null) {
-                Log.e(TAG, "create file to exported failed");
-                return null;
+        private void exportToJsonLines(Cursor cursor, Writer writer,
+                ExportProgressListener listener) throws IOException, JSONException {
+            int total = cursor.getCount();
+            JSONObject note = null;
+            JSONArray dataArray = null;
+            long noteId = 0;
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(ExportColumns.NOTE_ID);
+                if (id != noteId) {
+                    if (note != null) {
+                        writer.write(note.toString());
+                        writer.write('\n');
+                    }
+                    noteId = id;
+                    mNoteCount++;
+                    note = new JSONObject();
+                    note.put(NoteColumns.ID, id);
+                    note.put(NoteColumns.PARENT_ID, cursor.getLong(ExportColumns.PARENT_ID));
+                    note.put(NoteColumns.MODIFIED_DATE,
+                            cursor.getLong(ExportColumns.MODIFIED_DATE));
+                    dataArray = new JSONArray();
+                    note.put(JSON_KEY_DATA, dataArray);
+                }
+                String mimeType = cursor.getString(ExportColumns.MIME_TYPE);
+                if (mimeType != null) {
+                    JSONObject data = new JSONObject();
+                    data.put(DataColumns.MIME_TYPE, mimeType);
+                    data.put(DataColumns.CONTENT, cursor.getString(ExportColumns.CONTENT));
+                    if (DataConstants.CALL_NOTE.equals(mimeType)) {
+                        data.put(DataColumns.DATA1, cursor.getLong(ExportColumns.DATA1));
+                        data.put(DataColumns.DATA3, cursor.getString(ExportColumns.DATA3));
+                    }
+                    dataArray.put(data);
+                }
+                notifyProgress(listener, cursor.getPosition() + 1, total);
             }
-            mFileName = file.getName();
-            mFileDirectory = mContext.getString(R.string.file_path);
-            PrintStream ps = null;
-            try {
-                FileOutputStream fos = new FileOutputStream(file);
-                ps = new PrintStream(fos);
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                return null;
-            } catch (NullPointerException e) {
-                e.printStackTrace();
-                return null;
+            if (note != null) {
+                writer.write(note.toString());
+                writer.write('\n');
+            }
+        }
+
+        private void notifyProgress(ExportProgressListener listener, int exported, int total) {
+            if (listener != null && (exported % PROGRESS_INTERVAL == 0 || exported == total)) {
+                listener.onProgress(exported, total);
             }
-            return ps;
         }
     }
 
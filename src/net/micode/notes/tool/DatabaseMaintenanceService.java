@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.app.AlarmManager;
+import android.app.IntentService;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.gtask.remote.GTaskManager;
+
+/**
+ * 数据库整理服务。
+ * 每天在设备空闲唤醒时执行一次，更新查询统计信息、回收已删除笔记留下的空闲页并检查数据库完整性。
+ * 整理和同步互斥：正在同步时跳过本次整理，整理期间开始的同步等整理结束后再继续。
+ */
+public class DatabaseMaintenanceService extends IntentService {
+    private static final String TAG = "DatabaseMaintenance";
+
+    public DatabaseMaintenanceService() {
+        super(TAG);
+    }
+
+    /**
+     * 安排每天执行一次数据库整理，已经安排过时不会重复安排
+     *
+     * @param context 上下文
+     */
+    public static void schedule(Context context) {
+        Intent intent = new Intent(context, DatabaseMaintenanceService.class);
+        if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        PendingIntent pendingIntent = PendingIntent.getService(context, 0, intent, 0);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        // 不唤醒设备，只在设备本来就醒着的时候执行，避免打扰用户操作
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HOUR,
+                AlarmManager.INTERVAL_DAY, pendingIntent);
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        // 同步会大量写入，整理期间的 VACUUM 会阻塞同步，留到下一次再做
+        boolean done = GTaskManager.getInstance().runMaintenance(new Runnable() {
+            public void run() {
+                maintain();
+            }
+        });
+        if (!done) {
+            Log.d(TAG, "Sync is in progress, skip maintenance");
+        }
+    }
+
+    /**
+     * 执行数据库整理并记录结果
+     */
+    private void maintain() {
+        Bundle result = getContentResolver().call(Notes.CONTENT_NOTE_URI,
+                Notes.METHOD_MAINTENANCE, null, null);
+        if (result != null) {
+            Log.i(TAG, "database maintenance done, size "
+                    + result.getLong(Notes.MAINTENANCE_SIZE_BEFORE) + " -> "
+                    + result.getLong(Notes.MAINTENANCE_SIZE_AFTER) + " bytes in "
+                    + result.getLong(Notes.MAINTENANCE_ELAPSED) + " ms, integrity "
+                    + result.getString(Notes.MAINTENANCE_INTEGRITY));
+        }
+    }
+}
@@ -111,6 +111,8 @@ public class GTaskStringUtils {
     public final static String META_HEAD_NOTE = "meta_note";
     // 元数据头部：数据
     public final static String META_HEAD_DATA = "meta_data";
+    // 元数据头部：旧版本写入的笔记内容指纹，已不再写入，比较元数据时忽略
+    public final static String META_HEAD_CONTENT_HASH = "meta_hash";
     // 元数据笔记名称
     public final static String META_NOTE_NAME = "[META INFO] DON'T UPDATE AND DELETE";
 }
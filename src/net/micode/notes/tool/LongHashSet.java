@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import java.util.Arrays;
+
+/**
+ * 存放 long 值的哈希集合。
+ * 使用开放寻址直接保存基本类型，不为每个元素创建 Long 对象，
+ * 适合一次性装入大量行 ID 后做存在性检查。
+ */
+public class LongHashSet {
+    // 空槽位的标记值，该值本身是否在集合中单独记录
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    // 最大装载因子的分子和分母，超过 3/4 时扩容
+    private static final int LOAD_NUMERATOR = 3;
+    private static final int LOAD_DENOMINATOR = 4;
+
+    private long[] mTable;
+
+    // 除空槽位标记值以外的元素数
+    private int mSize;
+
+    // 空槽位标记值是否在集合中
+    private boolean mHasEmptyValue;
+
+    public LongHashSet() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize 预计的元素数
+     */
+    public LongHashSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_NUMERATOR / LOAD_DENOMINATOR < expectedSize) {
+            capacity <<= 1;
+        }
+        mTable = newTable(capacity);
+    }
+
+    /**
+     * 添加一个值
+     *
+     * @param value 要添加的值
+     * @return 集合中原来没有该值时返回 true
+     */
+    public boolean add(long value) {
+        if (value == EMPTY) {
+            boolean added = !mHasEmptyValue;
+            mHasEmptyValue = true;
+            return added;
+        }
+        int index = indexOf(mTable, value);
+        if (mTable[index] == value) {
+            return false;
+        }
+        mTable[index] = value;
+        mSize++;
+        if (mSize * LOAD_DENOMINATOR > mTable.length * LOAD_NUMERATOR) {
+            rehash(mTable.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * @param value 要检查的值
+     * @return 集合中有该值时返回 true
+     */
+    public boolean contains(long value) {
+        if (value == EMPTY) {
+            return mHasEmptyValue;
+        }
+        return mTable[indexOf(mTable, value)] == value;
+    }
+
+    /**
+     * @return 元素数
+     */
+    public int size() {
+        return mHasEmptyValue ? mSize + 1 : mSize;
+    }
+
+    /**
+     * 清空集合
+     */
+    public void clear() {
+        Arrays.fill(mTable, EMPTY);
+        mSize = 0;
+        mHasEmptyValue = false;
+    }
+
+    private void rehash(int capacity) {
+        long[] table = newTable(capacity);
+        for (long value : mTable) {
+            if (value != EMPTY) {
+                table[indexOf(table, value)] = value;
+            }
+        }
+        mTable = table;
+    }
+
+    /**
+     * 线性探测，返回值所在的槽位，不存在时返回应放入的空槽位
+     */
+    private static int indexOf(long[] table, long value) {
+        int mask = table.length - 1;
+        // 打散连续的行 ID，避免聚集在相邻的槽位
+        long hash = value * 0x9E3779B97F4A7C15L;
+        int index = (int) (hash ^ (hash >>> 32)) & mask;
+        while (table[index] != EMPTY && table[index] != value) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private static long[] newTable(int capacity) {
+        long[] table = new long[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * 按行的三方合并。
+ * 分别比较共同基准与两个修改后的版本，两边修改的行不重叠时合并双方的修改，
+ * 修改重叠（包括相邻）且内容不同时认为合并失败。
+ * 比较只用两边各自唯一的行作为锚点，按基准的顺序贪心选取，耗时与文本长度成线性关系；
+ * 移动过位置的行可能被当成删除再插入，合并失败的机会因此稍多，但不会得到错误的结果。
+ */
+public final class TextMerger {
+    /**
+     * 一处修改：基准中 [baseStart, baseEnd) 的行被替换为修改后版本中 [start, end) 的行
+     */
+    private static class Hunk {
+        final int baseStart;
+        final int baseEnd;
+        final int start;
+        final int end;
+
+        Hunk(int baseStart, int baseEnd, int start, int end) {
+            this.baseStart = baseStart;
+            this.baseEnd = baseEnd;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * 一行在比较范围内出现的次数和最后出现的位置
+     */
+    private static class LineInfo {
+        int baseCount;
+        int baseIndex;
+        int count;
+        int index;
+    }
+
+    private TextMerger() {
+    }
+
+    /**
+     * 合并两个版本的修改
+     *
+     * @param base 两个版本共同的基准
+     * @param local 本地版本
+     * @param remote 远程版本
+     * @return 合并后的文本，两边修改了相同的行时返回 null
+     */
+    public static String merge(String base, String local, String remote) {
+        if (local.equals(remote) || base.equals(remote)) {
+            return local;
+        }
+        if (base.equals(local)) {
+            return remote;
+        }
+
+        String[] baseLines = split(base);
+        String[] localLines = split(local);
+        String[] remoteLines = split(remote);
+        ArrayList<Hunk> localHunks = diff(baseLines, localLines);
+        ArrayList<Hunk> remoteHunks = diff(baseLines, remoteLines);
+
+        ArrayList<String> merged = new ArrayList<String>(
+                Math.max(localLines.length, remoteLines.length));
+        int pos = 0;
+        int i = 0;
+        int j = 0;
+        while (i < localHunks.size() || j < remoteHunks.size()) {
+            Hunk l = i < localHunks.size() ? localHunks.get(i) : null;
+            Hunk r = j < remoteHunks.size() ? remoteHunks.get(j) : null;
+            if (l != null && r != null && l.baseStart <= r.baseEnd && r.baseStart <= l.baseEnd) {
+                // 两边修改了相同或相邻的行，只有修改完全相同时才能合并
+                if (l.baseStart != r.baseStart || l.baseEnd != r.baseEnd
+                        || !sameLines(localLines, l, remoteLines, r)) {
+                    return null;
+                }
+                pos = apply(merged, baseLines, pos, localLines, l);
+                i++;
+                j++;
+            } else if (r == null || (l != null && l.baseStart < r.baseStart)) {
+                pos = apply(merged, baseLines, pos, localLines, l);
+                i++;
+            } else {
+                pos = apply(merged, baseLines, pos, remoteLines, r);
+                j++;
+            }
+        }
+        addLines(merged, baseLines, pos, baseLines.length);
+        return join(merged, Math.max(local.length(), remote.length()));
+    }
+
+    /**
+     * 比较基准和修改后的版本，返回按位置排列的修改
+     */
+    private static ArrayList<Hunk> diff(String[] base, String[] lines) {
+        ArrayList<Hunk> hunks = new ArrayList<Hunk>();
+
+        // 两端相同的行不参与比较
+        int prefix = 0;
+        int max = Math.min(base.length, lines.length);
+        while (prefix < max && base[prefix].equals(lines[prefix])) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix
+                && base[base.length - 1 - suffix].equals(lines[lines.length - 1 - suffix])) {
+            suffix++;
+        }
+        int baseEnd = base.length - suffix;
+        int end = lines.length - suffix;
+
+        // 统计中间部分每一行在两边出现的次数
+        HashMap<String, LineInfo> infos = new HashMap<String, LineInfo>();
+        for (int i = prefix; i < baseEnd; i++) {
+            LineInfo info = infos.get(base[i]);
+            if (info == null) {
+                info = new LineInfo();
+                infos.put(base[i], info);
+            }
+            info.baseCount++;
+            info.baseIndex = i;
+        }
+        for (int i = prefix; i < end; i++) {
+            LineInfo info = infos.get(lines[i]);
+            if (info != null) {
+                info.count++;
+                info.index = i;
+            }
+        }
+
+        // 按基准的顺序选取两边都只出现一次的行作为锚点，锚点之间分别比较
+        int baseStart = prefix;
+        int start = prefix;
+        for (int i = prefix; i < baseEnd; i++) {
+            LineInfo info = infos.get(base[i]);
+            if (info.baseCount == 1 && info.count == 1 && info.index >= start) {
+                addHunk(hunks, base, baseStart, i, lines, start, info.index);
+                baseStart = i + 1;
+                start = info.index + 1;
+            }
+        }
+        addHunk(hunks, base, baseStart, baseEnd, lines, start, end);
+        return hunks;
+    }
+
+    /**
+     * 去掉两个范围两端相同的行，剩下的不为空时作为一处修改
+     */
+    private static void addHunk(ArrayList<Hunk> hunks, String[] base, int baseStart,
+            int baseEnd, String[] lines, int start, int end) {
+        while (baseStart < baseEnd && start < end && base[baseStart].equals(lines[start])) {
+            baseStart++;
+            start++;
+        }
+        while (baseStart < baseEnd && start < end && base[baseEnd - 1].equals(lines[end - 1])) {
+            baseEnd--;
+            end--;
+        }
+        if (baseStart < baseEnd || start < end) {
+            hunks.add(new Hunk(baseStart, baseEnd, start, end));
+        }
+    }
+
+    /**
+     * 输出修改之前没有变化的行和修改后的行
+     *
+     * @return 基准中下一个要输出的行
+     */
+    private static int apply(ArrayList<String> merged, String[] base, int pos, String[] lines,
+            Hunk hunk) {
+        addLines(merged, base, pos, hunk.baseStart);
+        addLines(merged, lines, hunk.start, hunk.end);
+        return hunk.baseEnd;
+    }
+
+    private static boolean sameLines(String[] a, Hunk ha, String[] b, Hunk hb) {
+        if (ha.end - ha.start != hb.end - hb.start) {
+            return false;
+        }
+        for (int i = 0; i < ha.end - ha.start; i++) {
+            if (!a[ha.start + i].equals(b[hb.start + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addLines(ArrayList<String> merged, String[] lines, int start, int end) {
+        for (int i = start; i < end; i++) {
+            merged.add(lines[i]);
+        }
+    }
+
+    /**
+     * 用换行符连接各行，与 split 对应
+     */
+    private static String join(ArrayList<String> lines, int capacity) {
+        StringBuilder sb = new StringBuilder(capacity);
+        for (int i = 0; i < lines.size(); i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append(lines.get(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 按换行符拆分，保留末尾的空行，以便合并后原样拼接
+     */
+    private static String[] split(String text) {
+        int count = 1;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        String[] lines = new String[count];
+        int start = 0;
+        int n = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                lines[n++] = text.substring(start, i);
+                start = i + 1;
+            }
+        }
+        lines[n] = text.substring(start);
+        return lines;
+    }
+}
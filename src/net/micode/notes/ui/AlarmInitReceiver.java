@@ -31,6 +31,10 @@ import android.database.Cursor;
 import net.micode.notes.data.Notes;
 // 导入笔记列相关的类，用于定义数据库表的列名
 import net.micode.notes.data.Notes.NoteColumns;
+// 导入后台同步调度类
+import net.micode.notes.gtask.remote.SyncScheduler;
+// 导入数据库整理服务类
+import net.micode.notes.tool.DatabaseMaintenanceService;
 
 /**
  * AlarmInitReceiver 类继承自 BroadcastReceiver，用于在接收到广播时初始化闹钟提醒。
@@ -56,6 +60,13 @@ public class AlarmInitReceiver extends BroadcastReceiver {
      */
     private static final int COLUMN_ALERTED_DATE = 1;
 
+    /**
+     * 查询条件：提醒日期大于当前时间且笔记类型为普通笔记。
+     * 查询计划测试检查这个查询使用索引
+     */
+    public static final String ALERT_SELECTION = NoteColumns.ALERTED_DATE + ">? AND "
+            + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
+
     /**
      * 当接收到广播时，此方法会被调用。
      * 它会查询数据库中所有提醒时间晚于当前时间的笔记，并为这些笔记设置闹钟提醒。
@@ -70,8 +81,7 @@ public class AlarmInitReceiver extends BroadcastReceiver {
         // 执行数据库查询，获取提醒时间晚于当前时间且类型为笔记的记录
         Cursor c = context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
                 PROJECTION,
-                // 查询条件：提醒日期大于当前时间且笔记类型为普通笔记
-                NoteColumns.ALERTED_DATE + ">? AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE,
+                ALERT_SELECTION,
                 new String[] { String.valueOf(currentDate) },
                 null);
 
@@ -99,5 +109,10 @@ public class AlarmInitReceiver extends BroadcastReceiver {
             // 关闭游标，释放资源
             c.close();
         }
+
+        // 重启后闹钟会被清除，重新安排数据库整理
+        DatabaseMaintenanceService.schedule(context);
+        // 同样重新安排后台同步
+        SyncScheduler.schedule(context);
     }
 }
@@ -60,6 +60,7 @@ import android.widget.Toast;
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.TextNote;
+import net.micode.notes.gtask.remote.SyncScheduler;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.model.WorkingNote.NoteSettingChangedListener;
 import net.micode.notes.tool.DataUtils;
@@ -844,6 +845,7 @@ public class NoteEditActivity extends Activity implements OnClickListener,
                     Log.e(TAG, "Move notes to trash folder error, should not happens");
                 }
             }
+            SyncScheduler.onLocalChange(this);
         }
         // 标记笔记为已删除
         mWorkingNote.markDeleted(true);
@@ -19,6 +19,7 @@ package net.micode.notes.ui;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.app.ProgressDialog;
 import android.appwidget.AppWidgetManager;
 import android.content.AsyncQueryHandler;
 import android.content.ContentResolver;
@@ -28,6 +29,7 @@ import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
@@ -53,6 +55,8 @@ import android.view.inputmethod.InputMethodManager;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.AdapterView.OnItemLongClickListener;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ListView;
@@ -64,9 +68,11 @@ import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.gtask.remote.GTaskSyncService;
+import net.micode.notes.gtask.remote.SyncScheduler;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.tool.BackupUtils;
 import net.micode.notes.tool.DataUtils;
+import net.micode.notes.tool.DatabaseMaintenanceService;
 import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.ui.NotesListAdapter.AppWidgetAttribute;
 import net.micode.notes.widget.NoteWidgetProvider_2x;
@@ -89,6 +95,18 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     // 文件夹列表查询的令牌
     private static final int FOLDER_LIST_QUERY_TOKEN      = 1;
 
+    // 文件夹笔记列表下一页查询的令牌
+    private static final int FOLDER_NOTE_LIST_PAGE_QUERY_TOKEN = 2;
+
+    // 全选前加载文件夹剩余笔记的查询令牌
+    private static final int FOLDER_NOTE_LIST_ALL_QUERY_TOKEN  = 3;
+
+    // 笔记列表每页加载的行数
+    private static final int NOTES_LIST_PAGE_SIZE = 100;
+
+    // 滚动到距离已加载末尾还剩多少行时预取下一页
+    private static final int NOTES_LIST_PREFETCH_DISTANCE = 30;
+
     // 文件夹删除菜单的ID
     private static final int MENU_FOLDER_DELETE = 0;
 
@@ -143,6 +161,24 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     // 当前所在文件夹的ID
     private long mCurrentFolderId;
 
+    // 已加载的笔记列表所属的文件夹ID
+    private long mNotesListFolderId;
+
+    // 笔记列表已加载的行数，重新查询时至少加载这么多行以保持滚动位置
+    private int mNotesListLoadedCount;
+
+    // 当前查询的行数上限
+    private int mNotesListLimit;
+
+    // 文件夹中是否还有未加载的笔记
+    private boolean mNotesListHasMore;
+
+    // 是否正在加载下一页
+    private boolean mNotesListPageLoading;
+
+    // 笔记列表查询的序号，用于丢弃过期的查询结果
+    private int mNotesListGeneration;
+
     // 内容解析器，用于与内容提供者交互
     private ContentResolver mContentResolver;
 
@@ -158,15 +194,25 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     // 当前聚焦的笔记数据项
     private NoteItemData mFocusNoteDataItem;
 
+    // 笔记列表的查询条件和排序，查询计划测试检查它们使用索引
     // 普通选择条件，用于查询指定父文件夹下的笔记
-    private static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?";
+    public static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?";
 
     // 根文件夹选择条件，用于查询根文件夹下的笔记和通话记录文件夹
-    private static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
+    public static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
             + Notes.TYPE_SYSTEM + " AND " + NoteColumns.PARENT_ID + "=?)" + " OR ("
             + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
             + NoteColumns.NOTES_COUNT + ">0)";
 
+    // 笔记列表排序规则，_id 作为最后的排序键保证顺序唯一，与 parent_id 索引的顺序一致
+    public static final String NOTES_LIST_SORT_ORDER = NoteColumns.TYPE + " DESC,"
+            + NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID + " ASC";
+
+    // 下一页的查询条件，从上一页最后一行 (type, modified_date, _id) 之后开始
+    public static final String NOTES_LIST_KEYSET_SELECTION = "(" + NoteColumns.TYPE + "<? OR ("
+            + NoteColumns.TYPE + "=? AND (" + NoteColumns.MODIFIED_DATE + "<? OR ("
+            + NoteColumns.MODIFIED_DATE + "=? AND " + NoteColumns.ID + ">?))))";
+
     // 打开笔记的请求码
     private final static int REQUEST_CODE_OPEN_NODE = 102;
     // 创建新笔记的请求码
@@ -187,6 +233,10 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
          * 当用户首次使用该应用时，插入一条介绍信息
          */
         setAppInfoFromRawRes();
+
+        // 安装后还没有重启过时，由这里安排数据库整理
+        DatabaseMaintenanceService.schedule(this);
+        SyncScheduler.schedule(this);
     }
 
     /**
@@ -274,13 +324,20 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         mContentResolver = this.getContentResolver();
         mBackgroundQueryHandler = new BackgroundQueryHandler(this.getContentResolver());
         mCurrentFolderId = Notes.ID_ROOT_FOLDER;
+        mNotesListFolderId = mCurrentFolderId;
         mNotesListView = (ListView) findViewById(R.id.notes_list);
         mNotesListView.addFooterView(LayoutInflater.from(this).inflate(R.layout.note_list_footer, null),
                 null, false);
         mNotesListView.setOnItemClickListener(new OnListItemClickListener());
         mNotesListView.setOnItemLongClickListener(this);
         mNotesListAdapter = new NotesListAdapter(this);
+        mNotesListAdapter.setOnContentChangedListener(new NotesListAdapter.OnContentChangedListener() {
+            public void onContentChanged() {
+                startAsyncNotesListQuery();
+            }
+        });
         mNotesListView.setAdapter(mNotesListAdapter);
+        mNotesListView.setOnScrollListener(new NotesListScrollListener());
         mAddNewNote = (Button) findViewById(R.id.btn_new_note);
         mAddNewNote.setOnClickListener(this);
         mAddNewNote.setOnTouchListener(new NewNoteOnTouchListener());
@@ -340,6 +397,11 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                  * @return 是否处理成功
                  */
                 public boolean onMenuItemClick(MenuItem item) {
+                    if (!mNotesListAdapter.isAllSelected() && mNotesListHasMore) {
+                        // 还有笔记没有加载，加载完成后再全选
+                        startAsyncNotesListQuery(FOLDER_NOTE_LIST_ALL_QUERY_TOKEN, 0);
+                        return true;
+                    }
                     mNotesListAdapter.selectAll(!mNotesListAdapter.isAllSelected());
                     updateMenu();
                     return true;
@@ -541,15 +603,97 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     };
 
     /**
-     * 启动异步笔记列表查询
+     * 启动异步笔记列表查询，加载第一页或已加载的全部范围
      */
     private void startAsyncNotesListQuery() {
-        String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
-                : NORMAL_SELECTION;
-        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, null,
-                Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION, selection, new String[] {
+        if (mNotesListFolderId != mCurrentFolderId) {
+            mNotesListFolderId = mCurrentFolderId;
+            mNotesListLoadedCount = 0;
+        }
+        startAsyncNotesListQuery(FOLDER_NOTE_LIST_QUERY_TOKEN,
+                Math.max(NOTES_LIST_PAGE_SIZE, mNotesListLoadedCount));
+    }
+
+    /**
+     * 从头开始查询当前文件夹的笔记列表，未完成的查询结果会被丢弃
+     *
+     * @param token 查询令牌
+     * @param limit 最多加载的行数，小于等于 0 时加载全部
+     */
+    private void startAsyncNotesListQuery(int token, int limit) {
+        mBackgroundQueryHandler.cancelOperation(FOLDER_NOTE_LIST_QUERY_TOKEN);
+        mBackgroundQueryHandler.cancelOperation(FOLDER_NOTE_LIST_PAGE_QUERY_TOKEN);
+        mBackgroundQueryHandler.cancelOperation(FOLDER_NOTE_LIST_ALL_QUERY_TOKEN);
+        mNotesListGeneration++;
+        mNotesListPageLoading = false;
+        mNotesListLimit = limit;
+        mBackgroundQueryHandler.startQuery(token, mNotesListGeneration,
+                getNotesListUri(limit), NoteItemData.PROJECTION, getNotesListSelection(),
+                new String[] {
                     String.valueOf(mCurrentFolderId)
-                }, NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC");
+                }, NOTES_LIST_SORT_ORDER);
+    }
+
+    /**
+     * 异步查询已加载的最后一行之后的下一页笔记
+     */
+    private void startAsyncNotesListPageQuery() {
+        Cursor cursor = mNotesListAdapter.getCursor();
+        if (cursor == null || !cursor.moveToLast()) {
+            return;
+        }
+        String type = String.valueOf(NoteItemData.getNoteType(cursor));
+        String modifiedDate = String.valueOf(cursor.getLong(
+                cursor.getColumnIndexOrThrow(NoteColumns.MODIFIED_DATE)));
+        mNotesListPageLoading = true;
+        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_PAGE_QUERY_TOKEN, mNotesListGeneration,
+                getNotesListUri(NOTES_LIST_PAGE_SIZE), NoteItemData.PROJECTION,
+                "(" + getNotesListSelection() + ") AND " + NOTES_LIST_KEYSET_SELECTION,
+                new String[] {
+                    String.valueOf(mCurrentFolderId), type, type, modifiedDate, modifiedDate,
+                    String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(NoteColumns.ID)))
+                }, NOTES_LIST_SORT_ORDER);
+    }
+
+    /**
+     * 获取当前文件夹的笔记列表查询条件
+     *
+     * @return 查询条件
+     */
+    private String getNotesListSelection() {
+        return (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
+                : NORMAL_SELECTION;
+    }
+
+    /**
+     * 获取带行数限制的笔记列表查询 URI
+     *
+     * @param limit 最多返回的行数，小于等于 0 时不限制
+     * @return 查询 URI
+     */
+    private Uri getNotesListUri(int limit) {
+        if (limit <= 0) {
+            return Notes.CONTENT_NOTE_URI;
+        }
+        return Notes.CONTENT_NOTE_URI.buildUpon()
+                .appendQueryParameter(Notes.QUERY_PARAMETER_LIMIT, String.valueOf(limit)).build();
+    }
+
+    /**
+     * 笔记列表滚动监听类，接近已加载的末尾时预取下一页
+     */
+    private class NotesListScrollListener implements OnScrollListener {
+        public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                int totalItemCount) {
+            if (mNotesListHasMore && !mNotesListPageLoading
+                    && firstVisibleItem + visibleItemCount
+                        >= mNotesListAdapter.getCount() - NOTES_LIST_PREFETCH_DISTANCE) {
+                startAsyncNotesListPageQuery();
+            }
+        }
+
+        public void onScrollStateChanged(AbsListView view, int scrollState) {
+        }
     }
 
     /**
@@ -571,7 +715,42 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
             switch (token) {
                 case FOLDER_NOTE_LIST_QUERY_TOKEN:
+                case FOLDER_NOTE_LIST_ALL_QUERY_TOKEN:
+                    if (!cookie.equals(mNotesListGeneration)) {
+                        // 文件夹已切换或已重新查询，丢弃过期的结果
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                        break;
+                    }
                     mNotesListAdapter.changeCursor(cursor);
+                    mNotesListLoadedCount = mNotesListAdapter.getCount();
+                    mNotesListHasMore = mNotesListLimit > 0 && cursor != null
+                            && cursor.getCount() >= mNotesListLimit;
+                    if (token == FOLDER_NOTE_LIST_ALL_QUERY_TOKEN
+                            && mNotesListAdapter.isInChoiceMode()) {
+                        mNotesListAdapter.selectAll(true);
+                        mModeCallBack.updateMenu();
+                    }
+                    break;
+                case FOLDER_NOTE_LIST_PAGE_QUERY_TOKEN:
+                    if (!cookie.equals(mNotesListGeneration)) {
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                        break;
+                    }
+                    mNotesListPageLoading = false;
+                    if (cursor == null) {
+                        break;
+                    }
+                    mNotesListHasMore = cursor.getCount() >= NOTES_LIST_PAGE_SIZE;
+                    if (cursor.getCount() == 0) {
+                        cursor.close();
+                        break;
+                    }
+                    mNotesListAdapter.appendCursor(cursor);
+                    mNotesListLoadedCount = mNotesListAdapter.getCount();
                     break;
                 case FOLDER_LIST_QUERY_TOKEN:
                     if (cursor != null && cursor.getCount() > 0) {
@@ -606,6 +785,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             public void onClick(DialogInterface dialog, int which) {
                 DataUtils.batchMoveToFolder(mContentResolver,
                         mNotesListAdapter.getSelectedItemIds(), adapter.getItemId(which));
+                SyncScheduler.onLocalChange(NotesListActivity.this);
                 Toast.makeText(
                         NotesListActivity.this,
                         getString(R.string.format_move_notes_to_folder,
@@ -655,6 +835,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                         Log.e(TAG, "Move notes to trash folder error, should not happens");
                     }
                 }
+                SyncScheduler.onLocalChange(NotesListActivity.this);
                 return widgets;
             }
 
@@ -700,6 +881,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
             // 在同步模式下，将删除的文件夹移动到回收站
             DataUtils.batchMoveToFolder(mContentResolver, ids, Notes.ID_TRASH_FOLER);
         }
+        SyncScheduler.onLocalChange(this);
         if (widgets != null) {
             for (AppWidgetAttribute widget : widgets) {
                 if (widget.widgetId != AppWidgetManager.INVALID_APPWIDGET_ID
@@ -849,6 +1031,9 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                     values.put(NoteColumns.TYPE, Notes.TYPE_FOLDER);
                     mContentResolver.insert(Notes.CONTENT_NOTE_URI, values);
                 }
+                if (!TextUtils.isEmpty(name)) {
+                    SyncScheduler.onLocalChange(NotesListActivity.this);
+                }
                 dialog.dismiss();
             }
         });
@@ -1071,7 +1256,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                 break;
             }
             case R.id.menu_export_text: {
-                exportNoteToText();
+                showExportFormatDialog();
                 break;
             }
             case R.id.menu_sync: {
@@ -1115,11 +1300,41 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     }
 
     /**
-     * 导出笔记为文本文件，使用异步任务处理导出操作
+     * 显示导出格式的选择对话框，选择后开始导出
      */
-    private void exportNoteToText() {
+    private void showExportFormatDialog() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(R.string.export_format_title);
+        // 选项的顺序与 BackupUtils.FORMAT_* 一致
+        builder.setItems(R.array.export_formats, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                exportNotes(which);
+            }
+        });
+        builder.show();
+    }
+
+    /**
+     * 按指定格式导出笔记，使用异步任务处理导出操作，导出期间显示进度
+     *
+     * @param format 导出格式，BackupUtils.FORMAT_*
+     */
+    private void exportNotes(final int format) {
         final BackupUtils backup = BackupUtils.getInstance(NotesListActivity.this);
-        new AsyncTask<Void, Void, Integer>() {
+        new AsyncTask<Void, Integer, Integer>() {
+            private ProgressDialog mProgressDialog;
+
+            /**
+             * 显示导出进度对话框
+             */
+            @Override
+            protected void onPreExecute() {
+                mProgressDialog = new ProgressDialog(NotesListActivity.this);
+                mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+                mProgressDialog.setMessage(getString(R.string.export_progress));
+                mProgressDialog.setCancelable(false);
+                mProgressDialog.show();
+            }
 
             /**
              * 在后台执行导出操作，返回导出结果状态码
@@ -1129,7 +1344,22 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
              */
             @Override
             protected Integer doInBackground(Void... unused) {
-                return backup.exportToText();
+                return backup.export(format, new BackupUtils.ExportProgressListener() {
+                    public void onProgress(int exported, int total) {
+                        publishProgress(exported, total);
+                    }
+                });
+            }
+
+            /**
+             * 更新导出进度
+             *
+             * @param values 已导出的数据行数和需要导出的数据行数
+             */
+            @Override
+            protected void onProgressUpdate(Integer... values) {
+                mProgressDialog.setMax(values[1]);
+                mProgressDialog.setProgress(values[0]);
             }
 
             /**
@@ -1139,6 +1369,7 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
              */
             @Override
             protected void onPostExecute(Integer result) {
+                mProgressDialog.dismiss();
                 if (result == BackupUtils.STATE_SD_CARD_UNMOUONTED) {
                     AlertDialog.Builder builder = new AlertDialog.Builder(NotesListActivity.this);
                     builder.setTitle(NotesListActivity.this
@@ -21,6 +21,8 @@ package net.micode.notes.ui;
 import android.content.Context;
 // 导入 Android 游标类，用于处理数据库查询结果
 import android.database.Cursor;
+// 导入合并游标类，用于把分页加载的游标拼接在一起
+import android.database.MergeCursor;
 // 导入 Android 日志类，用于记录日志信息
 import android.util.Log;
 // 导入 Android 视图类，是所有 UI 组件的基类
@@ -57,6 +59,16 @@ public class NotesListAdapter extends CursorAdapter {
     private int mNotesCount;
     // 是否处于选择模式
     private boolean mChoiceMode;
+    // 内容变化监听器，设置后由监听器重新查询，而不是逐页重新查询
+    private OnContentChangedListener mOnContentChangedListener;
+
+    /**
+     * 内容变化监听接口。分页加载时各页游标的查询条件依赖上一页的末尾，
+     * 逐页重新查询会在页之间留下空缺，因此交给调用方按已加载的范围重新查询。
+     */
+    public interface OnContentChangedListener {
+        void onContentChanged();
+    }
 
     /**
      * 内部类，用于表示小部件的属性，包含小部件的 ID 和类型。
@@ -298,12 +310,48 @@ public class NotesListAdapter extends CursorAdapter {
         return mSelectedIndex.get(position);
     }
 
+    /**
+     * 设置内容变化监听器。
+     *
+     * @param listener 内容变化监听器，为 null 时恢复为重新查询当前游标
+     */
+    public void setOnContentChangedListener(OnContentChangedListener listener) {
+        mOnContentChangedListener = listener;
+    }
+
+    /**
+     * 在当前游标之后追加一页数据，已有的游标不会被关闭。
+     *
+     * @param page 下一页数据的游标
+     */
+    public void appendCursor(Cursor page) {
+        Cursor current = getCursor();
+        if (current == null) {
+            changeCursor(page);
+            return;
+        }
+        // 只统计新页中的笔记数量，避免重新遍历已加载的全部数据
+        int pageNotesCount = 0;
+        while (page.moveToNext()) {
+            if (NoteItemData.getNoteType(page) == Notes.TYPE_NOTE) {
+                pageNotesCount++;
+            }
+        }
+        // 合并后的游标关闭时会一并关闭各页游标
+        swapCursor(new MergeCursor(new Cursor[] { current, page }));
+        mNotesCount += pageNotesCount;
+    }
+
     /**
      * 当内容发生变化时的回调方法。
      * 重新计算笔记的数量。
      */
     @Override
     protected void onContentChanged() {
+        if (mOnContentChangedListener != null) {
+            mOnContentChangedListener.onContentChanged();
+            return;
+        }
         // 调用父类的内容变化处理方法
         super.onContentChanged();
         // 重新计算笔记的数量
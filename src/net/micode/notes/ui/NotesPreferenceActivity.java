@@ -72,6 +72,8 @@ import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 // 导入应用的笔记列类，用于定义笔记数据库的列名
 import net.micode.notes.data.Notes.NoteColumns;
+// 导入应用的 Google 任务同步管理类
+import net.micode.notes.gtask.remote.GTaskManager;
 // 导入应用的 Google 任务同步服务类
 import net.micode.notes.gtask.remote.GTaskSyncService;
 
@@ -510,6 +512,8 @@ public class NotesPreferenceActivity extends PreferenceActivity {
 
             // 清除最后同步时间
             setLastSyncTime(this, 0);
+            // 清除同步水位，下次同步时进行全量同步
+            GTaskManager.resetWatermarks(this);
 
             // 清除本地 Google 任务相关信息
             new Thread(new Runnable() {
@@ -555,6 +559,8 @@ public class NotesPreferenceActivity extends PreferenceActivity {
         }
         // 提交编辑器的更改
         editor.commit();
+        // 清除同步水位，下次同步时进行全量同步
+        GTaskManager.resetWatermarks(this);
 
         // 清除本地 Google 任务相关信息
         new Thread(new Runnable() {
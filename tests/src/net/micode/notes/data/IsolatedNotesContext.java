@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import java.util.HashSet;
+
+/**
+ * 测试用的上下文。
+ * 内容解析器连接到一个使用独立数据库文件的 NotesProvider，偏好设置也加上前缀，
+ * 测试中的同步和写入不会影响应用自己的笔记和同步状态。
+ */
+public class IsolatedNotesContext extends ContextWrapper {
+    private final String mPrefix;
+
+    private final Context mRenamedContext;
+
+    private final IsolatedProvider mProvider;
+
+    private final MockContentResolver mResolver;
+
+    // 测试中用到的偏好设置名称，清除时逐个清空
+    private final HashSet<String> mPreferenceNames = new HashSet<String>();
+
+    /**
+     * 使用独立数据库的内容提供者
+     */
+    private static class IsolatedProvider extends NotesProvider {
+        private NotesDatabaseHelper mIsolatedHelper;
+
+        @Override
+        NotesDatabaseHelper createDatabaseHelper(Context context) {
+            mIsolatedHelper = new NotesDatabaseHelper(context);
+            return mIsolatedHelper;
+        }
+
+        void close() {
+            if (mIsolatedHelper != null) {
+                mIsolatedHelper.close();
+            }
+        }
+    }
+
+    /**
+     * @param target 被测应用的上下文
+     * @param prefix 数据库文件和偏好设置名称的前缀，不同前缀的数据互不影响
+     */
+    public IsolatedNotesContext(Context target, String prefix) {
+        super(target);
+        mPrefix = prefix;
+        mRenamedContext = new RenamingDelegatingContext(target, prefix);
+        // 从上次测试留下的空数据库开始
+        mRenamedContext.deleteDatabase(NotesDatabaseHelper.DB_NAME);
+        mProvider = new IsolatedProvider();
+        mProvider.attachInfo(mRenamedContext, null);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(Notes.AUTHORITY, mProvider);
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+        return mResolver;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        synchronized (mPreferenceNames) {
+            mPreferenceNames.add(name);
+        }
+        return super.getSharedPreferences(mPrefix + name, mode);
+    }
+
+    /**
+     * 关闭数据库，删除数据库文件并清空测试中用到的偏好设置
+     */
+    public void clear() {
+        mProvider.close();
+        mRenamedContext.deleteDatabase(NotesDatabaseHelper.DB_NAME);
+        synchronized (mPreferenceNames) {
+            for (String name : mPreferenceNames) {
+                super.getSharedPreferences(mPrefix + name, Context.MODE_PRIVATE).edit().clear()
+                        .commit();
+            }
+            mPreferenceNames.clear();
+        }
+    }
+}
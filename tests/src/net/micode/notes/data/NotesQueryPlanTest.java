@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.gtask.remote.GTaskManager;
+import net.micode.notes.ui.AlarmInitReceiver;
+import net.micode.notes.ui.NotesListActivity;
+
+import java.util.regex.Pattern;
+
+/**
+ * 检查笔记列表、闹钟、同步和按 Google Task ID 查找的查询都通过索引查找，
+ * 查询计划中出现对笔记表的扫描（包括遍历整个索引）时失败。
+ * 查询条件和排序直接取自界面、闹钟接收器和同步使用的常量。
+ */
+@SmallTest
+public class NotesQueryPlanTest extends AndroidTestCase {
+    // 旧版 SQLite 输出 SCAN TABLE note，新版输出 SCAN note；遍历整个索引同样是扫描
+    private static final Pattern FULL_SCAN = Pattern.compile("\\bSCAN (TABLE )?"
+            + TABLE.NOTE + "\\b");
+
+    private static final String TRASH = String.valueOf(Notes.ID_TRASH_FOLER);
+
+    private NotesDatabaseHelper mHelper;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        RenamingDelegatingContext context = new RenamingDelegatingContext(getContext(),
+                "query-plan-test.");
+        context.deleteDatabase(NotesDatabaseHelper.DB_NAME);
+        mHelper = new NotesDatabaseHelper(context);
+        mDb = mHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHelper.close();
+        super.tearDown();
+    }
+
+    public void testListQueries() {
+        assertIndexed(NotesListActivity.NORMAL_SELECTION,
+                NotesListActivity.NOTES_LIST_SORT_ORDER, "5");
+        assertIndexed(NotesListActivity.ROOT_FOLDER_SELECTION,
+                NotesListActivity.NOTES_LIST_SORT_ORDER, String.valueOf(Notes.ID_ROOT_FOLDER));
+        // 分页加载下一页
+        assertIndexed("(" + NotesListActivity.NORMAL_SELECTION + ") AND "
+                + NotesListActivity.NOTES_LIST_KEYSET_SELECTION,
+                NotesListActivity.NOTES_LIST_SORT_ORDER, "5", "0", "0", "1", "1", "1");
+    }
+
+    public void testAlarmQuery() {
+        assertIndexed(AlarmInitReceiver.ALERT_SELECTION, null, "1");
+    }
+
+    public void testSyncQueries() {
+        // 回收站中的笔记和文件夹
+        assertIndexed(GTaskManager.TRASH_SELECTION, null, String.valueOf(Notes.TYPE_SYSTEM),
+                TRASH);
+        // 回收站以外的笔记
+        assertIndexed(GTaskManager.LOCAL_NODE_SELECTION, GTaskManager.LOCAL_NODE_SORT_ORDER,
+                String.valueOf(Notes.TYPE_NOTE), TRASH);
+        // 回收站以外的文件夹
+        assertIndexed(GTaskManager.LOCAL_NODE_SELECTION, GTaskManager.LOCAL_NODE_SORT_ORDER,
+                String.valueOf(Notes.TYPE_FOLDER), TRASH);
+    }
+
+    public void testGtaskIdQuery() {
+        // 按 Google Task ID 查找移动过的笔记
+        assertIndexed(GTaskManager.MOVED_NOTE_SELECTION, null, String.valueOf(Notes.TYPE_NOTE),
+                TRASH, "gid");
+    }
+
+    private void assertIndexed(String selection, String sortOrder, String... args) {
+        String sql = "EXPLAIN QUERY PLAN SELECT * FROM " + TABLE.NOTE + " WHERE " + selection
+                + (sortOrder != null ? " ORDER BY " + sortOrder : "");
+        Cursor c = mDb.rawQuery(sql, args);
+        try {
+            int detail = c.getColumnIndexOrThrow("detail");
+            StringBuilder plan = new StringBuilder();
+            while (c.moveToNext()) {
+                plan.append(c.getString(detail)).append('\n');
+            }
+            assertTrue("empty query plan for " + selection, plan.length() > 0);
+            assertFalse("scan of note table for " + selection + ":\n" + plan,
+                    FULL_SCAN.matcher(plan).find());
+        } finally {
+            c.close();
+        }
+    }
+}
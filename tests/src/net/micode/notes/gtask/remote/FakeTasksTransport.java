@@ -0,0 +1,472 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 进程内的模拟 Google 任务服务器。
+ * 在内存中保存任务列表和任务，实现 GTaskClient 使用的 JSON 协议：
+ * 登录页中的 _setup 数据，以及 create、update、move、get_all 操作。
+ * 用于在没有网络的情况下测量同步的吞吐，可以设置每个请求的延迟和一次请求接受的最大操作数。
+ */
+class FakeTasksTransport implements HttpTransport {
+    private static final String TAG = FakeTasksTransport.class.getSimpleName();
+
+    // 登录后服务器设置的认证 cookie
+    private static final String AUTH_COOKIE = "GTL";
+
+    // 请求格式错误时返回的状态码
+    private static final int STATUS_BAD_REQUEST = 400;
+
+    // 请求的操作过多时返回的状态码
+    private static final int STATUS_REQUEST_TOO_LARGE = 413;
+
+    /**
+     * 服务器上的一个任务或任务列表
+     */
+    private static class Entity {
+        String id;
+        String name;
+        String notes;
+        boolean deleted;
+        boolean completed;
+        long lastModified;
+        // 任务所属任务列表的 ID，任务列表为 null
+        String listId;
+    }
+
+    // 所有任务列表，按创建顺序排列
+    private final LinkedHashMap<String, Entity> mLists = new LinkedHashMap<String, Entity>();
+
+    // 所有任务，键为任务 ID
+    private final HashMap<String, Entity> mTasks = new HashMap<String, Entity>();
+
+    // 每个任务列表中任务 ID 的顺序
+    private final HashMap<String, ArrayList<String>> mChildren =
+            new HashMap<String, ArrayList<String>>();
+
+    private final Stats mStats = new Stats();
+
+    // 下一个分配的 ID
+    private long mNextId = 1;
+
+    // 上次分配的修改时间，保证严格递增
+    private long mLastModified;
+
+    // 是否已登录
+    private boolean mLoggedin;
+
+    // 每个请求的模拟延迟（毫秒）
+    private volatile long mLatencyMillis;
+
+    // 一次请求接受的最大操作数，超过时拒绝整个请求，不执行其中任何操作
+    private volatile int mMaxActionsPerRequest = Integer.MAX_VALUE;
+
+    /**
+     * 设置每个请求的模拟延迟
+     *
+     * @param latencyMillis 延迟（毫秒）
+     */
+    void setLatency(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * 设置一次请求接受的最大操作数，用于模拟服务器拒绝过大的批量
+     *
+     * @param maxActions 最大操作数
+     */
+    void setMaxActionsPerRequest(int maxActions) {
+        mMaxActionsPerRequest = maxActions;
+    }
+
+    /**
+     * 直接在服务器上创建任务列表，不计入请求统计
+     *
+     * @param name 任务列表名称
+     * @return 任务列表的 ID
+     */
+    synchronized String addList(String name) {
+        return createList(name).id;
+    }
+
+    /**
+     * 直接在服务器上创建任务，不计入请求统计
+     *
+     * @param listId 任务列表的 ID
+     * @param name 任务名称
+     * @param notes 任务内容
+     * @return 任务的 ID
+     */
+    synchronized String addTask(String listId, String name, String notes) {
+        return createTask(listId, name, notes, null, -1).id;
+    }
+
+    /**
+     * @return 服务器上没有删除的任务数
+     */
+    synchronized int getTaskCount() {
+        int count = 0;
+        for (Entity task : mTasks.values()) {
+            if (!task.deleted) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public InputStream get(String url) throws IOException {
+        simulateLatency();
+        synchronized (this) {
+            if (url.contains("auth=")) {
+                mLoggedin = true;
+            }
+            try {
+                JSONArray lists = new JSONArray();
+                for (Entity list : mLists.values()) {
+                    if (!list.deleted) {
+                        lists.put(toJSON(list));
+                    }
+                }
+                JSONObject t = new JSONObject();
+                t.put(GTaskStringUtils.GTASK_JSON_LISTS, lists);
+                JSONObject setup = new JSONObject();
+                setup.put("v", 1);
+                setup.put("t", t);
+                return respond(0, "<html><script>function init(){_setup(" + setup.toString()
+                        + ")}</script></html>");
+            } catch (JSONException e) {
+                throw new IOException(e.toString());
+            }
+        }
+    }
+
+    public InputStream postForm(String url, Map<String, String> headers, String name,
+            String value) throws IOException {
+        simulateLatency();
+        synchronized (this) {
+            if (!mLoggedin) {
+                throw new IOException("not logged in");
+            }
+            try {
+                JSONObject request = new JSONObject(value);
+                JSONArray actions = request.getJSONArray(GTaskStringUtils.GTASK_JSON_ACTION_LIST);
+                if (actions.length() > mMaxActionsPerRequest) {
+                    reject(value.length(), STATUS_REQUEST_TOO_LARGE);
+                }
+                // 与真实服务器一样，有不支持的操作时整个请求都不执行
+                for (int i = 0; i < actions.length(); i++) {
+                    String type = actions.getJSONObject(i).getString(
+                            GTaskStringUtils.GTASK_JSON_ACTION_TYPE);
+                    if (!isSupportedAction(type)) {
+                        Log.w(TAG, "unsupported action " + type);
+                        reject(value.length(), STATUS_BAD_REQUEST);
+                    }
+                }
+
+                JSONObject response = new JSONObject();
+                JSONArray results = new JSONArray();
+                for (int i = 0; i < actions.length(); i++) {
+                    JSONObject action = actions.getJSONObject(i);
+                    String type = action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE);
+                    if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL.equals(type)) {
+                        response.put(GTaskStringUtils.GTASK_JSON_TASKS, getAll(action));
+                    } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(type)) {
+                        results.put(create(action));
+                    } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_UPDATE.equals(type)) {
+                        results.put(update(action));
+                    } else {
+                        results.put(move(action));
+                    }
+                }
+                response.put(GTaskStringUtils.GTASK_JSON_RESULTS, results);
+                return respond(value.length(), response.toString());
+            } catch (JSONException e) {
+                Log.w(TAG, e.toString());
+                reject(value.length(), STATUS_BAD_REQUEST);
+                return null;
+            }
+        }
+    }
+
+    private static boolean isSupportedAction(String type) {
+        return GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL.equals(type)
+                || GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(type)
+                || GTaskStringUtils.GTASK_JSON_ACTION_TYPE_UPDATE.equals(type)
+                || GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE.equals(type);
+    }
+
+    public synchronized List<String> getCookieNames() {
+        return mLoggedin ? Collections.singletonList(AUTH_COOKIE)
+                : Collections.<String>emptyList();
+    }
+
+    public Stats getStats() {
+        synchronized (mStats) {
+            Stats stats = new Stats();
+            stats.requestCount = mStats.requestCount;
+            stats.bytesSent = mStats.bytesSent;
+            stats.bytesReceived = mStats.bytesReceived;
+            stats.totalLatencyMillis = mStats.totalLatencyMillis;
+            stats.maxLatencyMillis = mStats.maxLatencyMillis;
+            return stats;
+        }
+    }
+
+    public void shutdown() {
+        // 数据保存在内存中，重新登录后仍然可以访问
+    }
+
+    private JSONArray getAll(JSONObject action) throws JSONException {
+        String listId = action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID);
+        boolean getDeleted = action.optBoolean(GTaskStringUtils.GTASK_JSON_GET_DELETED);
+        JSONArray tasks = new JSONArray();
+        ArrayList<String> children = mChildren.get(listId);
+        if (children != null) {
+            for (String id : children) {
+                Entity task = mTasks.get(id);
+                if (getDeleted || !task.deleted) {
+                    tasks.put(toJSON(task));
+                }
+            }
+        }
+        return tasks;
+    }
+
+    private JSONObject create(JSONObject action) throws JSONException {
+        JSONObject delta = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        String name = delta.optString(GTaskStringUtils.GTASK_JSON_NAME, "");
+        Entity entity;
+        if (GTaskStringUtils.GTASK_JSON_TYPE_GROUP.equals(
+                delta.getString(GTaskStringUtils.GTASK_JSON_ENTITY_TYPE))) {
+            entity = createList(name);
+        } else {
+            entity = createTask(action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID), name,
+                    delta.optString(GTaskStringUtils.GTASK_JSON_NOTES, null),
+                    action.optString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, null),
+                    action.optInt(GTaskStringUtils.GTASK_JSON_INDEX, -1));
+        }
+
+        JSONObject result = new JSONObject();
+        result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID,
+                action.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+        result.put(GTaskStringUtils.GTASK_JSON_NEW_ID, entity.id);
+        result.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, entity.lastModified);
+        return result;
+    }
+
+    private JSONObject update(JSONObject action) throws JSONException {
+        String id = action.getString(GTaskStringUtils.GTASK_JSON_ID);
+        JSONObject delta = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        Entity entity = mTasks.containsKey(id) ? mTasks.get(id) : mLists.get(id);
+        JSONObject result = new JSONObject();
+        result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID,
+                action.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+        result.put(GTaskStringUtils.GTASK_JSON_ID, id);
+        if (entity == null) {
+            Log.w(TAG, "update: no entity with id " + id);
+            return result;
+        }
+
+        if (delta.has(GTaskStringUtils.GTASK_JSON_NAME)) {
+            entity.name = delta.getString(GTaskStringUtils.GTASK_JSON_NAME);
+        }
+        if (delta.has(GTaskStringUtils.GTASK_JSON_NOTES)) {
+            entity.notes = delta.getString(GTaskStringUtils.GTASK_JSON_NOTES);
+        }
+        if (delta.has(GTaskStringUtils.GTASK_JSON_DELETED)) {
+            entity.deleted = delta.getBoolean(GTaskStringUtils.GTASK_JSON_DELETED);
+        }
+        if (delta.has(GTaskStringUtils.GTASK_JSON_COMPLETED)) {
+            entity.completed = delta.getBoolean(GTaskStringUtils.GTASK_JSON_COMPLETED);
+        }
+        touch(entity);
+        result.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, entity.lastModified);
+        return result;
+    }
+
+    private JSONObject move(JSONObject action) throws JSONException {
+        String id = action.getString(GTaskStringUtils.GTASK_JSON_ID);
+        Entity task = mTasks.get(id);
+        JSONObject result = new JSONObject();
+        result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID,
+                action.getInt(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+        result.put(GTaskStringUtils.GTASK_JSON_ID, id);
+        if (task == null) {
+            Log.w(TAG, "move: no task with id " + id);
+            return result;
+        }
+
+        // 不指定目标列表时在原列表内移动
+        String destList = action.optString(GTaskStringUtils.GTASK_JSON_DEST_LIST,
+                task.listId);
+        ArrayList<String> source = mChildren.get(task.listId);
+        if (source != null) {
+            source.remove(id);
+            touch(mLists.get(task.listId));
+        }
+        task.listId = destList;
+        insertChild(destList, id,
+                action.optString(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, null), 0);
+        touch(task);
+        result.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, task.lastModified);
+        return result;
+    }
+
+    private Entity createList(String name) {
+        Entity list = new Entity();
+        list.id = nextId();
+        list.name = name;
+        list.lastModified = nextModified();
+        mLists.put(list.id, list);
+        mChildren.put(list.id, new ArrayList<String>());
+        return list;
+    }
+
+    private Entity createTask(String listId, String name, String notes, String priorSiblingId,
+            int index) {
+        Entity task = new Entity();
+        task.id = nextId();
+        task.name = name;
+        task.notes = notes;
+        task.listId = listId;
+        mTasks.put(task.id, task);
+        insertChild(listId, task.id, priorSiblingId, index);
+        touch(task);
+        return task;
+    }
+
+    /**
+     * 把任务放到任务列表中，有前一个兄弟任务时放在它之后，否则放在给定的位置
+     */
+    private void insertChild(String listId, String id, String priorSiblingId, int index) {
+        ArrayList<String> children = mChildren.get(listId);
+        if (children == null) {
+            children = new ArrayList<String>();
+            mChildren.put(listId, children);
+        }
+        if (priorSiblingId != null) {
+            int prior = children.lastIndexOf(priorSiblingId);
+            if (prior >= 0) {
+                children.add(prior + 1, id);
+                return;
+            }
+        }
+        if (index >= 0 && index <= children.size()) {
+            children.add(index, id);
+        } else {
+            children.add(id);
+        }
+    }
+
+    /**
+     * 更新节点的修改时间，任务修改时所属任务列表的修改时间也随之更新
+     */
+    private void touch(Entity entity) {
+        if (entity == null) {
+            return;
+        }
+        entity.lastModified = nextModified();
+        if (entity.listId != null) {
+            Entity list = mLists.get(entity.listId);
+            if (list != null) {
+                list.lastModified = entity.lastModified;
+            }
+        }
+    }
+
+    private JSONObject toJSON(Entity entity) throws JSONException {
+        JSONObject js = new JSONObject();
+        js.put(GTaskStringUtils.GTASK_JSON_ID, entity.id);
+        js.put(GTaskStringUtils.GTASK_JSON_NAME, entity.name);
+        js.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, entity.lastModified);
+        if (entity.listId != null) {
+            js.put(GTaskStringUtils.GTASK_JSON_TYPE, GTaskStringUtils.GTASK_JSON_TYPE_TASK);
+            js.put(GTaskStringUtils.GTASK_JSON_LIST_ID, entity.listId);
+            if (entity.notes != null) {
+                js.put(GTaskStringUtils.GTASK_JSON_NOTES, entity.notes);
+            }
+            js.put(GTaskStringUtils.GTASK_JSON_DELETED, entity.deleted);
+            js.put(GTaskStringUtils.GTASK_JSON_COMPLETED, entity.completed);
+        }
+        return js;
+    }
+
+    private String nextId() {
+        return "fake:" + (mNextId++);
+    }
+
+    private long nextModified() {
+        mLastModified = Math.max(System.currentTimeMillis(), mLastModified + 1);
+        return mLastModified;
+    }
+
+    private void simulateLatency() {
+        long latency = mLatencyMillis;
+        if (latency > 0) {
+            SystemClock.sleep(latency);
+        }
+    }
+
+    /**
+     * 生成响应内容并记录统计
+     *
+     * @param sent 请求的字节数
+     * @param content 响应内容
+     */
+    /**
+     * 拒绝整个请求并记录统计
+     *
+     * @param sent 请求的字节数
+     * @param statusCode 返回的状态码
+     */
+    private void reject(long sent, int statusCode) throws IOException {
+        synchronized (mStats) {
+            mStats.requestCount++;
+            mStats.bytesSent += sent;
+        }
+        throw new StatusException(statusCode, "status " + statusCode);
+    }
+
+    private InputStream respond(long sent, String content) throws IOException {
+        byte[] bytes = content.getBytes("UTF-8");
+        synchronized (mStats) {
+            mStats.requestCount++;
+            mStats.bytesSent += sent;
+            mStats.bytesReceived += bytes.length;
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+}
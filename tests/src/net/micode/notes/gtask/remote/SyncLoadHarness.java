@@ -0,0 +1,545 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.Build;
+import android.os.Debug;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.micode.notes.data.IsolatedNotesContext;
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.data.TaskList;
+import net.micode.notes.gtask.exception.ActionFailureException;
+import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.tool.TextMerger;
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 同步负载测试。
+ * 在独立的数据库中生成指定数量的笔记，把 GTaskClient 接到进程内的 {@link FakeTasksTransport} 上，
+ * 用 {@link GTaskManager#sync} 依次测量首次上传、修改全部笔记后的同步和换一个空数据库后的下载，
+ * 记录每次同步的耗时、请求数、传输字节数和每条笔记的内存分配。
+ * 另外可以单独测量任务列表子任务操作、合并冲突修改和解析任务列表响应的耗时。
+ * 同步进行时不能运行。
+ */
+public final class SyncLoadHarness {
+    private static final String TAG = SyncLoadHarness.class.getSimpleName();
+
+    // 模拟服务器使用的账户
+    private static final String ACCOUNT_NAME = "load-test@gmail.com";
+
+    // 上传和修改使用的数据库前缀
+    private static final String UPLOAD_PREFIX = "load-test.";
+
+    // 下载使用的数据库前缀
+    private static final String DOWNLOAD_PREFIX = "load-test-download.";
+
+    // 生成的笔记内容的长度
+    private static final int NOTE_LENGTH = 200;
+
+    // 生成笔记时每个事务写入的笔记数
+    private static final int SEED_BATCH_SIZE = 500;
+
+    /**
+     * 一次同步的测量结果
+     */
+    public static class Pass {
+        // 同步结果，见 GTaskManager.STATE_*
+        public int state;
+        // 耗时（毫秒）
+        public long millis;
+        // 发出的请求数
+        public long requestCount;
+        // 发送和接收的字节数
+        public long bytesSent;
+        public long bytesReceived;
+        // 每条笔记平均分配的内存（字节），系统不提供统计时为 -1
+        public long allocBytesPerNote;
+
+        @Override
+        public String toString() {
+            return millis + " ms, " + requestCount + " requests, sent " + bytesSent
+                    + " bytes, received " + bytesReceived + " bytes, " + allocBytesPerNote
+                    + " bytes allocated per note";
+        }
+    }
+
+    /**
+     * 一次负载测试的结果
+     */
+    public static class Result {
+        // 笔记数
+        public int noteCount;
+        // 首次同步，上传所有笔记
+        public Pass upload;
+        // 修改所有笔记后的同步
+        public Pass update;
+        // 空数据库的同步，下载所有笔记
+        public Pass download;
+        // 下载到的笔记数
+        public int downloadedCount;
+
+        @Override
+        public String toString() {
+            return noteCount + " notes: upload " + upload + "; update " + update + "; download "
+                    + download + " (" + downloadedCount + " notes)";
+        }
+    }
+
+    private SyncLoadHarness() {
+    }
+
+    /**
+     * 运行一次负载测试
+     *
+     * @param target 被测应用的上下文
+     * @param noteCount 生成的笔记数，例如 10000 或 100000
+     * @param folderCount 笔记分布到的文件夹数
+     * @param latencyMillis 模拟的每个请求的延迟（毫秒）
+     * @return 测试结果
+     */
+    public static Result run(Context target, int noteCount, int folderCount,
+            long latencyMillis) {
+        if (noteCount <= 0 || folderCount <= 0) {
+            throw new IllegalArgumentException("noteCount and folderCount must be positive");
+        }
+        if (GTaskSyncService.isSyncing()) {
+            throw new ActionFailureException("sync is in progress");
+        }
+
+        final FakeTasksTransport server = new FakeTasksTransport();
+        server.setLatency(latencyMillis);
+        GTaskClient client = GTaskClient.getInstance();
+        client.setTransportFactory(new HttpTransport.Factory() {
+            public HttpTransport create(HttpTransport.Config config) {
+                return server;
+            }
+        });
+
+        Result result = new Result();
+        result.noteCount = noteCount;
+        IsolatedNotesContext local = new IsolatedNotesContext(target, UPLOAD_PREFIX);
+        IsolatedNotesContext remote = new IsolatedNotesContext(target, DOWNLOAD_PREFIX);
+        try {
+            seed(local, noteCount, folderCount);
+
+            // 上传：首次同步，为每条笔记和文件夹创建任务
+            result.upload = sync(local, client, server, noteCount);
+
+            // 更新：修改所有笔记后再次同步
+            ContentValues values = new ContentValues();
+            values.put(DataColumns.CONTENT, generateContent(noteCount) + " edited");
+            local.getContentResolver().update(Notes.CONTENT_DATA_URI, values,
+                    DataColumns.MIME_TYPE + "=?", new String[] { DataConstants.NOTE });
+            values.clear();
+            values.put(NoteColumns.LOCAL_MODIFIED, 1);
+            local.getContentResolver().update(Notes.CONTENT_NOTE_URI, values,
+                    NoteColumns.TYPE + "=?", new String[] { String.valueOf(Notes.TYPE_NOTE) });
+            result.update = sync(local, client, server, noteCount);
+
+            // 下载：空数据库的首次同步，从服务器取得所有笔记
+            result.download = sync(remote, client, server, noteCount);
+            result.downloadedCount = countNotes(remote);
+            if (result.downloadedCount != server.getTaskCount()) {
+                Log.w(TAG, "downloaded " + result.downloadedCount + " notes, server has "
+                        + server.getTaskCount());
+            }
+        } finally {
+            // 恢复连接 Google 任务服务，下次同步时重新登录
+            client.logout();
+            client.setTransportFactory(null);
+            local.clear();
+            remote.clear();
+        }
+
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * 在独立数据库中生成笔记，笔记平均分布到各个文件夹，全部标记为本地修改
+     */
+    private static void seed(Context context, int noteCount, int folderCount) {
+        ContentResolver resolver = context.getContentResolver();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < folderCount; i++) {
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValue(NoteColumns.TYPE, Notes.TYPE_FOLDER)
+                    .withValue(NoteColumns.PARENT_ID, Notes.ID_ROOT_FOLDER)
+                    .withValue(NoteColumns.SNIPPET, "load" + i)
+                    .withValue(NoteColumns.LOCAL_MODIFIED, 1)
+                    .build());
+        }
+        long[] folderIds = new long[folderCount];
+        List<Long> inserted = applyBatch(resolver, operations);
+        for (int i = 0; i < folderCount; i++) {
+            folderIds[i] = inserted.get(i);
+        }
+
+        operations.clear();
+        for (int i = 0; i < noteCount; i++) {
+            int noteIndex = operations.size();
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValue(NoteColumns.TYPE, Notes.TYPE_NOTE)
+                    .withValue(NoteColumns.PARENT_ID, folderIds[i % folderCount])
+                    .withValue(NoteColumns.LOCAL_MODIFIED, 1)
+                    .build());
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                    .withValueBackReference(DataColumns.NOTE_ID, noteIndex)
+                    .withValue(DataColumns.MIME_TYPE, DataConstants.NOTE)
+                    .withValue(DataColumns.CONTENT, generateContent(i))
+                    .build());
+            if (operations.size() >= SEED_BATCH_SIZE * 2) {
+                applyBatch(resolver, operations);
+                operations.clear();
+            }
+        }
+        applyBatch(resolver, operations);
+    }
+
+    private static List<Long> applyBatch(ContentResolver resolver,
+            ArrayList<ContentProviderOperation> operations) {
+        ArrayList<Long> ids = new ArrayList<Long>(operations.size());
+        if (operations.isEmpty()) {
+            return ids;
+        }
+        try {
+            for (ContentProviderResult r : resolver.applyBatch(Notes.AUTHORITY,
+                    operations)) {
+                ids.add(r.uri != null ? Long.valueOf(r.uri.getLastPathSegment()) : -1L);
+            }
+        } catch (RemoteException e) {
+            throw new ActionFailureException("seeding notes failed: " + e);
+        } catch (OperationApplicationException e) {
+            throw new ActionFailureException("seeding notes failed: " + e);
+        }
+        return ids;
+    }
+
+    /**
+     * 用模拟服务器同步一次，返回这次同步的测量结果
+     */
+    private static Pass sync(Context context, GTaskClient client, FakeTasksTransport server,
+            int noteCount) {
+        context.getSharedPreferences(NotesPreferenceActivity.PREFERENCE_NAME,
+                Context.MODE_PRIVATE).edit()
+                .putString(NotesPreferenceActivity.PREFERENCE_SYNC_ACCOUNT_NAME, ACCOUNT_NAME)
+                .commit();
+        // 登录状态只保持 5 分钟，每次同步前重新登录模拟服务器
+        if (!client.loginWithToken(new Account(ACCOUNT_NAME, "com.google"), "load-test")) {
+            throw new ActionFailureException("login to fake server failed");
+        }
+        GTaskManager manager = GTaskManager.getInstance();
+        manager.setActivityContext(null);
+
+        HttpTransport.Stats before = server.getStats();
+        long allocStart = getAllocatedBytes();
+        long start = SystemClock.elapsedRealtime();
+        Pass pass = new Pass();
+        pass.state = manager.sync(context, new GTaskASyncTask(context, null, true));
+        pass.millis = SystemClock.elapsedRealtime() - start;
+        long allocEnd = getAllocatedBytes();
+        HttpTransport.Stats after = server.getStats();
+        pass.requestCount = after.requestCount - before.requestCount;
+        pass.bytesSent = after.bytesSent - before.bytesSent;
+        pass.bytesReceived = after.bytesReceived - before.bytesReceived;
+        pass.allocBytesPerNote = allocStart >= 0 && allocEnd >= 0
+                ? (allocEnd - allocStart) / noteCount : -1;
+
+        List<SyncMetrics> history = SyncMetrics.getHistory(context);
+        if (!history.isEmpty()) {
+            Log.i(TAG, history.get(history.size() - 1).toString());
+        }
+        if (pass.state != GTaskManager.STATE_SUCCESS) {
+            throw new ActionFailureException("load test sync failed with state " + pass.state);
+        }
+        return pass;
+    }
+
+    /**
+     * @return 进程启动以来分配的内存字节数，系统不提供统计时返回 -1
+     */
+    private static long getAllocatedBytes() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        String value = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        try {
+            return value != null ? Long.parseLong(value) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int countNotes(Context context) {
+        Cursor c = context.getContentResolver().query(Notes.CONTENT_NOTE_URI,
+                new String[] { NoteColumns.ID }, NoteColumns.TYPE + "=?",
+                new String[] { String.valueOf(Notes.TYPE_NOTE) }, null);
+        if (c == null) {
+            return 0;
+        }
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 测量任务列表子任务操作的耗时：依次添加子任务、按全局 ID 查找、取得位置，
+     * 再移动和移除各十分之一的子任务
+     *
+     * @param childCount 子任务数，例如 10000
+     * @return 总耗时（毫秒）
+     */
+    public static long benchmarkTaskList(int childCount) {
+        if (childCount <= 0) {
+            throw new IllegalArgumentException("childCount must be positive");
+        }
+        TaskList list = new TaskList();
+        ArrayList<Task> tasks = new ArrayList<Task>(childCount);
+        for (int i = 0; i < childCount; i++) {
+            Task task = new Task();
+            task.setGid("bench" + i);
+            tasks.add(task);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        for (Task task : tasks) {
+            list.addChildTask(task);
+        }
+        long addMillis = SystemClock.elapsedRealtime() - start;
+
+        long phaseStart = SystemClock.elapsedRealtime();
+        for (int i = 0; i < childCount; i++) {
+            Task task = list.findChildTaskByGid("bench" + i);
+            if (task == null || list.getChildTaskIndex(task) != i) {
+                throw new IllegalStateException("task list index is inconsistent at " + i);
+            }
+        }
+        long lookupMillis = SystemClock.elapsedRealtime() - phaseStart;
+
+        phaseStart = SystemClock.elapsedRealtime();
+        for (int i = 0; i < childCount; i += 10) {
+            list.moveChildTask(tasks.get(i), childCount - 1 - i);
+        }
+        long moveMillis = SystemClock.elapsedRealtime() - phaseStart;
+
+        phaseStart = SystemClock.elapsedRealtime();
+        for (int i = 5; i < childCount; i += 10) {
+            list.removeChildTask(tasks.get(i));
+        }
+        long removeMillis = SystemClock.elapsedRealtime() - phaseStart;
+
+        long total = SystemClock.elapsedRealtime() - start;
+        Log.i(TAG, childCount + " children: add " + addMillis + " ms, lookup " + lookupMillis
+                + " ms, move " + moveMillis + " ms, remove " + removeMillis + " ms");
+        return total;
+    }
+
+    /**
+     * 测量合并冲突修改的耗时：生成指定大小的文本作为基准，
+     * 本地版本在开头插入一行并修改靠前的一行，远程版本修改靠后的一行并在末尾追加一行
+     *
+     * @param sizeBytes 基准文本的大致长度，例如 1024 * 1024
+     * @return 合并的耗时（毫秒）
+     */
+    public static long benchmarkMerge(int sizeBytes) {
+        if (sizeBytes <= 0) {
+            throw new IllegalArgumentException("sizeBytes must be positive");
+        }
+        StringBuilder sb = new StringBuilder(sizeBytes + NOTE_LENGTH);
+        int lineCount = 0;
+        while (sb.length() < sizeBytes) {
+            sb.append("line ").append(lineCount++).append(" of the merge benchmark\n");
+        }
+        String base = sb.toString();
+        String local = "local\n" + base.replace("line " + (lineCount / 10) + " ",
+                "line " + (lineCount / 10) + " local ");
+        String remote = base.replace("line " + (lineCount * 9 / 10) + " ",
+                "line " + (lineCount * 9 / 10) + " remote ") + "remote";
+
+        long start = SystemClock.elapsedRealtime();
+        String merged = TextMerger.merge(base, local, remote);
+        long millis = SystemClock.elapsedRealtime() - start;
+        if (merged == null || !merged.startsWith("local\n") || !merged.endsWith("remote")) {
+            throw new IllegalStateException("merge benchmark produced a wrong result");
+        }
+        Log.i(TAG, base.length() + " chars, " + lineCount + " lines merged in " + millis + " ms");
+        return millis;
+    }
+
+    /**
+     * 解析对比的结果
+     */
+    public static class ParseResult {
+        // 任务数
+        public int taskCount;
+        // 响应的字节数
+        public int responseBytes;
+        // 流式解析的耗时（毫秒）和分配的内存（字节），系统不提供统计时内存为 -1
+        public long streamMillis;
+        public long streamAllocBytes;
+        // 先读出整个响应字符串再构建 JSON 树的耗时（毫秒）和分配的内存（字节）
+        public long treeMillis;
+        public long treeAllocBytes;
+
+        @Override
+        public String toString() {
+            return taskCount + " tasks, " + responseBytes + " bytes: stream " + streamMillis
+                    + " ms, " + streamAllocBytes + " bytes allocated; tree " + treeMillis
+                    + " ms, " + treeAllocBytes + " bytes allocated";
+        }
+    }
+
+    /**
+     * 对比两种解析获取任务列表响应的方式：{@link TaskStreamParser#parseTasks} 的流式解析，
+     * 和原来先读出整个响应字符串、构建完整 JSON 树再生成任务的方式
+     *
+     * @param taskCount 响应中的任务数，例如 10000
+     * @return 对比结果
+     */
+    public static ParseResult benchmarkParse(int taskCount) {
+        if (taskCount <= 0) {
+            throw new IllegalArgumentException("taskCount must be positive");
+        }
+        byte[] response;
+        try {
+            response = generateTaskListResponse(taskCount).getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        ParseResult result = new ParseResult();
+        result.taskCount = taskCount;
+        result.responseBytes = response.length;
+        try {
+            // 流式解析
+            System.gc();
+            long allocStart = getAllocatedBytes();
+            long start = SystemClock.elapsedRealtime();
+            ArrayList<Task> streamed = TaskStreamParser.parseTasks(new InputStreamReader(
+                    new ByteArrayInputStream(response), "UTF-8"), false);
+            result.streamMillis = SystemClock.elapsedRealtime() - start;
+            result.streamAllocBytes = allocDelta(allocStart);
+            if (streamed.size() != taskCount) {
+                throw new IllegalStateException("streamed " + streamed.size() + " of "
+                        + taskCount + " tasks");
+            }
+            streamed = null;
+
+            // 原来的方式：与 getResponseContent 一样逐行读出整个响应，再构建 JSON 树
+            System.gc();
+            allocStart = getAllocatedBytes();
+            start = SystemClock.elapsedRealtime();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new ByteArrayInputStream(response), "UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                sb.append(line);
+            }
+            JSONArray jsTasks = new JSONObject(sb.toString())
+                    .getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
+            ArrayList<Task> tree = new ArrayList<Task>();
+            for (int i = 0; i < jsTasks.length(); i++) {
+                Task task = new Task();
+                task.setContentByRemoteJSON(jsTasks.getJSONObject(i));
+                if (task.isWorthSaving()) {
+                    tree.add(task);
+                }
+            }
+            result.treeMillis = SystemClock.elapsedRealtime() - start;
+            result.treeAllocBytes = allocDelta(allocStart);
+            if (tree.size() != taskCount) {
+                throw new IllegalStateException("parsed " + tree.size() + " of " + taskCount
+                        + " tasks");
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * 生成与 get_all 响应格式相同的任务列表响应
+     */
+    private static String generateTaskListResponse(int taskCount) {
+        StringBuilder sb = new StringBuilder(taskCount * (NOTE_LENGTH + 160));
+        sb.append("{\"").append(GTaskStringUtils.GTASK_JSON_TASKS).append("\":[");
+        for (int i = 0; i < taskCount; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"").append(GTaskStringUtils.GTASK_JSON_ID).append("\":\"task")
+                    .append(i).append("\",\"").append(GTaskStringUtils.GTASK_JSON_NAME)
+                    .append("\":\"note ").append(i).append("\",\"")
+                    .append(GTaskStringUtils.GTASK_JSON_NOTES).append("\":\"")
+                    .append(generateContent(i)).append("\",\"")
+                    .append(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED).append("\":")
+                    .append(1300000000000L + i).append(",\"")
+                    .append(GTaskStringUtils.GTASK_JSON_DELETED).append("\":false}");
+        }
+        sb.append("],\"latest_sync_point\":").append(1300000000000L + taskCount).append('}');
+        return sb.toString();
+    }
+
+    private static long allocDelta(long allocStart) {
+        long allocEnd = getAllocatedBytes();
+        return allocStart >= 0 && allocEnd >= 0 ? allocEnd - allocStart : -1;
+    }
+
+    /**
+     * 生成固定长度的笔记内容
+     */
+    private static String generateContent(int seed) {
+        StringBuilder sb = new StringBuilder(NOTE_LENGTH);
+        while (sb.length() < NOTE_LENGTH) {
+            sb.append("note ").append(seed).append(' ');
+        }
+        sb.setLength(NOTE_LENGTH);
+        return sb.toString();
+    }
+}
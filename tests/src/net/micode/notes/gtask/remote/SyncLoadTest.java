@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.gtask.remote;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+/**
+ * 同步负载测试，结果输出到日志。
+ * 运行：adb shell am instrument -w -e size large
+ * net.micode.notes.tests/android.test.InstrumentationTestRunner
+ */
+public class SyncLoadTest extends AndroidTestCase {
+    // 笔记分布到的文件夹数
+    private static final int FOLDER_COUNT = 20;
+
+    // 模拟的每个请求的延迟（毫秒）
+    private static final long LATENCY_MILLIS = 50;
+
+    @LargeTest
+    public void testSync10k() {
+        assertLoad(10000);
+    }
+
+    @LargeTest
+    public void testSync100k() {
+        assertLoad(100000);
+    }
+
+    @LargeTest
+    public void testTaskList10k() {
+        SyncLoadHarness.benchmarkTaskList(10000);
+    }
+
+    @LargeTest
+    public void testMerge1m() {
+        SyncLoadHarness.benchmarkMerge(1024 * 1024);
+    }
+
+    @LargeTest
+    public void testParse10k() {
+        SyncLoadHarness.ParseResult result = SyncLoadHarness.benchmarkParse(10000);
+        assertTrue(result.streamMillis >= 0 && result.treeMillis >= 0);
+    }
+
+    private void assertLoad(int noteCount) {
+        SyncLoadHarness.Result result = SyncLoadHarness.run(getContext(), noteCount,
+                FOLDER_COUNT, LATENCY_MILLIS);
+        assertEquals(noteCount, result.downloadedCount);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * 三方合并的正确性：不重叠的修改合并，重叠或相邻的不同修改返回 null，
+ * 合并结果不会丢失或错放任何一边的修改。
+ */
+@SmallTest
+public class TextMergerTest extends TestCase {
+    private static final String BASE = "a\nb\nc\nd\ne";
+
+    public void testDisjointEditsMerge() {
+        assertEquals("a\nB\nc\nD\ne",
+                TextMerger.merge(BASE, "a\nB\nc\nd\ne", "a\nb\nc\nD\ne"));
+    }
+
+    public void testAdjacentEditsConflict() {
+        assertNull(TextMerger.merge(BASE, "a\nB\nc\nd\ne", "a\nb\nC\nd\ne"));
+    }
+
+    public void testIdenticalEditsOnBothSides() {
+        assertEquals("a\nX\nc\nd\ne", TextMerger.merge(BASE, "a\nX\nc\nd\ne", "a\nX\nc\nd\ne"));
+        // 相同的修改只保留一份，另一边其余的修改照常合并
+        assertEquals("a\nX\nc\nd\nE",
+                TextMerger.merge(BASE, "a\nX\nc\nd\nE", "a\nX\nc\nd\ne"));
+    }
+
+    public void testDifferentInsertsAtSamePointConflict() {
+        assertNull(TextMerger.merge("a\nb", "a\nL\nb", "a\nR\nb"));
+    }
+
+    public void testDeleteVersusEditConflicts() {
+        assertNull(TextMerger.merge(BASE, "a\nb\nd\ne", "a\nb\nC\nd\ne"));
+        assertNull(TextMerger.merge(BASE, "a\nb\nC\nd\ne", "a\nb\nd\ne"));
+    }
+
+    public void testTrailingNewlineKept() {
+        assertEquals("A\nb\nC\n", TextMerger.merge("a\nb\nc\n", "A\nb\nc\n", "a\nb\nC\n"));
+        // 一边只在末尾加了换行
+        assertEquals("A\nb\nc\n", TextMerger.merge("a\nb\nc", "A\nb\nc", "a\nb\nc\n"));
+    }
+
+    public void testMovedLineNeverMergesWrongly() {
+        // 本地把 b 移到末尾，远程修改了其他行
+        assertMergedOrConflict("a\nc\nD\ne\nb",
+                TextMerger.merge(BASE, "a\nc\nd\ne\nb", "a\nb\nc\nD\ne"));
+        // 本地把 b 移到末尾，远程修改了 b
+        assertMergedOrConflict("a\nc\nd\ne\nB",
+                TextMerger.merge(BASE, "a\nc\nd\ne\nb", "a\nB\nc\nd\ne"));
+        // 本地把 b 移到开头，远程修改了末尾
+        assertMergedOrConflict("b\na\nc\nd\nE",
+                TextMerger.merge(BASE, "b\na\nc\nd\ne", "a\nb\nc\nd\nE"));
+    }
+
+    /**
+     * 移动可能被当成删除再插入而合并失败，但合并成功时必须是正确的结果
+     */
+    private static void assertMergedOrConflict(String expected, String merged) {
+        if (merged != null) {
+            assertEquals(expected, merged);
+        }
+    }
+}